@@ -0,0 +1,28 @@
+CASSHOME=~/datastax-ddc-3.3.0
+CASSNODES=localhost
+
+# Fast role load without cqlsh COPY or role_stage: the controller joins the role files against the movie index
+# and writes movie_cast and contributor SSTables to ../../export/sstables, then sstableloader streams them in.
+# The SSTables can be written anywhere that has the Cassandra jars; only the last step needs to reach the cluster.
+
+# remove the old SSTables
+echo `date` Removing SSTables
+rm -rf ../../export/sstables
+
+# truncate role tables
+echo  `date` Truncating role
+./controller.sh role -cleanMode  >> role.stdout 2>>role.stderr
+
+# write the SSTables; CQLSSTableWriter comes from the Cassandra server jars
+echo `date`  Writing role SSTables
+ETL_PRECLASSPATH=`ls $CASSHOME/lib/*.jar | tr '\n' ':'`$CASSHOME/conf
+export ETL_PRECLASSPATH
+./controller.sh rolesstable --movieIndex=file $@ >> role.stdout 2>>role.stderr
+unset ETL_PRECLASSPATH
+
+# stream them to the cluster
+for t in movie_cast contributor
+do
+echo `date`  Loading $t SSTables
+$CASSHOME/bin/sstableloader -d $CASSNODES ../../export/sstables/moviedb/$t >> role.stdout 2>>role.stderr
+done
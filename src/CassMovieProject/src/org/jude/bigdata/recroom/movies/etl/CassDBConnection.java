@@ -1,28 +1,39 @@
 package org.jude.bigdata.recroom.movies.etl;
 
+import java.io.File;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.apache.log4j.Logger;
 
+import com.datastax.driver.core.BatchStatement;
 import com.datastax.driver.core.BoundStatement;
 import com.datastax.driver.core.Cluster;
 import com.datastax.driver.core.ColumnDefinitions;
 import com.datastax.driver.core.Host;
+import com.datastax.driver.core.HostDistance;
 import com.datastax.driver.core.Metadata;
+import com.datastax.driver.core.PoolingOptions;
 import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ProtocolOptions;
 import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.ResultSetFuture;
 import com.datastax.driver.core.Row;
 import com.datastax.driver.core.Session;
+import com.datastax.driver.core.SimpleStatement;
+import com.datastax.driver.core.SocketOptions;
+import com.datastax.driver.core.Statement;
 import com.datastax.driver.core.UDTValue;
 import com.datastax.driver.core.UserType;
 import com.datastax.driver.core.exceptions.NoHostAvailableException;
-import com.datastax.driver.core.exceptions.WriteTimeoutException;
+import com.datastax.driver.core.policies.DCAwareRoundRobinPolicy;
+import com.datastax.driver.core.policies.LoadBalancingPolicy;
+import com.datastax.driver.core.policies.TokenAwarePolicy;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 
@@ -51,6 +62,15 @@ public class CassDBConnection {
 		PreparedStatement statement;
 		String columns[];
 		String followonStatements[] = null;
+		boolean movieIndexCheck = false;
+		BatchStatement.Type batchType = null;
+		String batchColumns[] = null;
+		RoleDeduper deduper = null;
+		boolean leaveNullsUnset = false;
+		StatementBinder binder;
+		String table = null;
+		boolean idempotent = true;
+		LoadMetrics.StatementMetrics metrics;
 
 		/**
 		 * @param statementName
@@ -61,6 +81,8 @@ public class CassDBConnection {
 			this.statementName = statementName;
 			this.statement = statement;
 			this.columns = columns;
+			this.binder = new StatementBinder(statement, columns);
+			this.metrics = LoadMetrics.instance().statement(statementName);
 		}
 
 		public PreparedStatementDefinition addFollowonUpdateStatements(String... foStatements) {
@@ -68,6 +90,84 @@ public class CassDBConnection {
 			return this;
 		}
 
+		/**
+		 * Mark this statement as a movie existence check (select release_year
+		 * from movie where movie_id=?). When the connection has a movie index,
+		 * the check is answered from the index instead of running the select.
+		 * 
+		 * @return
+		 */
+		public PreparedStatementDefinition answerFromMovieIndex() {
+			this.movieIndexCheck = true;
+			return this;
+		}
+
+		public boolean isMovieIndexCheck() {
+			return this.movieIndexCheck;
+		}
+
+		/**
+		 * Allow runs of this statement for the same partition to be sent as
+		 * one batch (see PartitionBatcher). Only for statements without
+		 * lightweight transactions.
+		 * 
+		 * @param batchType
+		 *            - UNLOGGED, or COUNTER for counter updates
+		 * @param partitionColumns
+		 *            - bound columns making up the partition key
+		 * @return
+		 */
+		public PreparedStatementDefinition batchOn(BatchStatement.Type batchType, String... partitionColumns) {
+			this.batchType = batchType;
+			this.batchColumns = partitionColumns;
+			return this;
+		}
+
+		/**
+		 * Check each record for a dupe before running this statement; stands
+		 * in for "if not exists" when running without lightweight
+		 * transactions.
+		 * 
+		 * @param deduper
+		 * @return
+		 */
+		public PreparedStatementDefinition dedupeWith(RoleDeduper deduper) {
+			this.deduper = deduper;
+			return this;
+		}
+
+		public RoleDeduper getDeduper() {
+			return this.deduper;
+		}
+
+		/**
+		 * Leave a column with no value unset instead of binding null, which
+		 * would write a tombstone. For wide inserts where most columns are
+		 * often empty.
+		 * 
+		 * @return
+		 */
+		public PreparedStatementDefinition leaveNullsUnset() {
+			this.leaveNullsUnset = true;
+			return this;
+		}
+
+		public boolean isLeaveNullsUnset() {
+			return this.leaveNullsUnset;
+		}
+
+		public boolean isBatched() {
+			return this.batchColumns != null;
+		}
+
+		public BatchStatement.Type getBatchType() {
+			return this.batchType;
+		}
+
+		public String[] getBatchColumns() {
+			return this.batchColumns;
+		}
+
 		public PreparedStatement getStatement() {
 			return this.statement;
 		}
@@ -76,6 +176,10 @@ public class CassDBConnection {
 			return this.columns;
 		}
 
+		public StatementBinder getBinder() {
+			return this.binder;
+		}
+
 		public String[] getFollowonStatements() {
 			return this.followonStatements;
 		}
@@ -83,6 +187,30 @@ public class CassDBConnection {
 		public String getStatementName() {
 			return this.statementName;
 		}
+
+		/**
+		 * The table the statement writes to, or null if it's a select
+		 * 
+		 * @return
+		 */
+		public String getTable() {
+			return this.table;
+		}
+
+		/**
+		 * Can the statement be sent again without changing the outcome? Not
+		 * for lightweight transactions, counter updates or generated uuids;
+		 * see createStatement()
+		 * 
+		 * @return
+		 */
+		public boolean isIdempotent() {
+			return this.idempotent;
+		}
+
+		public LoadMetrics.StatementMetrics getMetrics() {
+			return this.metrics;
+		}
 	}
 
 	/**
@@ -96,19 +224,23 @@ public class CassDBConnection {
 		PreparedStatementDefinition statement;
 		ImdbRecord record;
 		ImdbIterator iterator;
+		int attempt;
+		long startNanos = System.nanoTime();
 
 		public CassFutureCallback(CassDBConnection cConnection, PreparedStatementDefinition statement,
-				ImdbRecord record, ImdbIterator iterator) {
+				ImdbRecord record, ImdbIterator iterator, int attempt) {
 			this.cConnection = cConnection;
 			this.statement = statement;
 			this.record = record;
 			this.iterator = iterator;
+			this.attempt = attempt;
 		}
 
 		/**
 		 * Notification of success on async CQL execution update
 		 */
 		public void onSuccess(ResultSet rs) {
+			this.cConnection.recordResponse(this.statement, this.startNanos, null, 1);
 			if (rs.wasApplied()) {
 				this.iterator.logSuccess();
 			} else {
@@ -122,12 +254,8 @@ public class CassDBConnection {
 						explanation += def.getName() + "=" + row.getObject(def.getName());
 					}
 				}
-				this.iterator
-						.logFailure(
-								new ETLException(ETLConstants.ERR_DUPE,
-										"Update failed on statement *" + this.statement.getStatementName()
-												+ "*  and record " + this.record + " explanation is " + explanation),
-								this.record, true);
+				this.cConnection.reject(this.statement, notApplied(this.statement.getStatementName(), this.record,
+						explanation), this.record, this.iterator);
 			}
 		}
 
@@ -135,11 +263,41 @@ public class CassDBConnection {
 		 * Notification of success on async CQL execution.
 		 */
 		public void onFailure(Throwable t) {
-			this.cConnection.onCQLResultFailure(this.statement.getStatementName(), this.record, this.iterator, t);
+			this.cConnection.recordResponse(this.statement, this.startNanos, t, 1);
+			this.cConnection.onCQLResultFailure(this.statement.getStatementName(), this.record, this.iterator, t,
+					this.attempt);
 		}
 	}
 
-	public static final int MAX_PENDING = 2000;
+	public static final String NOT_APPLIED = " row: [applied]=false";
+
+	public static final int DEFAULT_WINDOW = 2000;
+	public static final int DEFAULT_WINDOW_MIN = 100;
+	public static final int DEFAULT_WINDOW_MAX = 20000;
+	public static final int SCAN_FETCH_SIZE = 5000;
+	public static final int DEFAULT_BATCH_SIZE = 1;
+	public static final int DEFAULT_BATCH_LINGER_MS = 5;
+
+	// cluster options left to the driver
+	public static final int DRIVER_DEFAULT = -1;
+	public static final String COMPRESSION_NONE = "none";
+
+	// the table written by an insert, update or delete
+	static final Pattern WRITE_TABLE = Pattern.compile(
+			"^\\s*(?:insert\\s+into|update|delete\\s+from)\\s+(?:\\w+\\.)?(\\w+)", Pattern.CASE_INSENSITIVE);
+
+	// what makes a statement unsafe to send twice: a lightweight transaction,
+	// a generated uuid or timeuuid, or a counter update (c = c + 1)
+	static final Pattern NOT_IDEMPOTENT = Pattern.compile(
+			"\\bif\\s+(?:not\\s+exists|\\w+\\s*=)|\\b(?:uuid|now)\\s*\\(|\\b(\\w+)\\s*=\\s*\\1\\s*[-+]\\s*\\d",
+			Pattern.CASE_INSENSITIVE);
+
+	// retries and circuit breaker
+	public static final int DEFAULT_RETRY_MAX_ATTEMPTS = 3;
+	public static final int DEFAULT_RETRY_BASE_MS = 100;
+	public static final int DEFAULT_RETRY_MAX_MS = 5000;
+	public static final int DEFAULT_RETRY_BUDGET_PERCENT = 10;
+	public static final int DEFAULT_HOSTS_DOWN_MAX_WAIT_MS = 600000;
 
 	String nodes[] = null;
 	String keyspace = null;
@@ -147,6 +305,25 @@ public class CassDBConnection {
 	Session session;
 	Map<String, PreparedStatementDefinition> statements = new HashMap<String, PreparedStatementDefinition>();
 	Map<String, UserType> udtDefs = new HashMap<String, UserType>();
+	InFlightWindow window = new InFlightWindow(DEFAULT_WINDOW);
+	boolean adaptiveWindow = true;
+	int windowMin = DEFAULT_WINDOW_MIN;
+	int windowMax = DEFAULT_WINDOW_MAX;
+	WindowTuner windowTuner = null;
+	MovieIndex movieIndex = null;
+	int batchSize = DEFAULT_BATCH_SIZE;
+	int batchLingerMs = DEFAULT_BATCH_LINGER_MS;
+	PartitionBatcher batcher = null;
+	boolean tokenAware = true;
+	String localDC = null;
+	int connectionsPerHost = DRIVER_DEFAULT;
+	int maxRequestsPerConnection = DRIVER_DEFAULT;
+	ProtocolOptions.Compression compression = ProtocolOptions.Compression.NONE;
+	int connectTimeoutMs = DRIVER_DEFAULT;
+	int readTimeoutMs = DRIVER_DEFAULT;
+	WriteRateLimiter rateLimiter = null;
+	WriteRetrier retrier = null;
+	CircuitBreaker breaker = new CircuitBreaker(this, DEFAULT_HOSTS_DOWN_MAX_WAIT_MS);
 
 	Logger logger = Logger.getLogger(CassDBConnection.class);
 
@@ -173,6 +350,12 @@ public class CassDBConnection {
 		}
 		PreparedStatement stmt = this.session.prepare(cql);
 		def = new PreparedStatementDefinition(name, stmt, columns);
+		Matcher table = WRITE_TABLE.matcher(cql);
+		if (table.find()) {
+			def.table = table.group(1).toLowerCase();
+		}
+		def.idempotent = !NOT_IDEMPOTENT.matcher(cql).find();
+		stmt.setIdempotent(def.idempotent);
 		this.statements.put(name, def);
 		return def;
 	}
@@ -221,6 +404,51 @@ public class CassDBConnection {
 		return udt;
 	}
 
+	/**
+	 * obtain the window limiting the number of requests in flight
+	 * 
+	 * @return
+	 */
+	public InFlightWindow getWindow() {
+		return this.window;
+	}
+
+	/**
+	 * Use the given index to answer movie existence checks (see
+	 * PreparedStatementDefinition.answerFromMovieIndex()).
+	 * 
+	 * @param movieIndex
+	 */
+	public void setMovieIndex(MovieIndex movieIndex) {
+		this.movieIndex = movieIndex;
+	}
+
+	/**
+	 * The reject for a conditional update that wasn't applied. Also used by
+	 * the client-side checks that stand in for the conditions.
+	 * 
+	 * @param statementName
+	 * @param record
+	 * @param explanation
+	 * @return
+	 */
+	public static ETLException notApplied(String statementName, ImdbRecord record, String explanation) {
+		return new ETLException(ETLConstants.ERR_DUPE, "Update failed on statement *" + statementName
+				+ "*  and record " + record + " explanation is " + explanation);
+	}
+
+	/**
+	 * The reject for an existence check that found no movie
+	 * 
+	 * @param statementName
+	 * @param record
+	 * @return
+	 */
+	public static ETLException notFound(String statementName, ImdbRecord record) {
+		return new ETLException(ETLConstants.ERR_RECORD_NOT_FOUND,
+				"Existing check found no rows  on statement *" + statementName + "* with values " + record);
+	}
+
 	/**
 	 * Gets configuration from specific properties
 	 * 
@@ -230,6 +458,107 @@ public class CassDBConnection {
 	public void configure(ETLProperties props) throws ETLException {
 		this.keyspace = props.getString(ETLConstants.PROP_CASS_KEYSPACE);
 		this.nodes = props.getString(ETLConstants.PROP_CASS_NODES).split(",");
+		this.batchSize = props.getInt(ETLConstants.PROP_BATCH_SIZE, DEFAULT_BATCH_SIZE);
+		this.batchLingerMs = props.getInt(ETLConstants.PROP_BATCH_LINGER_MS, DEFAULT_BATCH_LINGER_MS);
+
+		// in-flight window: where it starts, and whether and how far it may
+		// be tuned from there
+		this.window = new InFlightWindow(props.getInt(ETLConstants.PROP_WINDOW, DEFAULT_WINDOW));
+		this.adaptiveWindow = Boolean.parseBoolean(props.getString(ETLConstants.PROP_WINDOW_ADAPTIVE, "true"));
+		this.windowMin = Math.min(this.window.getLimit(), props.getInt(ETLConstants.PROP_WINDOW_MIN,
+				DEFAULT_WINDOW_MIN));
+		this.windowMax = Math.max(this.window.getLimit(), props.getInt(ETLConstants.PROP_WINDOW_MAX,
+				DEFAULT_WINDOW_MAX));
+
+		// cluster options; unset means the driver's default
+		this.tokenAware = Boolean.parseBoolean(props.getString(ETLConstants.PROP_CASS_TOKEN_AWARE, "true"));
+		this.localDC = props.getString(ETLConstants.PROP_CASS_LOCAL_DC, "");
+		if (this.localDC.length() == 0) {
+			this.localDC = null;
+		}
+		this.connectionsPerHost = props.getInt(ETLConstants.PROP_CASS_CONNECTIONS_PER_HOST, DRIVER_DEFAULT);
+		this.maxRequestsPerConnection = props.getInt(ETLConstants.PROP_CASS_MAX_REQUESTS_PER_CONNECTION,
+				DRIVER_DEFAULT);
+		this.connectTimeoutMs = props.getInt(ETLConstants.PROP_CASS_CONNECT_TIMEOUT_MS, DRIVER_DEFAULT);
+		this.readTimeoutMs = props.getInt(ETLConstants.PROP_CASS_READ_TIMEOUT_MS, DRIVER_DEFAULT);
+		String compressionName = props.getString(ETLConstants.PROP_CASS_COMPRESSION, COMPRESSION_NONE);
+		try {
+			this.compression = ProtocolOptions.Compression.valueOf(compressionName.toUpperCase());
+		} catch (IllegalArgumentException e) {
+			throw new ETLException(ETLConstants.ERR_USAGE, "Illegal " + ETLConstants.PROP_CASS_COMPRESSION + " *"
+					+ compressionName + "*; use none, lz4 or snappy");
+		}
+
+		// write rates, global and per table; the control file can change them
+		// while the job runs
+		String rateFile = props.getString(ETLConstants.PROP_WRITE_RATE_FILE, "");
+		WriteRateLimiter limiter = new WriteRateLimiter(props, rateFile.length() == 0 ? null : new File(rateFile));
+		this.rateLimiter = limiter.isActive() ? limiter : null;
+
+		// retries of idempotent requests; 0 attempts means reject on failure
+		int retryMaxAttempts = props.getInt(ETLConstants.PROP_RETRY_MAX_ATTEMPTS, DEFAULT_RETRY_MAX_ATTEMPTS);
+		if (retryMaxAttempts > 0) {
+			this.retrier = new WriteRetrier(this, retryMaxAttempts, props.getInt(ETLConstants.PROP_RETRY_BASE_MS,
+					DEFAULT_RETRY_BASE_MS), props.getInt(ETLConstants.PROP_RETRY_MAX_MS, DEFAULT_RETRY_MAX_MS),
+					props.getInt(ETLConstants.PROP_RETRY_BUDGET_PERCENT, DEFAULT_RETRY_BUDGET_PERCENT));
+		}
+		this.breaker = new CircuitBreaker(this, props.getInt(ETLConstants.PROP_HOSTS_DOWN_MAX_WAIT_MS,
+				DEFAULT_HOSTS_DOWN_MAX_WAIT_MS));
+	}
+
+	/**
+	 * Build the cluster with the configured load balancing, pooling,
+	 * compression and socket options, logging each one
+	 * 
+	 * @return
+	 */
+	Cluster buildCluster() {
+		Cluster.Builder builder = Cluster.builder().addContactPoints(nodes);
+
+		// round robin over the local DC (named, or that of the contact
+		// points); token aware tries the partition's replicas first
+		DCAwareRoundRobinPolicy.Builder dcAware = DCAwareRoundRobinPolicy.builder();
+		if (this.localDC != null) {
+			dcAware.withLocalDc(this.localDC);
+		}
+		LoadBalancingPolicy policy = dcAware.build();
+		if (this.tokenAware) {
+			policy = new TokenAwarePolicy(policy);
+		}
+		builder.withLoadBalancingPolicy(policy);
+		logger.info("Cluster option load balancing " + (this.tokenAware ? "token aware, " : "") + "DC aware, local DC "
+				+ (this.localDC == null ? "of contact points" : this.localDC));
+
+		PoolingOptions pooling = new PoolingOptions();
+		if (this.connectionsPerHost > 0) {
+			pooling.setConnectionsPerHost(HostDistance.LOCAL, this.connectionsPerHost, this.connectionsPerHost);
+		}
+		if (this.maxRequestsPerConnection > 0) {
+			pooling.setMaxRequestsPerConnection(HostDistance.LOCAL, this.maxRequestsPerConnection);
+			pooling.setMaxRequestsPerConnection(HostDistance.REMOTE, this.maxRequestsPerConnection);
+		}
+		builder.withPoolingOptions(pooling);
+		logger.info("Cluster option connections per host "
+				+ (this.connectionsPerHost > 0 ? String.valueOf(this.connectionsPerHost) : "driver default"));
+		logger.info("Cluster option max requests per connection "
+				+ (this.maxRequestsPerConnection > 0 ? String.valueOf(this.maxRequestsPerConnection)
+						: "driver default"));
+
+		builder.withCompression(this.compression);
+		logger.info("Cluster option compression " + this.compression.toString().toLowerCase());
+
+		SocketOptions socket = new SocketOptions();
+		if (this.connectTimeoutMs > 0) {
+			socket.setConnectTimeoutMillis(this.connectTimeoutMs);
+		}
+		if (this.readTimeoutMs > 0) {
+			socket.setReadTimeoutMillis(this.readTimeoutMs);
+		}
+		builder.withSocketOptions(socket);
+		logger.info("Cluster option connect timeout " + socket.getConnectTimeoutMillis() + "ms, read timeout "
+				+ socket.getReadTimeoutMillis() + "ms");
+
+		return builder.build();
 	}
 
 	/**
@@ -241,7 +570,7 @@ public class CassDBConnection {
 	public void connect() throws ETLException {
 		// Connect to a Cassandra cluster
 		logger.debug("Attempting to connect to " + Arrays.toString(this.nodes) + " " + this.keyspace);
-		this.cluster = Cluster.builder().addContactPoints(nodes).build();
+		this.cluster = buildCluster();
 		this.session = this.cluster.connect(this.keyspace);
 
 		// Display data about the connection
@@ -251,6 +580,73 @@ public class CassDBConnection {
 			logger.info(
 					"Datacenter " + host.getDatacenter() + " Host " + host.getAddress() + " Rack " + host.getRack());
 		}
+
+		// batch size 1 means no batching
+		if (this.batchSize > 1) {
+			this.batcher = new PartitionBatcher(this, this.batchSize, this.batchLingerMs);
+			this.batcher.start();
+		}
+
+		LoadMetrics.instance().setWindow(this.window);
+		if (this.adaptiveWindow) {
+			this.windowTuner = new WindowTuner(this.window, this.windowMin, this.windowMax);
+			this.windowTuner.start();
+		} else {
+			logger.info("In-flight window fixed at " + this.window.getLimit());
+		}
+
+		if (this.rateLimiter != null) {
+			this.rateLimiter.start();
+		}
+		if (this.retrier != null) {
+			this.retrier.start();
+		}
+	}
+
+	/**
+	 * Does the driver see any host up? For the circuit breaker.
+	 * 
+	 * @return
+	 */
+	boolean isAnyHostUp() {
+		for (Host host : this.cluster.getMetadata().getAllHosts()) {
+			if (host.isUp()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * A request completed; tell the window tuner, and count it in the
+	 * statement's metrics
+	 * 
+	 * @param stmt
+	 * @param startNanos
+	 * @param error
+	 *            - or null
+	 * @param count
+	 *            - writes in the request (more than one for a batch)
+	 */
+	void recordResponse(PreparedStatementDefinition stmt, long startNanos, Throwable error, int count) {
+		if (this.windowTuner != null) {
+			this.windowTuner.record(startNanos, error);
+		}
+		stmt.getMetrics().completed(startNanos, count);
+	}
+
+	/**
+	 * Reject the record on the given statement, counting the reject in the
+	 * statement's metrics
+	 * 
+	 * @param stmt
+	 * @param ex
+	 * @param record
+	 * @param iterator
+	 */
+	void reject(PreparedStatementDefinition stmt, ETLException ex, ImdbRecord record, ImdbIterator iterator) {
+		stmt.getMetrics().rejected(ex.getErrCode());
+		iterator.logFailure(stmt.getStatementName(), ex, record, true);
 	}
 
 	/**
@@ -260,6 +656,18 @@ public class CassDBConnection {
 	 */
 	public void disconnect() throws ETLException {
 
+		if (this.batcher != null) {
+			this.batcher.stop();
+		}
+		if (this.windowTuner != null) {
+			this.windowTuner.stop();
+		}
+		if (this.rateLimiter != null) {
+			this.rateLimiter.stop();
+		}
+		if (this.retrier != null) {
+			this.retrier.stop();
+		}
 		if (this.cluster != null) {
 			this.cluster.close();
 		}
@@ -279,16 +687,94 @@ public class CassDBConnection {
 		throw new ETLException(ETLConstants.ERR_CASS, "Truncate failed. result set is " + rs.all());
 	}
 
+	/**
+	 * Build a movie index from one pass over the movie table. The select is
+	 * paged, so the scan walks the table token range by token range without
+	 * holding it all in a single result.
+	 * 
+	 * @return
+	 * @throws ETLException
+	 */
+	public MovieIndex scanMovies() throws ETLException {
+		MovieIndex index = new MovieIndex();
+		try {
+			Statement scan = new SimpleStatement("select movie_id, release_year from movie")
+					.setFetchSize(SCAN_FETCH_SIZE);
+			for (Row row : this.session.execute(scan)) {
+				index.put(row.getString(0), row.isNull(1) ? MovieIndex.NO_YEAR : row.getInt(1));
+			}
+		} catch (Throwable t) {
+			throw new ETLException(ETLConstants.ERR_CASS, "Error scanning movie table", t);
+		}
+		logger.info("Built movie index from movie table. Movies: " + index.size());
+		return index;
+	}
+
 	/**
 	 * Run async CQL (either an update or a sync existence-select followed by
 	 * one or more updates) and report results back via callback.
 	 * 
+	 * If the cluster is gone for good (see CircuitBreaker), the record is
+	 * rejected; we wait for the iterator's pending requests to be rejected
+	 * too, then throw the breaker's error to end the load.
+	 * 
 	 * @param statementName
 	 * @param record
 	 * @param iterator
+	 * @throws ETLException
 	 */
-	public void runAsyncCQL(String statementName, ImdbRecord record, ImdbIterator iterator) {
+	public void runAsyncCQL(String statementName, ImdbRecord record, ImdbIterator iterator) throws ETLException {
+		if (record.getReplayStatement() != null) {
+			statementName = replayStatement(statementName, record);
+			if (statementName == null) {
+				return;
+			}
+		}
 		runCQL(statementName, record, iterator, false);
+		ETLException failure = this.breaker.getFailure();
+		if (failure != null) {
+			iterator.runTo(0);
+			throw failure;
+		}
+	}
+
+	/**
+	 * Throw the circuit breaker's error if it gave up on the cluster during
+	 * the job; the job's rejects are then not all it failed to load
+	 * 
+	 * @throws ETLException
+	 */
+	public void checkCluster() throws ETLException {
+		ETLException failure = this.breaker.getFailure();
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * For a record replayed from the rejects file (see RejectsFile), what to
+	 * send instead of the given statement: the one the record failed on, if
+	 * that's the statement or one of its follow-ons, else nothing. A follow-on
+	 * is sent straight off, with the record as the check merged it before, not
+	 * after the check again; so a doc whose count failed isn't posted again.
+	 * 
+	 * @param statementName
+	 * @param record
+	 * @return the statement to send, or null to skip it
+	 */
+	String replayStatement(String statementName, ImdbRecord record) {
+		String failed = record.getReplayStatement();
+		PreparedStatementDefinition stmt = this.statements.get(statementName);
+		String followons[] = stmt == null ? null : stmt.getFollowonStatements();
+		boolean send = failed.equals(statementName);
+		for (int i = 0; !send && followons != null && i < followons.length; i++) {
+			send = failed.equals(followons[i]);
+		}
+		if (!send) {
+			return null;
+		}
+		record.setReplayStatement(null);
+		return failed;
 	}
 
 	/**
@@ -309,78 +795,106 @@ public class CassDBConnection {
 	 */
 	void runCQL(String statementName, ImdbRecord record, ImdbIterator iterator, boolean fromCallback) {
 
-		// 0. if there are a lot of pending requests, wait for a bit (async
-		// only)
-		if (!fromCallback && iterator.getNumPending() > MAX_PENDING) {
-			logger.warn("A lot of pendings. Time to take a breather.");
-			iterator.runTo(MAX_PENDING / 2);
-			logger.warn("Breater is done");
+		logger.debug("Run CQL on " + statementName + " for record " + record);
+
+		// 0. if the cluster is unreachable, wait for it to come back. Then
+		// take a slot in the in-flight window; if there are a lot of
+		// pending requests, this blocks until one of them completes. Writes
+		// sitting in open batches hold slots too, so send them before we block
+		if (!this.breaker.awaitClosed()) {
+			PreparedStatementDefinition stmt = this.statements.get(statementName);
+			if (stmt != null) {
+				stmt.getMetrics().rejected(ETLConstants.ERR_CASS);
+			}
+			iterator.logFailure(statementName, this.breaker.getFailure(), record, false);
+			return;
+		}
+		if (this.batcher != null && this.window.getAvailable() == 0) {
+			this.batcher.flushAll();
 		}
+		iterator.addPending(this.window);
 
-		logger.debug("Run CQL on " + statementName + " for record " + record);
+		sendCQL(statementName, record, iterator, 0);
+	}
 
-		PreparedStatementDefinition stmt = null;
-		iterator.addPending();
+	/**
+	 * Send a retry (see WriteRetrier), on a retry worker. Like runCQL(),
+	 * waits for the breaker and the window, but the request is already pending.
+	 * 
+	 * @param stmt
+	 * @param record
+	 * @param iterator
+	 * @param attempt
+	 *            - 1 for the first retry
+	 */
+	void resendCQL(PreparedStatementDefinition stmt, ImdbRecord record, ImdbIterator iterator, int attempt) {
+		logger.debug("Retry " + attempt + " of CQL on " + stmt.getStatementName() + " for record " + record);
+		if (!this.breaker.awaitClosed()) {
+			stmt.getMetrics().rejected(ETLConstants.ERR_CASS);
+			iterator.logSuspendedFailure(stmt.getStatementName(), this.breaker.getFailure(), record);
+			return;
+		}
+		if (this.batcher != null && this.window.getAvailable() == 0) {
+			this.batcher.flushAll();
+		}
+		iterator.resumePending();
+		sendCQL(stmt.getStatementName(), record, iterator, attempt);
+	}
 
+	/**
+	 * Send the request, which already has its slot in the window. A retry
+	 * (attempt > 0) skips the dupe check, which saw the record the first time,
+	 * and goes on its own rather than in a batch.
+	 * 
+	 * @param statementName
+	 * @param record
+	 * @param iterator
+	 * @param attempt
+	 */
+	void sendCQL(String statementName, ImdbRecord record, ImdbIterator iterator, int attempt) {
+		PreparedStatementDefinition stmt = null;
 		try {
 			// 1. find the statement
 			stmt = getStatement(statementName);
-			BoundStatement bstmt = stmt.getStatement().bind();
+			if (this.retrier != null) {
+				this.retrier.countSent();
+			}
 
-			// 2. put bound values in proper form
-			String cols[] = stmt.getColumns();
-			for (int i = 0; i < cols.length; i++) {
-				String column = cols[i];
-				Object nextVal = record.get(column);
-				if (nextVal == null) {
-					bstmt.setToNull(i);
-				} else if (nextVal instanceof String) {
-					bstmt.setString(i, (String) nextVal);
-				} else if (nextVal instanceof Integer) {
-					bstmt.setInt(i, (int) nextVal);
-				} else if (nextVal instanceof Float) {
-					bstmt.setFloat(i, (float) nextVal);
-				} else if (nextVal instanceof Set) {
-					bstmt.setSet(i, (Set<String>) nextVal);
-				} else if (nextVal instanceof ImdbRecord) {
-					UserType udt = getUDT(column);
-					UDTValue uv = udt.newValue();
-					// for simplicity, our model's UDTs only contain string
-					// values,
-					// so we'll create the UDT inline here now
-					// in the general case we would handle UDT containing
-					// anything,
-					// maybe even another UDRJF
-					ImdbRecord subdoc = (ImdbRecord) nextVal;
-					Iterator<String> iterKeys = subdoc.keys().iterator();
-					while (iterKeys.hasNext()) {
-						String ukey = iterKeys.next();
-						Object val = subdoc.get(ukey);
-						if (val instanceof String) {
-							uv.setString(ukey, (String) val);
-						} else if (val instanceof Integer) {
-							uv.setInt(ukey, (int) val);
-						} else if (val instanceof Float) {
-							uv.setFloat(ukey, (float) val);
-						} else if (val instanceof Set) {
-							uv.setSet(ukey, (Set<String>) val);
-						} else {
-							throw new ETLException(ETLConstants.ERR_CONVERSION, "Illegal UDT type *" + val
-									+ "* of type " + val.getClass() + " in bound values " + Arrays.toString(cols));
-						}
-					}
-					bstmt.setUDTValue(i, uv);
-				} else {
-					throw new ETLException(ETLConstants.ERR_CONVERSION,
-							"Can't make sense of column " + i + " in bound values " + Arrays.toString(cols));
-				}
+			// if it's a movie existence check and we have the movie index,
+			// answer it here and go straight to the follow-ons
+			if (stmt.isMovieIndexCheck() && this.movieIndex != null) {
+				runIndexedCheck(stmt, record, iterator);
+				return;
+			}
+
+			// if it stands in for "if not exists", reject dupes here
+			if (attempt == 0 && stmt.getDeduper() != null && stmt.getDeduper().isDupe(record, iterator)) {
+				reject(stmt, notApplied(statementName, record, NOT_APPLIED + " (dupe in this load)"), record, iterator);
+				return;
 			}
 
+			// if it's a write, wait for the write rate to allow it
+			if (this.rateLimiter != null && stmt.getTable() != null) {
+				this.rateLimiter.acquire(stmt.getTable());
+			}
+
+			// 2. put bound values in proper form
+			BoundStatement bstmt = stmt.getBinder().bind(record, stmt.isLeaveNullsUnset());
+
 			// 3. If this is a query (with followup updates)
 			// do the command synchronously.
 			if (stmt.getFollowonStatements() != null && stmt.getFollowonStatements().length > 0) {
 
-				ResultSet rs = this.session.execute(bstmt);
+				long startNanos = System.nanoTime();
+				stmt.getMetrics().submitted(1);
+				ResultSet rs;
+				try {
+					rs = this.session.execute(bstmt);
+				} catch (RuntimeException e) {
+					recordResponse(stmt, startNanos, e, 1);
+					throw e;
+				}
+				recordResponse(stmt, startNanos, null, 1);
 
 				// ok, it's a query and, in this class ALWAYS, an existence
 				// check with follow-on updates
@@ -389,11 +903,9 @@ public class CassDBConnection {
 					ETLException ex = new ETLException(ETLConstants.ERR_DUPE,
 							"Existing check finds multiple rows on statement *" + statementName + "* with values "
 									+ record + " result set is " + rows);
-					iterator.logFailure(ex, record, true);
+					reject(stmt, ex, record, iterator);
 				} else if (rows.size() == 0) {
-					ETLException ex = new ETLException(ETLConstants.ERR_RECORD_NOT_FOUND,
-							"Existing check found no rows  on statement *" + statementName + "* with values " + record);
-					iterator.logFailure(ex, record, true);
+					reject(stmt, notFound(statementName, record), record, iterator);
 				} else {
 					// we have the response; now we need to (a) Merge response
 					// into
@@ -418,7 +930,12 @@ public class CassDBConnection {
 									}
 									udtRec.append(fieldNames[j], udt.getObject(j));
 								}
-								record.getSubdoc(udt.getType().getTypeName()).merge(udtRec);
+								// the record's own fields win; they're the update
+								ImdbRecord subdoc = record.getSubdoc(udt.getType().getTypeName());
+								if (subdoc != null) {
+									udtRec.merge(subdoc);
+								}
+								record.append(udt.getType().getTypeName(), udtRec);
 							} else {
 								record.append(rs.getColumnDefinitions().getName(i), row.getObject(i));
 							}
@@ -427,18 +944,48 @@ public class CassDBConnection {
 
 					// run the followups
 					for (int i = 0; i < stmt.getFollowonStatements().length; i++) {
-						runAsyncCQL(stmt.getFollowonStatements()[i], record, iterator);
+						runCQL(stmt.getFollowonStatements()[i], record, iterator, false);
 					}
 					iterator.logSuccess();
 				}
+			} else if (attempt == 0 && stmt.isBatched() && this.batcher != null) {
+				// 4. add the update to the open batch for its partition
+				this.batcher.add(stmt, bstmt, record, iterator);
 			} else {
-				// 4. run the update asynchronously
+				// 5. run the update asynchronously
+				stmt.getMetrics().submitted(1);
 				ResultSetFuture future = this.session.executeAsync(bstmt);
-				Futures.addCallback(future, new CassFutureCallback(this, stmt, record, iterator));
+				Futures.addCallback(future, new CassFutureCallback(this, stmt, record, iterator, attempt));
 			}
 		} catch (Throwable t) {
-			onCQLResultFailure(statementName, record, iterator, t);
+			onCQLResultFailure(statementName, record, iterator, t, attempt);
+		}
+	}
+
+	/**
+	 * Existence check against the movie index. If the movie is found, merge its
+	 * release year into the record and run the follow-on updates, just as if
+	 * the select had returned the row.
+	 * 
+	 * @param stmt
+	 * @param record
+	 * @param iterator
+	 * @throws ETLException
+	 */
+	void runIndexedCheck(PreparedStatementDefinition stmt, ImdbRecord record, ImdbIterator iterator)
+			throws ETLException {
+		int releaseYear = this.movieIndex.getReleaseYear(record.getMandatoryString(ETLConstants.FIELD_MOVIE_ID));
+		if (releaseYear == MovieIndex.NOT_FOUND) {
+			reject(stmt, notFound(stmt.getStatementName(), record), record, iterator);
+			return;
+		}
+		if (releaseYear != MovieIndex.NO_YEAR) {
+			record.append(ETLConstants.FIELD_RELEASE_YEAR, releaseYear);
 		}
+		for (int i = 0; i < stmt.getFollowonStatements().length; i++) {
+			runCQL(stmt.getFollowonStatements()[i], record, iterator, false);
+		}
+		iterator.logSuccess();
 	}
 
 	/**
@@ -449,16 +996,39 @@ public class CassDBConnection {
 	 * @param record
 	 * @param iterator
 	 * @param t
-	 * @param async
 	 */
 	void onCQLResultFailure(String statementName, ImdbRecord record, ImdbIterator iterator, Throwable t) {
-		t.printStackTrace();
-		// these errors are bad enough for controller job to bail.
-		if (t instanceof NoHostAvailableException) { // || t instanceof WriteTimeoutException) {
-			System.exit(1);
-		}
-		ETLException ex = new ETLException(ETLConstants.ERR_CASS,
-				"Got failure callback executing cql statement " + statementName + " on record " + record, t);
-		iterator.logFailure(ex, record, true);
+		onCQLResultFailure(statementName, record, iterator, t, 0);
+	}
+
+	/**
+	 * Handle the failure of a request or of a retry of it. If no host is
+	 * available, pause the loader until one is (see CircuitBreaker). If the
+	 * request can be retried, the retrier takes it; otherwise it's rejected.
+	 * 
+	 * @param statementName
+	 * @param record
+	 * @param iterator
+	 * @param t
+	 * @param attempt
+	 *            - retries so far
+	 */
+	void onCQLResultFailure(String statementName, ImdbRecord record, ImdbIterator iterator, Throwable t,
+			int attempt) {
+		if (t instanceof NoHostAvailableException) {
+			this.breaker.open(t);
+		}
+		PreparedStatementDefinition stmt = this.statements.get(statementName);
+		if (this.retrier != null && this.breaker.getFailure() == null
+				&& this.retrier.retry(stmt, record, iterator, t, attempt)) {
+			return;
+		}
+		ETLException ex = new ETLException(ETLConstants.ERR_CASS, "Got failure callback executing cql statement "
+				+ statementName + " on record " + record + (attempt > 0 ? " after " + attempt + " retries" : ""), t);
+		if (stmt != null) {
+			reject(stmt, ex, record, iterator);
+		} else {
+			iterator.logFailure(statementName, ex, record, true);
+		}
 	}
 }
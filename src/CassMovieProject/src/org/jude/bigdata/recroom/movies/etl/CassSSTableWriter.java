@@ -0,0 +1,182 @@
+package org.jude.bigdata.recroom.movies.etl;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Writes rows of one table straight to SSTables, offline, with Cassandra's
+ * CQLSSTableWriter. The output directory is ready for sstableloader.
+ *
+ * CQLSSTableWriter lives in the Cassandra server jar, which is not one of our
+ * libs, so we reach it by reflection. The job that uses this runs with
+ * $CASSHOME/lib on the classpath (see controller_r_sstable.sh).
+ *
+ * The create table statement comes from the DDL script the tables were made
+ * with (see tableSchema()), so the SSTables match the tables they're loaded
+ * into.
+ *
+ * CQLSSTableWriter isn't thread safe, so addRow() is synchronized; role files
+ * loading in parallel share the writer.
+ *
+ * @author mhavey
+ *
+ */
+public class CassSSTableWriter {
+
+	static final String WRITER_CLASS = "org.apache.cassandra.io.sstable.CQLSSTableWriter";
+
+	String tableName;
+	File directory;
+	Object writer = null;
+	Method addRowMethod = null;
+	Method closeMethod = null;
+	int numRows = 0;
+
+	Logger logger = Logger.getLogger(CassSSTableWriter.class);
+
+	/**
+	 * Constructor. Opens the writer.
+	 *
+	 * @param directory
+	 *            - output dir; sstableloader wants it to end in
+	 *            keyspace/table
+	 * @param tableName
+	 * @param schema
+	 *            - create table statement, with keyspace
+	 * @param insert
+	 *            - insert statement with a bind marker per column
+	 * @throws ETLException
+	 */
+	public CassSSTableWriter(File directory, String tableName, String schema, String insert) throws ETLException {
+		this.tableName = tableName;
+		this.directory = directory;
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new ETLException(ETLConstants.ERR_FILE, "Unable to create SSTable directory *" + directory + "*");
+		}
+		try {
+			Class<?> writerClass = Class.forName(WRITER_CLASS);
+			Object builder = writerClass.getMethod("builder").invoke(null);
+			builder = invoke(builder, "inDirectory", File.class, directory);
+			builder = invoke(builder, "forTable", String.class, schema);
+			builder = invoke(builder, "using", String.class, insert);
+			this.writer = builder.getClass().getMethod("build").invoke(builder);
+			this.addRowMethod = writerClass.getMethod("addRow", Object[].class);
+			this.closeMethod = writerClass.getMethod("close");
+		} catch (ClassNotFoundException e) {
+			throw new ETLException(ETLConstants.ERR_FILE,
+					"Cassandra server jars are not on the classpath; can't find " + WRITER_CLASS, e);
+		} catch (InvocationTargetException e) {
+			throw new ETLException(ETLConstants.ERR_FILE,
+					"Error opening SSTable writer for table *" + tableName + "* in *" + directory + "*",
+					e.getCause());
+		} catch (Exception e) {
+			throw new ETLException(ETLConstants.ERR_FILE,
+					"Error opening SSTable writer for table *" + tableName + "* in *" + directory + "*", e);
+		}
+		logger.info("Writing SSTables for table *" + tableName + "* to *" + directory + "*");
+	}
+
+	/**
+	 * The create table statement of the given table in the DDL script (e.g.,
+	 * ddl/movie.cql), with the keyspace put on the table name. Comments (// or
+	 * --) are dropped; each statement ends with a semicolon.
+	 *
+	 * @param ddlFile
+	 * @param keyspace
+	 * @param tableName
+	 * @return
+	 * @throws ETLException
+	 */
+	public static String tableSchema(File ddlFile, String keyspace, String tableName) throws ETLException {
+		StringBuilder script = new StringBuilder();
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(ddlFile), "UTF-8"));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				script.append(line.replaceFirst("(//|--).*", "")).append('\n');
+			}
+		} catch (IOException e) {
+			throw new ETLException(ETLConstants.ERR_FILE, "Error reading DDL file *" + ddlFile + "*", e);
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (IOException e) {
+					// nothing more to read
+				}
+			}
+		}
+
+		Pattern create = Pattern.compile("\\s*create\\s+table\\s+(if\\s+not\\s+exists\\s+)?(\\w+\\.)?"
+				+ Pattern.quote(tableName) + "\\s*\\((.*)", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+		for (String statement : script.toString().split(";")) {
+			Matcher m = create.matcher(statement);
+			if (m.matches()) {
+				return "create table " + keyspace + "." + tableName + " (" + m.group(3).trim();
+			}
+		}
+		throw new ETLException(ETLConstants.ERR_FILE, "No create table for *" + tableName + "* in DDL file *"
+				+ ddlFile + "*");
+	}
+
+	/**
+	 * Call a builder method taking one argument
+	 *
+	 * @param builder
+	 * @param name
+	 * @param argType
+	 * @param arg
+	 * @return
+	 * @throws Exception
+	 */
+	static Object invoke(Object builder, String name, Class<?> argType, Object arg) throws Exception {
+		return builder.getClass().getMethod(name, argType).invoke(builder, arg);
+	}
+
+	/**
+	 * Add a row. Values in the order of the insert statement's bind markers.
+	 *
+	 * @param values
+	 * @throws ETLException
+	 */
+	public synchronized void addRow(Object... values) throws ETLException {
+		try {
+			this.addRowMethod.invoke(this.writer, (Object) values);
+			this.numRows++;
+		} catch (InvocationTargetException e) {
+			throw new ETLException(ETLConstants.ERR_FILE, "Error writing SSTable row for table *" + this.tableName
+					+ "* values " + Arrays.toString(values), e.getCause());
+		} catch (IllegalAccessException e) {
+			throw new ETLException(ETLConstants.ERR_FILE, "Error writing SSTable row for table *" + this.tableName
+					+ "*", e);
+		}
+	}
+
+	/**
+	 * Flush and close. Safe to call more than once.
+	 */
+	public synchronized void safeClose() {
+		if (this.writer == null) {
+			return;
+		}
+		try {
+			this.closeMethod.invoke(this.writer);
+			logger.info("Closed SSTable writer for table *" + this.tableName + "*. Rows: " + this.numRows);
+		} catch (Throwable t) {
+			ETLException.logError(logger, ETLConstants.ERR_FILE, "Closing SSTable writer for table *"
+					+ this.tableName + "*", t);
+		}
+		this.writer = null;
+	}
+}
@@ -0,0 +1,129 @@
+package org.jude.bigdata.recroom.movies.etl;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Pauses the loader while the cluster is unreachable, instead of exiting and
+ * losing what's in flight. NoHostAvailableException opens the breaker; from
+ * then on the loader (and the retries, see WriteRetrier) wait in
+ * awaitClosed() until the driver sees a host up again, which closes it.
+ *
+ * If no host comes back within the max wait, the breaker gives up for good:
+ * awaitClosed() returns false from then on, and getFailure() is the error.
+ * The connection rejects what's sent or retried after that, so it's logged
+ * rather than lost, and the load fails with the error (see
+ * CassDBConnection.runAsyncCQL()).
+ *
+ * @author mhavey
+ *
+ */
+public class CircuitBreaker {
+
+	public static final long CHECK_INTERVAL_MS = 1000;
+	static final long PROGRESS_INTERVAL_MS = 30000;
+
+	CassDBConnection cConnection;
+	long maxWaitMs;
+	volatile boolean open = false;
+	volatile ETLException failure = null;
+	long openedAt = 0;
+	int timesOpened = 0;
+
+	Logger logger = Logger.getLogger(CircuitBreaker.class);
+
+	/**
+	 * Constructor
+	 *
+	 * @param cConnection
+	 *            - whose cluster we watch
+	 * @param maxWaitMs
+	 *            - how long to wait for a host before giving up
+	 */
+	public CircuitBreaker(CassDBConnection cConnection, long maxWaitMs) {
+		this.cConnection = cConnection;
+		this.maxWaitMs = maxWaitMs;
+	}
+
+	public boolean isOpen() {
+		return this.open;
+	}
+
+	/**
+	 * The cluster can't be reached; pause the loader
+	 *
+	 * @param cause
+	 */
+	public synchronized void open(Throwable cause) {
+		if (this.open) {
+			return;
+		}
+		this.open = true;
+		this.openedAt = System.currentTimeMillis();
+		this.timesOpened++;
+		logger.warn("No Cassandra host available; pausing the loader until one is back: " + cause);
+	}
+
+	/**
+	 * The error the breaker gave up with, or null if it hasn't
+	 *
+	 * @return
+	 */
+	public ETLException getFailure() {
+		return this.failure;
+	}
+
+	/**
+	 * Return right away if the breaker is closed. If it's open, wait until a
+	 * host is up. Whoever is waiting does the checking.
+	 *
+	 * @return false if there's no host and the breaker has given up
+	 */
+	public boolean awaitClosed() {
+		if (!this.open) {
+			return true;
+		}
+		synchronized (this) {
+			long nextProgress = System.currentTimeMillis() + PROGRESS_INTERVAL_MS;
+			while (this.open) {
+				if (this.failure != null) {
+					return false;
+				}
+				long now = System.currentTimeMillis();
+				if (this.cConnection.isAnyHostUp()) {
+					this.open = false;
+					logger.info("Cassandra host available again; resuming the loader after "
+							+ (now - this.openedAt) / 1000 + "s");
+					notifyAll();
+					return true;
+				}
+				if (now - this.openedAt > this.maxWaitMs) {
+					this.failure = new ETLException(ETLConstants.ERR_CASS, "No Cassandra host available for "
+							+ this.maxWaitMs / 1000 + "s");
+					logger.error(this.failure.getMessage() + "; giving up, rejecting what's pending");
+					notifyAll();
+					return false;
+				}
+				if (now >= nextProgress) {
+					logger.info("Still waiting for a Cassandra host, " + (now - this.openedAt) / 1000 + "s so far");
+					nextProgress = now + PROGRESS_INTERVAL_MS;
+				}
+				try {
+					wait(CHECK_INTERVAL_MS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return true;
+				}
+			}
+			return this.failure == null;
+		}
+	}
+
+	/**
+	 * How many times the cluster went away during the job
+	 *
+	 * @return
+	 */
+	public synchronized int getTimesOpened() {
+		return this.timesOpened;
+	}
+}
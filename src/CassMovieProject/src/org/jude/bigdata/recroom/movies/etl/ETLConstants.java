@@ -62,12 +62,39 @@ public class ETLConstants {
 
 	public static final String PROP_CASS_KEYSPACE = "CassKeyspace";
 	public static final String PROP_CASS_NODES = "CassNodes";
+	public static final String PROP_CASS_TOKEN_AWARE = "CassTokenAware";
+	public static final String PROP_CASS_LOCAL_DC = "CassLocalDC";
+	public static final String PROP_CASS_CONNECTIONS_PER_HOST = "CassConnectionsPerHost";
+	public static final String PROP_CASS_MAX_REQUESTS_PER_CONNECTION = "CassMaxRequestsPerConnection";
+	public static final String PROP_CASS_COMPRESSION = "CassCompression";
+	public static final String PROP_CASS_CONNECT_TIMEOUT_MS = "CassConnectTimeoutMs";
+	public static final String PROP_CASS_READ_TIMEOUT_MS = "CassReadTimeoutMs";
 	public static final String PROP_IMDBPATH = "IMDBPath";
 	public static final String PROP_CSVPATH = "CSVPath";
 	public static final String PROP_LOG4J = "LOG4J";
+	public static final String PROP_BATCH_SIZE = "BatchSize";
+	public static final String PROP_BATCH_LINGER_MS = "BatchLingerMs";
+	public static final String PROP_WINDOW = "InFlightWindow";
+	public static final String PROP_WINDOW_ADAPTIVE = "InFlightWindowAdaptive";
+	public static final String PROP_WINDOW_MIN = "InFlightWindowMin";
+	public static final String PROP_WINDOW_MAX = "InFlightWindowMax";
+	public static final String PROP_GZIP_THREADS = "GzipThreads";
+	public static final String PROP_LIST_SIDECAR = "ListSidecar";
+	public static final String PROP_CSV_GZIP = "CsvGzip";
+	public static final String PROP_REJECTS_PATH = "RejectsPath";
+	public static final String PROP_DDL_FILE = "DDLFile";
+	public static final String PROP_WRITE_RATE = "WriteRate";
+	public static final String PROP_WRITE_RATE_FILE = "WriteRateFile";
+	public static final String PROP_RETRY_MAX_ATTEMPTS = "RetryMaxAttempts";
+	public static final String PROP_RETRY_BASE_MS = "RetryBaseMs";
+	public static final String PROP_RETRY_MAX_MS = "RetryMaxMs";
+	public static final String PROP_RETRY_BUDGET_PERCENT = "RetryBudgetPercent";
+	public static final String PROP_HOSTS_DOWN_MAX_WAIT_MS = "HostsDownMaxWaitMs";
+	public static final String PROP_METRICS_INTERVAL_MS = "MetricsIntervalMs";
 
 	public static final String STMT_MOVIE = "movie";
 	public static final String STMT_SERIES = "series";
+	public static final String STMT_MOVIE_MERGED = "movie_merged";
 	public static final String STMT_MOVIE_CHECK_PREFIX = "movie_check_";
 	public static final String STMT_MOVIE_UPDATE_PREFIX = "movie_";
 	public static final String STMT_MOVIE_UDT_SUFFIX = "_udt";
@@ -2,11 +2,22 @@ package org.jude.bigdata.recroom.movies.etl;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.log4j.Logger;
 import org.apache.log4j.PropertyConfigurator;
 
+import com.datastax.driver.core.BatchStatement;
+
 /**
  * Here's where we run ETL jobs to get data from IMDB files and write to Cass.
  * There are four types of data to load: movie, role, doc, contributor. The
@@ -23,6 +34,7 @@ public class ETLController {
 	static final String JOB_DOCS = "doc";
 	static final String JOB_ROLES = "role";
 	static final String JOB_ROLE_FAST = "rolefast";
+	static final String JOB_ROLE_SSTABLE = "rolesstable";
 	static final String JOB_CONTRIBUTORS = "contrib";
 
 	static final String PROPSOPT = "--props=";
@@ -30,19 +42,46 @@ public class ETLController {
 	static final String LOG4JOPT = "--log4j=";
 	static final int LOG4JOPT_LEN = LOG4JOPT.length();
 	static final String CLEANOPT = "-cleanMode";
+	static final String PIPELINEOPT = "-pipelineMode";
+	static final String NOLWTOPT = "-noLwt";
+	static final String MERGEJOINOPT = "-mergeJoin";
+	static final String PARALLELOPT = "--parallelFiles=";
+	static final int PARALLELOPT_LEN = PARALLELOPT.length();
+	static final String CHUNKSOPT = "--parallelChunks=";
+	static final int CHUNKSOPT_LEN = CHUNKSOPT.length();
+	static final String MOVIEINDEXOPT = "--movieIndex=";
+	static final int MOVIEINDEXOPT_LEN = MOVIEINDEXOPT.length();
+	static final String REPLAYOPT = "--replay=";
+	static final int REPLAYOPT_LEN = REPLAYOPT.length();
+	static final String MOVIEINDEX_IMDB = "imdb";
+	static final String MOVIEINDEX_CASS = "cass";
+	static final String MOVIEINDEX_FILE = "file";
 
 	static final String USAGE = "USAGE: ETLController " + JOB_MOVIES + "|" + JOB_DOCS + "|" + JOB_ROLES + "|"
-			+ JOB_CONTRIBUTORS + "|" + JOB_ROLE_FAST + " [<movieFile>...]" + " " + PROPSOPT + "<propsFile> " + LOG4JOPT
-			+ "<propsFile> [" + CLEANOPT + "]";
+			+ JOB_CONTRIBUTORS + "|" + JOB_ROLE_FAST + "|" + JOB_ROLE_SSTABLE + " [<movieFile>...]" + " " + PROPSOPT
+			+ "<propsFile> " + LOG4JOPT + "<propsFile> [" + CLEANOPT + "] [" + PARALLELOPT + "<numFiles>] ["
+			+ CHUNKSOPT + "<numChunks>] [" + PIPELINEOPT + "] [" + NOLWTOPT + "] [" + MERGEJOINOPT + "] [" + MOVIEINDEXOPT + MOVIEINDEX_IMDB + "|"
+			+ MOVIEINDEX_CASS + "|" + MOVIEINDEX_FILE + "] [" + REPLAYOPT + "<rejectsFile>]";
 
 	String job;
 	boolean cleanMode = false;
+	int parallelFiles = 1;
+	int parallelChunks = 1;
+	boolean pipelineMode = false;
+	boolean noLwt = false;
+	boolean mergeJoin = false;
+	String movieIndexSource = null;
+	File replayFile = null;
 	String propsFile = null;
 	String log4jFile = null;
 	List<String> imdbFiles = new ArrayList<String>();
 	CassDBConnection cConnection = null;
 	String imdbFilePath = null;
 	String csvFilePath = null;
+	boolean csvGzip = false;
+	String keyspace = null;
+	String rejectsPath = null;
+	String ddlFile = null;
 
 	Logger logger = Logger.getLogger(ETLController.class);
 
@@ -88,6 +127,17 @@ public class ETLController {
 		}
 	}
 
+	/**
+	 * Loads one IMDB file. Used to hand the per-file work of a job to
+	 * loadFiles(), which may run several of them at once.
+	 * 
+	 * @author mhavey
+	 * 
+	 */
+	interface FileLoad {
+		void load(String fileName) throws ETLException;
+	}
+
 	/**
 	 * Default constructor
 	 */
@@ -104,14 +154,28 @@ public class ETLController {
 			// Load props and setup Cass Connection
 			ETLProperties props = new ETLProperties();
 			props.loadProperties(propsFile);
-			if (!this.job.equals(JOB_ROLE_FAST)) {
+			if (!this.job.equals(JOB_ROLE_FAST) && !this.job.equals(JOB_ROLE_SSTABLE)) {
 				// we use connection always except when doing fast role
 				this.cConnection = new CassDBConnection();
 				this.cConnection.configure(props);
 			}
 			this.imdbFilePath = props.getString(ETLConstants.PROP_IMDBPATH);
-			if (this.job.equals(JOB_ROLE_FAST)) {
+			if (this.job.equals(JOB_ROLE_FAST) || this.job.equals(JOB_ROLE_SSTABLE)) {
 				this.csvFilePath = props.getString(ETLConstants.PROP_CSVPATH);
+				this.keyspace = props.getString(ETLConstants.PROP_CASS_KEYSPACE);
+				this.csvGzip = Boolean.parseBoolean(props.getString(ETLConstants.PROP_CSV_GZIP, "false"));
+				this.ddlFile = props.getString(ETLConstants.PROP_DDL_FILE, DEFAULT_DDL_FILE);
+			} else {
+				// other jobs use the export dir only to keep the movie index
+				this.csvFilePath = props.getString(ETLConstants.PROP_CSVPATH, null);
+			}
+			this.rejectsPath = props.getString(ETLConstants.PROP_REJECTS_PATH, this.csvFilePath);
+			LoadMetrics.instance().setInterval(props.getInt(ETLConstants.PROP_METRICS_INTERVAL_MS,
+					(int) LoadMetrics.DEFAULT_INTERVAL_MS));
+			if (this.replayFile != null && this.mergeJoin) {
+				// the join needs whole files in order
+				logger.info("Replaying rejects; ignoring " + MERGEJOINOPT);
+				this.mergeJoin = false;
 			}
 			logger.info("Controller config OK");
 		} catch (ETLException e) {
@@ -132,8 +196,13 @@ public class ETLController {
 			}
 
 			String jobSpec = this.job
-					+ (this.cleanMode ? " clean" : " load " + (this.imdbFiles.size() == 0 ? "" : this.imdbFiles));
+					+ (this.cleanMode ? " clean" : " load " + (this.imdbFiles.size() == 0 ? "" : this.imdbFiles))
+					+ (this.replayFile == null ? "" : " replay " + this.replayFile);
 			logger.info("Job start " + jobSpec);
+			LoadMetrics.instance().start();
+			if (!this.cleanMode) {
+				openRejectsFile();
+			}
 			switch (job) {
 			case JOB_MOVIES:
 				if (this.cleanMode) {
@@ -159,6 +228,9 @@ public class ETLController {
 			case JOB_ROLE_FAST:
 				runAddRolesFast();
 				break;
+			case JOB_ROLE_SSTABLE:
+				runAddRolesSSTable();
+				break;
 			case JOB_CONTRIBUTORS:
 				if (this.cleanMode) {
 					truncate(ETLConstants.TABLES_CONTRIBUTOR);
@@ -169,12 +241,21 @@ public class ETLController {
 			default:
 				throw new RuntimeException("Illegal job " + job);
 			}
+			if (cConnection != null) {
+				cConnection.checkCluster();
+			}
 			logger.info("Job end " + jobSpec);
 
 		} catch (ETLException e) {
 			ETLException.logError(logger, "Error executing jobs", e);
 			throw new RuntimeException(e.getMessage(), e);
 		} finally {
+			// rejects still queued; rejects summary
+			RejectLog.close();
+
+			// throughput and latency for the job
+			LoadMetrics.report(this.job);
+
 			// disconnect from Cass
 			try {
 				if (cConnection != null) {
@@ -187,6 +268,26 @@ public class ETLController {
 		}
 	}
 
+	/**
+	 * Have the rejects of the job written to <job>.rejects.jsonl in the
+	 * rejects dir (the export dir if not given), or, when replaying, to
+	 * <job>.replay.rejects.jsonl. No rejects file if there is no such dir.
+	 * 
+	 * @throws ETLException
+	 */
+	void openRejectsFile() throws ETLException {
+		if (this.rejectsPath == null) {
+			return;
+		}
+		File file = new File(this.rejectsPath, this.job + (this.replayFile == null ? "" : ".replay")
+				+ RejectsFile.SUFFIX);
+		if (this.replayFile != null && file.getAbsoluteFile().equals(this.replayFile.getAbsoluteFile())) {
+			throw new ETLException(ETLConstants.ERR_USAGE, "Can't replay *" + this.replayFile
+					+ "*; this run writes its rejects there. Move it first.");
+		}
+		RejectLog.instance().openFile(new RejectsFile(file));
+	}
+
 	void truncate(String... tableNames) throws ETLException {
 		for (String tableName : tableNames) {
 			this.cConnection.truncate(tableName);
@@ -206,54 +307,6 @@ public class ETLController {
 		this.cConnection.createUDT(ETLConstants.SUBDOC_PARENTAL);
 		this.cConnection.createUDT(ETLConstants.SUBDOC_RATING);
 
-		// create the statements to create a movie and series; just update with
-		// if not exists check
-		if (useImdbFile("movies")) {
-			this.cConnection.createStatement(ETLConstants.STMT_MOVIE,
-					"insert into movie(movie_id, series_id, series_type, release_year, series_end_year, etl_status) values(?, ?, ?, ?, ?, 1) if not exists",
-					ETLConstants.FIELD_MOVIE_ID, ETLConstants.FIELD_SERIES_ID, ETLConstants.FIELD_SERIES_TYPE,
-					ETLConstants.FIELD_RELEASE_YEAR, ETLConstants.FIELD_SERIES_END_YEAR);
-			this.cConnection.createStatement(ETLConstants.STMT_SERIES,
-					"insert into series(series_id, series_end_year, movie_id, release_year) values(?, ?, ?, ?)",
-					ETLConstants.FIELD_SERIES_ID, ETLConstants.FIELD_SERIES_END_YEAR, ETLConstants.FIELD_MOVIE_ID,
-					ETLConstants.FIELD_RELEASE_YEAR);
-
-			// first, the main movie file; read it and dump to movie and series
-			// tables.
-			// also do an RI check of episode vs. series
-			// A series with N episodes comes on N successive lines. There is
-			// logic here to tie episode to series; it assumes this order.
-			ImdbIterator creationIterator = new ImdbIterator("movies", this.imdbFilePath);
-			String lastSeries = null;
-
-			while (!creationIterator.isEOF()) {
-				ImdbRecord next = creationIterator.nextRecord();
-				if (next != null) {
-					String series = next.getMandatoryString(ETLConstants.FIELD_SERIES_ID);
-					String type = next.getMandatoryString(ETLConstants.FIELD_SERIES_TYPE);
-					if (lastSeries == null || !lastSeries.equals(series)) {
-						lastSeries = series;
-						if (type.equals(ETLConstants.SERIES_SERIES) || type.equals(ETLConstants.SERIES_FEATURE)) {
-							this.cConnection.runAsyncCQL(ETLConstants.STMT_MOVIE, next, creationIterator);
-						} else {
-							creationIterator.logFailure(new ETLException(ETLConstants.ERR_RECORD_SEMANTIC,
-									"Movie introducing new series must be series or feature"), next, false);
-						}
-					} else {
-						if (type.equals(ETLConstants.SERIES_EPISODE)) {
-							this.cConnection.runAsyncCQL(ETLConstants.STMT_MOVIE, next, creationIterator);
-							this.cConnection.runAsyncCQL(ETLConstants.STMT_SERIES, next, creationIterator);
-						} else {
-							creationIterator.logFailure(new ETLException(ETLConstants.ERR_RECORD_SEMANTIC,
-									"Movie in same series must be an episode"), next, false);
-						}
-					}
-				}
-			}
-			creationIterator.runTo(0);
-		}
-
-		// next, process each update file;
 		// these files have movie updates
 		// most are update with compare-and-set check for existence
 		// (etl_status=1).
@@ -273,17 +326,23 @@ public class ETLController {
 				new MovieUpdateRecord("mpaa-ratings-reasons", ETLConstants.SUBDOC_PARENTAL, true),
 				new MovieUpdateRecord("sound-mix", ETLConstants.SUBDOC_TECHNICAL, true) };
 
+		// prepare the statements up front; the files may be loaded in
+		// parallel. The select-then-update (UDT) files merge into what the
+		// plain update files wrote, so they go in a second wave.
+		final Map<String, String> primarySQLs = new HashMap<String, String>();
+		List<MovieUpdateRecord> updateRecs = new ArrayList<MovieUpdateRecord>();
+		List<String> updateFiles = new ArrayList<String>();
+		List<String> udtMergeFiles = new ArrayList<String>();
 		for (int i = 0; i < recs.length; i++) {
 			if (useImdbFile(recs[i].getFileName()) || useImdbFile("movie-other")) {
-				ImdbIterator updateIterator = new ImdbIterator(recs[i].getFileName(), this.imdbFilePath);
 
 				// prepare the movie update statement
 				String updateName = ETLConstants.STMT_MOVIE_UPDATE_PREFIX + recs[i].getTableAttribute();
 				String cql = "update movie set " + recs[i].getTableAttribute() + "=? where movie_id=?";
-				if (!recs[i].isUpdateUDT()) {
-					cql += " if etl_status=1";
-				} else {
+				if (recs[i].isUpdateUDT()) {
 					updateName += ETLConstants.STMT_MOVIE_UDT_SUFFIX;
+				} else if (!this.noLwt) {
+					cql += " if etl_status=1";
 				}
 				logger.info("Movie update cql *" + cql + "*");
 				this.cConnection.createStatement(updateName, cql, recs[i].getTableAttribute(),
@@ -300,17 +359,238 @@ public class ETLController {
 					this.cConnection.createStatement(checkName, cql, ETLConstants.FIELD_MOVIE_ID)
 							.addFollowonUpdateStatements(updateName);
 					primarySQL = checkName;
+					udtMergeFiles.add(recs[i].getFileName());
+				} else {
+					updateFiles.add(recs[i].getFileName());
+				}
+				primarySQLs.put(recs[i].getFileName(), primarySQL);
+				updateRecs.add(recs[i]);
+			}
+		}
+
+		// create the statements to create a movie and series; just update with
+		// if not exists check. Without LWT, the movies loaded so far are kept
+		// in a movie index and dupes are rejected here.
+		MovieIndex loadedMovies = null;
+		MovieMergeJoin join = null;
+		if (useImdbFile("movies")) {
+			this.cConnection.createStatement(ETLConstants.STMT_MOVIE,
+					"insert into movie(movie_id, series_id, series_type, release_year, series_end_year, etl_status) values(?, ?, ?, ?, ?, 1)"
+							+ (this.noLwt ? "" : " if not exists"),
+					ETLConstants.FIELD_MOVIE_ID, ETLConstants.FIELD_SERIES_ID, ETLConstants.FIELD_SERIES_TYPE,
+					ETLConstants.FIELD_RELEASE_YEAR, ETLConstants.FIELD_SERIES_END_YEAR);
+			this.cConnection.createStatement(ETLConstants.STMT_SERIES,
+					"insert into series(series_id, series_end_year, movie_id, release_year) values(?, ?, ?, ?)",
+					ETLConstants.FIELD_SERIES_ID, ETLConstants.FIELD_SERIES_END_YEAR, ETLConstants.FIELD_MOVIE_ID,
+					ETLConstants.FIELD_RELEASE_YEAR);
+
+			// first, the main movie file; read it and dump to movie and series
+			// tables.
+			// also do an RI check of episode vs. series
+			// A series with N episodes comes on N successive lines. There is
+			// logic here to tie episode to series; it assumes this order.
+			// In merge join mode, the update files are read along with it and
+			// each movie is written whole with one insert.
+			ImdbIterator creationIterator = this.mergeJoin ? newOrderedIterator("movies") : newIterator("movies");
+			SeriesTracker seriesTracker = new SeriesTracker();
+			// a movie is in the index once its insert is sent; if the insert
+			// is rejected, it comes out again once they're all done
+			final ConcurrentLinkedQueue<String> rejectedMovies = new ConcurrentLinkedQueue<String>();
+			if (this.noLwt) {
+				loadedMovies = new MovieIndex();
+				creationIterator.setRejectListener(new ImdbIterator.RejectListener() {
+					public void rejected(String statementName, ImdbRecord record) {
+						if (statementName.equals(ETLConstants.STMT_MOVIE)
+								|| statementName.equals(ETLConstants.STMT_MOVIE_MERGED)) {
+							rejectedMovies.add((String) record.get(ETLConstants.FIELD_MOVIE_ID));
+						}
+					}
+				});
+			}
+			if (this.mergeJoin && updateRecs.size() > 0) {
+				join = openMergeJoin(creationIterator, updateRecs, primarySQLs);
+			}
+
+			while (!creationIterator.isEOF()) {
+				ImdbRecord next = (join == null) ? creationIterator.nextRecord() : join.nextRecord();
+				if (next != null) {
+					boolean merge = join != null && join.isInOrder();
+					boolean isEpisode;
+					try {
+						// replayed movies are not a whole series each
+						isEpisode = (this.replayFile == null) ? seriesTracker.isEpisode(next)
+								: ETLConstants.SERIES_EPISODE.equals(next
+										.getMandatoryString(ETLConstants.FIELD_SERIES_TYPE));
+					} catch (ETLException e) {
+						if (!ETLConstants.ERR_RECORD_SEMANTIC.equals(e.getErrCode())) {
+							throw e;
+						}
+						if (merge) {
+							join.putAsideUpdates();
+						}
+						creationIterator.logFailure(e, next, false);
+						continue;
+					}
+					if (loadedMovies != null && !loadedMovies.addMovie(next)) {
+						if (merge) {
+							join.putAsideUpdates();
+						}
+						creationIterator.logFailure(CassDBConnection.notApplied(ETLConstants.STMT_MOVIE, next,
+								CassDBConnection.NOT_APPLIED + " (dupe in this load)"), next, false);
+					} else if (merge) {
+						join.mergeUpdates(next);
+						this.cConnection.runAsyncCQL(ETLConstants.STMT_MOVIE_MERGED, next, creationIterator);
+					} else {
+						this.cConnection.runAsyncCQL(ETLConstants.STMT_MOVIE, next, creationIterator);
+					}
+					if (isEpisode) {
+						this.cConnection.runAsyncCQL(ETLConstants.STMT_SERIES, next, creationIterator);
+					}
 				}
+			}
+			creationIterator.runTo(0);
+			if (loadedMovies != null && !rejectedMovies.isEmpty()) {
+				int removed = 0;
+				for (String movieID : rejectedMovies) {
+					removed += loadedMovies.remove(movieID) ? 1 : 0;
+				}
+				logger.info("Took " + removed + " movies whose insert was rejected out of the movie index");
+			}
+			if (loadedMovies != null && getMovieIndexFile() != null && this.replayFile == null) {
+				loadedMovies.save(getMovieIndexFile());
+			}
+		}
+
+		// without LWT, the plain updates check that the movie exists against
+		// the movie index instead of with "if etl_status=1". Replayed movies
+		// are only some of them.
+		final MovieIndex existingMovies;
+		if (this.noLwt && updateFiles.size() > 0) {
+			existingMovies = (loadedMovies != null && this.replayFile == null) ? loadedMovies : loadExistingMovies();
+		} else {
+			existingMovies = null;
+		}
 
+		// in merge join mode, the update files are already read; only the rows
+		// the join put aside are left to send, the old way
+		if (join != null) {
+			join.logSummary();
+			for (MovieMergeJoin.Source source : join.getSources()) {
+				ImdbIterator updateIterator = source.getIterator();
+				// a select checks for the movie itself
+				boolean checkExists = existingMovies != null && updateFiles.contains(source.getFileName())
+						&& source.getStatementName().equals(primarySQLs.get(source.getFileName()));
+				for (ImdbRecord next : source.getPutAside()) {
+					sendMovieUpdate(source.getStatementName(), next, updateIterator, checkExists ? existingMovies
+							: null);
+				}
+				updateIterator.runTo(0);
+			}
+			return;
+		}
+
+		// next, process each update file;
+		final List<String> checkedFiles = updateFiles;
+		FileLoad updateLoad = new FileLoad() {
+			public void load(String fileName) throws ETLException {
+				ImdbIterator updateIterator = newIterator(fileName);
+				String primarySQL = primarySQLs.get(fileName);
+				boolean checkExists = existingMovies != null && checkedFiles.contains(fileName);
 				while (!updateIterator.isEOF()) {
 					ImdbRecord next = updateIterator.nextRecord();
 					if (next != null) {
-						this.cConnection.runAsyncCQL(primarySQL, next, updateIterator);
+						sendMovieUpdate(primarySQL, next, updateIterator, checkExists ? existingMovies : null);
 					}
 				}
 				updateIterator.runTo(0);
 			}
+		};
+		loadFiles(updateFiles, updateLoad);
+		loadFiles(udtMergeFiles, updateLoad);
+	}
+
+	/**
+	 * Send one movie update. If given the movies that exist, check against
+	 * them here (no LWT).
+	 * 
+	 * @param primarySQL
+	 * @param record
+	 * @param iterator
+	 * @param existingMovies
+	 *            - or null to let the statement check
+	 * @throws ETLException
+	 */
+	void sendMovieUpdate(String primarySQL, ImdbRecord record, ImdbIterator iterator, MovieIndex existingMovies)
+			throws ETLException {
+		if (existingMovies != null
+				&& !existingMovies.contains(record.getMandatoryString(ETLConstants.FIELD_MOVIE_ID))) {
+			iterator.logFailure(CassDBConnection.notApplied(primarySQL, record, CassDBConnection.NOT_APPLIED), record,
+					false);
+			return;
+		}
+		this.cConnection.runAsyncCQL(primarySQL, record, iterator);
+	}
+
+	/**
+	 * Set up the merge join of the movie list with the update files, and the
+	 * insert that writes a whole movie. Columns a movie has no value for are
+	 * left unset, so they don't write tombstones.
+	 * 
+	 * @param movieIterator
+	 * @param updateRecs
+	 *            - the update files, in the order the updates are applied
+	 * @param primarySQLs
+	 *            - statement to send each file's rows the old way
+	 * @return
+	 * @throws ETLException
+	 */
+	MovieMergeJoin openMergeJoin(ImdbIterator movieIterator, List<MovieUpdateRecord> updateRecs,
+			Map<String, String> primarySQLs) throws ETLException {
+		MovieMergeJoin join = new MovieMergeJoin(movieIterator);
+		List<String> columns = new ArrayList<String>(Arrays.asList(ETLConstants.FIELD_MOVIE_ID,
+				ETLConstants.FIELD_SERIES_ID, ETLConstants.FIELD_SERIES_TYPE, ETLConstants.FIELD_RELEASE_YEAR,
+				ETLConstants.FIELD_SERIES_END_YEAR));
+		for (MovieUpdateRecord rec : updateRecs) {
+			if (!columns.contains(rec.getTableAttribute())) {
+				columns.add(rec.getTableAttribute());
+			}
+			// a put-aside row of a file that sets a UDT (certificates) must not
+			// replace it whole: the movie already has what the files merging
+			// into it (mpaa-ratings-reasons) added. Select and merge it instead.
+			String statementName = primarySQLs.get(rec.getFileName());
+			if (rec.isUDT() && !rec.isUpdateUDT() && isMergedInto(rec, updateRecs)) {
+				statementName = ETLConstants.STMT_MOVIE_CHECK_PREFIX + rec.getTableAttribute();
+			}
+			join.addSource(newOrderedIterator(rec.getFileName()), rec.getFileName(), rec.getTableAttribute(),
+					rec.isUpdateUDT(), statementName);
+		}
+		String cql = "insert into movie(";
+		String values = "";
+		for (String column : columns) {
+			cql += column + ", ";
+			values += "?, ";
 		}
+		cql += "etl_status) values(" + values + "1)" + (this.noLwt ? "" : " if not exists");
+		logger.info("Movie merge join cql *" + cql + "*");
+		this.cConnection.createStatement(ETLConstants.STMT_MOVIE_MERGED, cql, columns.toArray(new String[0]))
+				.leaveNullsUnset();
+		return join;
+	}
+
+	/**
+	 * Does one of the update files merge into the UDT the given file sets?
+	 * 
+	 * @param rec
+	 * @param updateRecs
+	 * @return
+	 */
+	static boolean isMergedInto(MovieUpdateRecord rec, List<MovieUpdateRecord> updateRecs) {
+		for (MovieUpdateRecord other : updateRecs) {
+			if (other.isUpdateUDT() && other.getTableAttribute().equals(rec.getTableAttribute())) {
+				return true;
+			}
+		}
+		return false;
 	}
 
 	/**
@@ -324,35 +604,45 @@ public class ETLController {
 		this.cConnection.createStatement(ETLConstants.STMT_DOC_POST,
 				"insert into post_for_movie_or_contrib_by_type(author, subject_type, subject_id, post_id, post_content, post_type, post_subtype) values(?, 'M', ?, uuid(), ?, ?, ?)",
 				ETLConstants.FIELD_DOC_AUTHOR, ETLConstants.FIELD_MOVIE_ID, ETLConstants.FIELD_DOC_TEXT,
-				ETLConstants.FIELD_DOC_TYPE, ETLConstants.FIELD_DOC_SUBTYPE);
+				ETLConstants.FIELD_DOC_TYPE, ETLConstants.FIELD_DOC_SUBTYPE)
+				.batchOn(BatchStatement.Type.UNLOGGED, ETLConstants.FIELD_MOVIE_ID);
 
 		this.cConnection.createStatement(ETLConstants.STMT_DOC_COUNT,
 				"update posts_typecount set type_count = type_count + 1 where subject_id=? and post_type=?",
-				ETLConstants.FIELD_MOVIE_ID, ETLConstants.FIELD_DOC_TYPE);
+				ETLConstants.FIELD_MOVIE_ID, ETLConstants.FIELD_DOC_TYPE)
+				.batchOn(BatchStatement.Type.COUNTER, ETLConstants.FIELD_MOVIE_ID);
 
 		this.cConnection
 				.createStatement(ETLConstants.STMT_DOC_CHECK, "select release_year from movie where movie_id=?",
 						ETLConstants.FIELD_MOVIE_ID)
-				.addFollowonUpdateStatements(ETLConstants.STMT_DOC_POST, ETLConstants.STMT_DOC_COUNT);
+				.addFollowonUpdateStatements(ETLConstants.STMT_DOC_POST, ETLConstants.STMT_DOC_COUNT)
+				.answerFromMovieIndex();
+		setupMovieIndex();
 		// these files have docs data
 		String[] files = { "alternate-versions", "crazy-credits", "goofs", "literature", "plot", "quotes",
 				"soundtracks", "taglines", "trivia" };
 
-		for (int i = 0; i < files.length; i++) {
-			if (useImdbFile(files[i])) {
-				ImdbIterator iterator = new ImdbIterator(files[i], this.imdbFilePath);
+		loadFiles(selectImdbFiles(files), new FileLoad() {
+			public void load(String fileName) throws ETLException {
+				ImdbIterator iterator = newIterator(fileName);
 
 				while (!iterator.isEOF()) {
 					ImdbRecord next = iterator.nextRecord();
 					if (next != null) {
-						this.cConnection.runAsyncCQL(ETLConstants.STMT_DOC_CHECK, next, iterator);
+						cConnection.runAsyncCQL(ETLConstants.STMT_DOC_CHECK, next, iterator);
 					}
 				}
 				iterator.runTo(0);
 			}
-		}
+		});
 	}
 
+	// SSTables go here, under the export dir
+	static final String SSTABLE_DIR = "sstables";
+
+	// the SSTables' table definitions come from here, unless DDLFile says
+	static final String DEFAULT_DDL_FILE = "../../ddl/movie.cql";
+
 	// use these role files in a couple of places
 	static final String[] roleFiles = { "actors", "actresses", "cinematographers", "composers", "costume-designers",
 			"directors", "distributors", "editors", "miscellaneous-companies", "miscellaneous", "producers",
@@ -369,101 +659,197 @@ public class ETLController {
 	 */
 	void runAddRoles() throws ETLException {
 
-		this.cConnection.createStatement(ETLConstants.STMT_ROLE_CAST,
-				"insert into movie_cast(movie_id, contrib_id, contrib_class, contrib_role, contrib_role_detail, release_year) values(?, ?, ?, ?, ?, ?) if not exists",
+		// without LWT, dupes are caught before the insert, which is plain
+		CassDBConnection.PreparedStatementDefinition castStmt = this.cConnection.createStatement(ETLConstants.STMT_ROLE_CAST,
+				"insert into movie_cast(movie_id, contrib_id, contrib_class, contrib_role, contrib_role_detail, release_year) values(?, ?, ?, ?, ?, ?)"
+						+ (this.noLwt ? "" : " if not exists"),
 				ETLConstants.FIELD_MOVIE_ID, ETLConstants.FIELD_CONTRIB_ID, ETLConstants.FIELD_CONTRIB_CLASS,
 				ETLConstants.FIELD_CONTRIB_ROLE, ETLConstants.FIELD_CONTRIB_ROLEDETAIL,
 				ETLConstants.FIELD_RELEASE_YEAR);
+		if (this.noLwt) {
+			castStmt.dedupeWith(new RoleDeduper());
+		}
 
 		this.cConnection.createStatement(ETLConstants.STMT_ROLE_CONTRIB,
 				"insert into contributor(contrib_id, contrib_type) values(?, ?)", ETLConstants.FIELD_CONTRIB_ID,
-				ETLConstants.FIELD_CONTRIB_TYPE);
+				ETLConstants.FIELD_CONTRIB_TYPE).batchOn(BatchStatement.Type.UNLOGGED, ETLConstants.FIELD_CONTRIB_ID);
 		this.cConnection
 				.createStatement(ETLConstants.STMT_ROLE_CHECK, "select release_year from movie where movie_id=?",
 						ETLConstants.FIELD_MOVIE_ID)
-				.addFollowonUpdateStatements(ETLConstants.STMT_ROLE_CAST, ETLConstants.STMT_ROLE_CONTRIB);
+				.addFollowonUpdateStatements(ETLConstants.STMT_ROLE_CAST, ETLConstants.STMT_ROLE_CONTRIB)
+				.answerFromMovieIndex();
+		setupMovieIndex();
 
-		for (int i = 0; i < roleFiles.length; i++) {
-
-			// open the next file
-			if (useImdbFile(roleFiles[i])) {
-				ImdbIterator creationIterator = new ImdbIterator(roleFiles[i], this.imdbFilePath);
+		loadFiles(selectImdbFiles(roleFiles), new FileLoad() {
+			public void load(String fileName) throws ETLException {
+				ImdbIterator creationIterator = newIterator(fileName);
 				while (!creationIterator.isEOF()) {
 					ImdbRecord next = creationIterator.nextRecord();
 					if (next != null) {
-						this.cConnection.runAsyncCQL(ETLConstants.STMT_ROLE_CHECK, next, creationIterator);
+						cConnection.runAsyncCQL(ETLConstants.STMT_ROLE_CHECK, next, creationIterator);
 					}
 				}
 				creationIterator.runTo(0);
 			}
-		}
+		});
 	}
 
 	/**
-	 * This is step one of the fast role load. For each IMDB role file, it dumps
-	 * to a CSV suitable for direct import to Cass using cqlsh.
+	 * Where the in-JVM role join sends the roles that pass
 	 */
-	void runAddRolesFast() throws ETLException {
+	interface RoleSink {
+		/**
+		 * First role of a contributor (in a role file) whose movie exists
+		 */
+		void contributor(ImdbRecord role) throws ETLException;
+
+		/**
+		 * A role whose movie exists, and not a dupe
+		 */
+		void cast(ImdbRecord role, int releaseYear) throws ETLException;
+	}
 
-		// dump movies to CSV; we need to pass dummy
-		String csvFileName = this.csvFilePath + File.separator + "movies.csv";
-		ETLCsvFile csvFile = new ETLCsvFile(csvFileName);
-		try {
-			csvFile.openForWrite(ETLConstants.FIELD_MOVIE_ID, ETLConstants.FIELD_CONTRIB_ID,
-					ETLConstants.FIELD_CONTRIB_CLASS, ETLConstants.FIELD_CONTRIB_ROLE,
-					ETLConstants.FIELD_CONTRIB_ROLEDETAIL, ETLConstants.FIELD_CONTRIB_TYPE,
-					ETLConstants.FIELD_RELEASE_YEAR, ETLConstants.FIELD_ETL_STATUS);
+	/**
+	 * Join the role files against the movie index, as the role job does with
+	 * its existence check. Roles without a movie, and dupes, go to rejects
+	 * with the role job's messages; the rest go to the sink.
+	 * 
+	 * @param fileNames
+	 * @param movieIndex
+	 * @param sink
+	 * @throws ETLException
+	 */
+	void joinRoleFiles(List<String> fileNames, final MovieIndex movieIndex, final RoleSink sink)
+			throws ETLException {
+		final RoleDeduper deduper = new RoleDeduper();
+		loadFiles(fileNames, new FileLoad() {
+			public void load(String fileName) throws ETLException {
+				ImdbIterator creationIterator = newIterator(fileName);
+				String lastContribID = null;
+				while (!creationIterator.isEOF()) {
+					ImdbRecord next = creationIterator.nextRecord();
+					if (next == null) {
+						continue;
+					}
+					int releaseYear = movieIndex.getReleaseYear(next.getMandatoryString(ETLConstants.FIELD_MOVIE_ID));
+					if (releaseYear == MovieIndex.NOT_FOUND) {
+						creationIterator.logFailure(CassDBConnection.notFound(ETLConstants.STMT_ROLE_CHECK, next),
+								next, false);
+						continue;
+					}
 
-			ImdbIterator creationIterator = new ImdbIterator("movies", this.imdbFilePath);
-			while (!creationIterator.isEOF()) {
-				ImdbRecord next = creationIterator.nextRecord();
-				if (next != null) {
-					csvFile.write(next.append(ETLConstants.FIELD_CONTRIB_ID, "dummy")
-							.append(ETLConstants.FIELD_CONTRIB_CLASS, "dummy")
-							.append(ETLConstants.FIELD_CONTRIB_ROLE, "")
-							.append(ETLConstants.FIELD_CONTRIB_ROLEDETAIL, "")
-							.append(ETLConstants.FIELD_CONTRIB_TYPE, "").append(ETLConstants.FIELD_ETL_STATUS, "1"));
+					// a role file lists each contributor once, with all their
+					// roles; one contributor row each is enough
+					String contribID = next.getMandatoryString(ETLConstants.FIELD_CONTRIB_ID);
+					if (!contribID.equals(lastContribID)) {
+						sink.contributor(next);
+						lastContribID = contribID;
+					}
+					if (deduper.isDupe(next, creationIterator)) {
+						creationIterator.logFailure(CassDBConnection.notApplied(ETLConstants.STMT_ROLE_CAST, next,
+								CassDBConnection.NOT_APPLIED + " (dupe in this load)"), next, false);
+						continue;
+					}
+					sink.cast(next, releaseYear);
 				}
+				creationIterator.runTo(0);
 			}
-			creationIterator.runTo(0);
-			logger.info("Saving CSV file *" + csvFileName + "* of length" + csvFile.getNumLines());
+		});
+	}
 
+	/**
+	 * This is step one of the fast role load. It joins each IMDB role file
+	 * against the movie index and dumps the roles whose movie exists, with the
+	 * movie's release year, to one movie_cast CSV suitable for direct import
+	 * to Cass using cqlsh. Their contributors go to a contributor CSV.
+	 */
+	void runAddRolesFast() throws ETLException {
+		MovieIndex movieIndex = getMovieIndex();
+
+		// a replay's rows go to their own CSVs, to load on top of the others
+		String csvSuffix = (this.replayFile == null ? "" : ".replay")
+				+ (this.csvGzip ? ".csv" + ETLCsvFile.GZ_SUFFIX : ".csv");
+		String castFileName = this.csvFilePath + File.separator + "movie_cast" + csvSuffix;
+		final ETLCsvFile castFile = new ETLCsvFile(castFileName);
+
+		// Writing separate contrib file with just the cols expected.
+		// Should not be necessary, but cqlsh
+		// copy from skipcols doesn't work as expected.
+		String contribFileName = this.csvFilePath + File.separator + "contributor" + csvSuffix;
+		final ETLCsvFile contribFile = new ETLCsvFile(contribFileName);
+		try {
+			castFile.openForWrite(ETLConstants.FIELD_MOVIE_ID, ETLConstants.FIELD_CONTRIB_ID,
+					ETLConstants.FIELD_CONTRIB_CLASS, ETLConstants.FIELD_CONTRIB_ROLE,
+					ETLConstants.FIELD_CONTRIB_ROLEDETAIL, ETLConstants.FIELD_RELEASE_YEAR);
+			contribFile.openForWrite(ETLConstants.FIELD_CONTRIB_ID, ETLConstants.FIELD_CONTRIB_TYPE);
+
+			// role files in parallel share the CSVs
+			joinRoleFiles(selectImdbFiles(roleFiles), movieIndex, new RoleSink() {
+				public void contributor(ImdbRecord role) throws ETLException {
+					synchronized (contribFile) {
+						contribFile.write(role);
+					}
+				}
+
+				public void cast(ImdbRecord role, int releaseYear) throws ETLException {
+					// blank, not missing, so the columns line up; cqlsh loads
+					// a blank as null
+					role.append(ETLConstants.FIELD_RELEASE_YEAR,
+							releaseYear == MovieIndex.NO_YEAR ? "" : String.valueOf(releaseYear));
+					if (role.get(ETLConstants.FIELD_CONTRIB_ROLE) == null) {
+						role.append(ETLConstants.FIELD_CONTRIB_ROLE, "");
+					}
+					if (role.get(ETLConstants.FIELD_CONTRIB_ROLEDETAIL) == null) {
+						role.append(ETLConstants.FIELD_CONTRIB_ROLEDETAIL, "");
+					}
+					synchronized (castFile) {
+						castFile.write(role);
+					}
+				}
+			});
+			logger.info("Saving CSV file *" + castFileName + "* of length" + castFile.getNumLines());
+			logger.info("Saving CSV file *" + contribFileName + "* of length" + contribFile.getNumLines());
 		} finally {
-			csvFile.safeClose();
+			castFile.safeClose();
+			contribFile.safeClose();
 		}
+	}
 
-		// dump each IMDB role file to CSV
-		for (int i = 0; i < roleFiles.length; i++) {
-			csvFileName = this.csvFilePath + File.separator + roleFiles[i] + ".csv";
-			csvFile = new ETLCsvFile(csvFileName);
-
-			// Writing separate contrib file with just the cols expected. Should
-			// not be necessary, but cqlsh
-			// copy from skipcols doesn't work as expected.
-			String csvContribFileName = this.csvFilePath + File.separator + roleFiles[i] + "_contrib.csv";
-			ETLCsvFile csvContribFile = new ETLCsvFile(csvContribFileName);
-			try {
-				csvFile.openForWrite(ETLConstants.FIELD_MOVIE_ID, ETLConstants.FIELD_CONTRIB_ID,
-						ETLConstants.FIELD_CONTRIB_CLASS, ETLConstants.FIELD_CONTRIB_ROLE,
-						ETLConstants.FIELD_CONTRIB_ROLEDETAIL, ETLConstants.FIELD_CONTRIB_TYPE);
-				csvContribFile.openForWrite(ETLConstants.FIELD_CONTRIB_ID, ETLConstants.FIELD_CONTRIB_TYPE);
-
-				// open the next file
-				ImdbIterator creationIterator = new ImdbIterator(roleFiles[i], this.imdbFilePath);
-				while (!creationIterator.isEOF()) {
-					ImdbRecord next = creationIterator.nextRecord();
-					if (next != null) {
-						csvContribFile.write(next);
-						csvFile.write(next);
-					}
+	/**
+	 * The fast role load as SSTables. Joins each role file against the movie
+	 * index and writes movie_cast and contributor rows straight to SSTables
+	 * under the export dir, ready for sstableloader. No Cassandra connection
+	 * needed.
+	 */
+	void runAddRolesSSTable() throws ETLException {
+		MovieIndex movieIndex = getMovieIndex();
+		File sstableDir = new File(this.csvFilePath, SSTABLE_DIR + (this.replayFile == null ? "" : "-replay")
+				+ File.separator + this.keyspace);
+		File ddl = new File(this.ddlFile);
+		final CassSSTableWriter castWriter = new CassSSTableWriter(new File(sstableDir, "movie_cast"), "movie_cast",
+				CassSSTableWriter.tableSchema(ddl, this.keyspace, "movie_cast"),
+				"insert into " + this.keyspace + ".movie_cast (movie_id, contrib_id, contrib_class, contrib_role, "
+						+ "contrib_role_detail, release_year) values (?, ?, ?, ?, ?, ?)");
+		final CassSSTableWriter contribWriter = new CassSSTableWriter(new File(sstableDir, "contributor"),
+				"contributor", CassSSTableWriter.tableSchema(ddl, this.keyspace, "contributor"),
+				"insert into " + this.keyspace + ".contributor (contrib_id, contrib_type) values (?, ?)");
+		try {
+			joinRoleFiles(selectImdbFiles(roleFiles), movieIndex, new RoleSink() {
+				public void contributor(ImdbRecord role) throws ETLException {
+					contribWriter.addRow(role.get(ETLConstants.FIELD_CONTRIB_ID),
+							role.get(ETLConstants.FIELD_CONTRIB_TYPE));
 				}
-				creationIterator.runTo(0);
-				logger.info("Saving CSV file *" + csvFileName + "* of length" + csvFile.getNumLines());
 
-			} finally {
-				csvFile.safeClose();
-				csvContribFile.safeClose();
-			}
+				public void cast(ImdbRecord role, int releaseYear) throws ETLException {
+					castWriter.addRow(role.get(ETLConstants.FIELD_MOVIE_ID), role.get(ETLConstants.FIELD_CONTRIB_ID),
+							role.get(ETLConstants.FIELD_CONTRIB_CLASS), role.get(ETLConstants.FIELD_CONTRIB_ROLE),
+							role.get(ETLConstants.FIELD_CONTRIB_ROLEDETAIL),
+							releaseYear == MovieIndex.NO_YEAR ? null : releaseYear);
+				}
+			});
+		} finally {
+			castWriter.safeClose();
+			contribWriter.safeClose();
 		}
 	}
 
@@ -480,7 +866,7 @@ public class ETLController {
 					"insert into contributor(contrib_id, contrib_type, aliases) values(?, ?, ?)",
 					ETLConstants.FIELD_CONTRIB_ID, ETLConstants.FIELD_CONTRIB_TYPE, ETLConstants.FIELD_CONTRIB_ALIASES);
 
-			ImdbIterator creationIterator = new ImdbIterator("aka-names", this.imdbFilePath);
+			ImdbIterator creationIterator = newIterator("aka-names");
 			while (!creationIterator.isEOF()) {
 				ImdbRecord next = creationIterator.nextRecord();
 				if (next != null) {
@@ -501,7 +887,7 @@ public class ETLController {
 					ETLConstants.FIELD_CONTRIB_DEATH, ETLConstants.FIELD_CONTRIB_DEATH_CAUSE,
 					ETLConstants.FIELD_CONTRIB_SPOUSES, ETLConstants.FIELD_CONTRIB_BIO);
 
-			ImdbIterator updateIterator = new ImdbIterator("biographies", this.imdbFilePath);
+			ImdbIterator updateIterator = newIterator("biographies");
 			while (!updateIterator.isEOF()) {
 				ImdbRecord next = updateIterator.nextRecord();
 				if (next != null) {
@@ -514,6 +900,213 @@ public class ETLController {
 
 	}
 
+	/**
+	 * If asked for on the command line, build the movie index and hand it to
+	 * the connection, which then answers movie existence checks locally.
+	 * 
+	 * @throws ETLException
+	 */
+	void setupMovieIndex() throws ETLException {
+		if (this.movieIndexSource == null) {
+			return;
+		}
+		this.cConnection.setMovieIndex(getMovieIndex());
+	}
+
+	/**
+	 * Get the movie index from the source given on the command line (IMDB if
+	 * none given).
+	 * 
+	 * @return
+	 * @throws ETLException
+	 */
+	MovieIndex getMovieIndex() throws ETLException {
+		if (MOVIEINDEX_CASS.equals(this.movieIndexSource)) {
+			if (this.cConnection == null) {
+				throw new ETLException(ETLConstants.ERR_USAGE, "Job " + this.job + " has no Cassandra connection for "
+						+ MOVIEINDEXOPT + MOVIEINDEX_CASS);
+			}
+			return this.cConnection.scanMovies();
+		} else if (MOVIEINDEX_FILE.equals(this.movieIndexSource)) {
+			return loadMovieIndex();
+		}
+		return buildMovieIndex();
+	}
+
+	/**
+	 * The movies already in the movie table, for a movie update run without
+	 * LWT. Scans the table: the saved movie index may not match it (a replay
+	 * of the movie rejects, or a reload, since it was saved), and an update of
+	 * a movie that isn't there would make a row with no etl_status.
+	 * 
+	 * @return
+	 * @throws ETLException
+	 */
+	MovieIndex loadExistingMovies() throws ETLException {
+		return this.cConnection.scanMovies();
+	}
+
+	/**
+	 * Build the movie index from movies.list.gz. If we have an export dir, save
+	 * it there so later jobs can load it with --movieIndex=file.
+	 * 
+	 * @return
+	 * @throws ETLException
+	 */
+	MovieIndex buildMovieIndex() throws ETLException {
+		MovieIndex index = MovieIndex.buildFromImdb(newImdbIterator("movies"));
+		File indexFile = getMovieIndexFile();
+		if (indexFile != null) {
+			index.save(indexFile);
+		}
+		return index;
+	}
+
+	/**
+	 * Load the movie index saved in the export dir by an earlier job. If it
+	 * isn't there, build it now.
+	 * 
+	 * @return
+	 * @throws ETLException
+	 */
+	MovieIndex loadMovieIndex() throws ETLException {
+		File indexFile = getMovieIndexFile();
+		if (indexFile == null) {
+			throw new ETLException(ETLConstants.ERR_FILE, "Need " + ETLConstants.PROP_CSVPATH + " to use "
+					+ MOVIEINDEXOPT + MOVIEINDEX_FILE);
+		}
+		if (!indexFile.exists()) {
+			logger.info("No movie index at *" + indexFile + "*; building it from IMDB");
+			return buildMovieIndex();
+		}
+		return MovieIndex.load(indexFile);
+	}
+
+	/**
+	 * Where the movie index lives in the export dir, or null if there is no
+	 * export dir.
+	 * 
+	 * @return
+	 */
+	File getMovieIndexFile() {
+		if (this.csvFilePath == null) {
+			return null;
+		}
+		return new File(this.csvFilePath, MovieIndex.INDEX_FILE_NAME);
+	}
+
+	/**
+	 * Open an iterator on the records of the given IMDB source to load: the
+	 * IMDB file, or when replaying, the source's rejects in the replay file.
+	 * 
+	 * @param source
+	 * @return
+	 * @throws ETLException
+	 */
+	ImdbIterator newIterator(String source) throws ETLException {
+		if (this.replayFile != null) {
+			return new ImdbIterator(source, new RejectsFile(this.replayFile));
+		}
+		return newImdbIterator(source);
+	}
+
+	/**
+	 * Open an iterator on the given IMDB source. In pipeline mode, the file is
+	 * read and parsed on separate threads ahead of the loader.
+	 * 
+	 * @param source
+	 * @return
+	 * @throws ETLException
+	 */
+	ImdbIterator newImdbIterator(String source) throws ETLException {
+		return new ImdbIterator(source, this.imdbFilePath, this.pipelineMode, this.parallelChunks);
+	}
+
+	/**
+	 * As newIterator(), but never split into chunks: the records come in file
+	 * order. For the merge join, which needs the files in sort order.
+	 * 
+	 * @param source
+	 * @return
+	 * @throws ETLException
+	 */
+	ImdbIterator newOrderedIterator(String source) throws ETLException {
+		return new ImdbIterator(source, this.imdbFilePath, this.pipelineMode);
+	}
+
+	/**
+	 * Of the given files, the ones this run is asked to load
+	 * 
+	 * @param fileNames
+	 * @return
+	 */
+	List<String> selectImdbFiles(String... fileNames) {
+		List<String> selected = new ArrayList<String>();
+		for (String fileName : fileNames) {
+			if (useImdbFile(fileName)) {
+				selected.add(fileName);
+			}
+		}
+		return selected;
+	}
+
+	/**
+	 * Run fileLoad on each of the given files. With parallelFiles=1, the files
+	 * are loaded one after another on this thread. Otherwise up to
+	 * parallelFiles of them are loaded at once, each with its own iterator, all
+	 * sharing our one Cass connection. Returns once every file is done; if any
+	 * of them failed, the first failure is thrown.
+	 * 
+	 * @param fileNames
+	 * @param fileLoad
+	 * @throws ETLException
+	 */
+	void loadFiles(List<String> fileNames, final FileLoad fileLoad) throws ETLException {
+		if (this.parallelFiles <= 1 || fileNames.size() <= 1) {
+			for (String fileName : fileNames) {
+				fileLoad.load(fileName);
+			}
+			return;
+		}
+
+		int numThreads = Math.min(this.parallelFiles, fileNames.size());
+		logger.info("Loading " + fileNames + " on " + numThreads + " threads");
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		try {
+			List<Future<String>> futures = new ArrayList<Future<String>>();
+			for (final String fileName : fileNames) {
+				futures.add(pool.submit(new Callable<String>() {
+					public String call() throws ETLException {
+						fileLoad.load(fileName);
+						return fileName;
+					}
+				}));
+			}
+
+			ETLException firstError = null;
+			for (int i = 0; i < futures.size(); i++) {
+				try {
+					logger.info("File load done " + futures.get(i).get());
+				} catch (ExecutionException e) {
+					ETLException ex = (e.getCause() instanceof ETLException) ? (ETLException) e.getCause()
+							: new ETLException(ETLConstants.ERR_FILE, "Error loading file *" + fileNames.get(i) + "*",
+									e.getCause());
+					ETLException.logError(logger, "Error loading file *" + fileNames.get(i) + "*", ex);
+					if (firstError == null) {
+						firstError = ex;
+					}
+				} catch (InterruptedException e) {
+					throw new ETLException(ETLConstants.ERR_FILE, "Interrupted loading files " + fileNames, e);
+				}
+			}
+			if (firstError != null) {
+				throw firstError;
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
 	boolean useImdbFile(String fileName) {
 		if (this.imdbFiles.size() == 0) {
 			return true;
@@ -534,7 +1127,8 @@ public class ETLController {
 		}
 		this.job = args[0];
 		if (!this.job.equals(JOB_CONTRIBUTORS) && !this.job.equals(JOB_DOCS) && !this.job.equals(JOB_MOVIES)
-				&& !this.job.equals(JOB_ROLES) && !this.job.equals(JOB_ROLE_FAST)) {
+				&& !this.job.equals(JOB_ROLES) && !this.job.equals(JOB_ROLE_FAST)
+				&& !this.job.equals(JOB_ROLE_SSTABLE)) {
 			throw new RuntimeException(USAGE);
 		}
 
@@ -550,6 +1144,39 @@ public class ETLController {
 			} else if (args[i].equals(CLEANOPT)) {
 				gotFirstOption = true;
 				this.cleanMode = true;
+			} else if (args[i].equals(PIPELINEOPT)) {
+				gotFirstOption = true;
+				this.pipelineMode = true;
+			} else if (args[i].equals(NOLWTOPT)) {
+				gotFirstOption = true;
+				this.noLwt = true;
+			} else if (args[i].equals(MERGEJOINOPT)) {
+				gotFirstOption = true;
+				this.mergeJoin = true;
+			} else if (args[i].startsWith(MOVIEINDEXOPT)) {
+				gotFirstOption = true;
+				this.movieIndexSource = args[i].substring(MOVIEINDEXOPT_LEN).trim();
+				if (!this.movieIndexSource.equals(MOVIEINDEX_IMDB) && !this.movieIndexSource.equals(MOVIEINDEX_CASS)
+						&& !this.movieIndexSource.equals(MOVIEINDEX_FILE)) {
+					throw new RuntimeException(USAGE);
+				}
+			} else if (args[i].startsWith(REPLAYOPT)) {
+				gotFirstOption = true;
+				this.replayFile = new File(args[i].substring(REPLAYOPT_LEN).trim());
+			} else if (args[i].startsWith(PARALLELOPT)) {
+				gotFirstOption = true;
+				try {
+					this.parallelFiles = Integer.parseInt(args[i].substring(PARALLELOPT_LEN).trim());
+				} catch (NumberFormatException e) {
+					throw new RuntimeException(USAGE);
+				}
+			} else if (args[i].startsWith(CHUNKSOPT)) {
+				gotFirstOption = true;
+				try {
+					this.parallelChunks = Integer.parseInt(args[i].substring(CHUNKSOPT_LEN).trim());
+				} catch (NumberFormatException e) {
+					throw new RuntimeException(USAGE);
+				}
 			} else {
 				if (gotFirstOption || args[i].startsWith("-")) {
 					throw new RuntimeException(USAGE);
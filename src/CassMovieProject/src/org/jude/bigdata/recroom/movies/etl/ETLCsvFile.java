@@ -1,29 +1,58 @@
 package org.jude.bigdata.recroom.movies.etl;
 
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.zip.GZIPOutputStream;
 
 import org.apache.log4j.Logger;
 
 /**
  * This class is a general CSV file reader-writer for use with ETL.
  * 
+ * Rows are escaped straight into one reusable char buffer, which is encoded
+ * (in the platform charset, as FileWriter did) into a byte buffer and written
+ * to the file's channel when full. A file name ending in .gz is gzipped on
+ * the way out.
+ * 
  * @author mhavey
  *
  */
 public class ETLCsvFile {
 
+	public static final String GZ_SUFFIX = ".gz";
+	static final int CHAR_BUFFER_SIZE = 64 * 1024;
+	static final int BYTE_BUFFER_SIZE = 256 * 1024;
+
 	String fileName = null;
-	FileWriter fw = null;
+	WritableByteChannel channel = null;
+	CharsetEncoder encoder = null;
+	char chars[] = new char[CHAR_BUFFER_SIZE];
+	int numChars = 0;
+	ByteBuffer bytes = null;
 	int numLines = 0;
 	String headers[] = null;
 
+	// header slots in the schema of the last record written
+	RecordSchema slotSchema = null;
+	int slotSchemaSize = -1;
+	int slots[] = null;
+
 	Logger logger = Logger.getLogger(ETLCsvFile.class);
 
 	/**
 	 * constructor
 	 * 
 	 * @param fileName
+	 *            - gzipped if it ends in .gz
 	 */
 	public ETLCsvFile(String fileName) {
 		this.fileName = fileName;
@@ -36,23 +65,31 @@ public class ETLCsvFile {
 	 * @throws ETLException
 	 */
 	public void openForWrite(String... headers) throws ETLException {
-		if (fw != null) {
+		if (channel != null) {
 			throw new ETLException(ETLConstants.ERR_FILE, "CSV file is already open");
 		}
 		try {
-			fw = new FileWriter(this.fileName);
+			OutputStream out = new FileOutputStream(this.fileName);
+			if (this.fileName.endsWith(GZ_SUFFIX)) {
+				this.channel = Channels.newChannel(new GZIPOutputStream(out, BYTE_BUFFER_SIZE));
+			} else {
+				this.channel = ((FileOutputStream) out).getChannel();
+			}
+			this.encoder = Charset.defaultCharset().newEncoder().onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE);
+			this.bytes = ByteBuffer.allocate(BYTE_BUFFER_SIZE);
+			this.numChars = 0;
 			this.numLines = 0;
 			this.headers = headers;
 
 			// write the header line
-			String headerLine = "";
 			for (int i = 0; i < this.headers.length; i++) {
-				headerLine += this.headers[i].trim();
+				put(this.headers[i].trim());
 				if (i < this.headers.length - 1) {
-					headerLine += ",";
+					put(',');
 				}
 			}
-			writeLine(headerLine);
+			put('\n');
 		} catch (IOException e) {
 			safeClose();
 			throw new ETLException(ETLConstants.ERR_FILE,
@@ -79,14 +116,20 @@ public class ETLCsvFile {
 	 */
 	public void close() throws ETLException {
 		ETLException savedError = null;
-		if (fw != null) {
+		if (channel != null) {
+			try {
+				flushChars(true);
+			} catch (Throwable e) {
+				savedError = new ETLException(ETLConstants.ERR_FILE, "Error flushing csv " + this.fileName, e);
+				ETLException.logError(logger, ETLConstants.ERR_FILE, "Error flushing csv " + e, e);
+			}
 			try {
-				fw.close();
-				fw = null;
+				channel.close();
 			} catch (Throwable e) {
-				savedError = new ETLException(ETLConstants.ERR_FILE, "Error closing csv fw", e);
-				ETLException.logError(logger, ETLConstants.ERR_FILE, "Error closing csv fw " + e, e);
+				savedError = new ETLException(ETLConstants.ERR_FILE, "Error closing csv channel", e);
+				ETLException.logError(logger, ETLConstants.ERR_FILE, "Error closing csv channel " + e, e);
 			}
+			channel = null;
 		}
 		if (savedError != null) {
 			throw savedError;
@@ -103,60 +146,124 @@ public class ETLCsvFile {
 	 * @throws ETLException
 	 */
 	public void write(ImdbRecord record) throws ETLException {
-		String dataLine = "";
-		for (int i = 0; i < this.headers.length; i++) {
-			Object oval = record.get(this.headers[i]);
-			String sval = "";
-			if (oval != null) {
-				sval = oval.toString().trim();
-				// escape quotes
-				char schars[] = sval.toCharArray();
-				StringBuffer sbval = new StringBuffer();
-				boolean hasComma = false;
-				for (int j = 0; j < schars.length; j++) {
-					switch (schars[j]) {
-					case '"':
-						sbval.append("\\\"");
-						break;
-					case '\\':
-						sbval.append("\\\\");
-						break;
-					case ',':
-						hasComma = true;
-						// fall through
-					default:
-						sbval.append(schars[j]);
-						break;
+		int slots[] = getSlots(record);
+		try {
+			for (int i = 0; i < this.headers.length; i++) {
+				Object oval = record.get(slots[i]);
+				if (oval != null) {
+					// a null value gets no comma either; callers that need
+					// the columns to line up put in a blank
+					putEscaped(oval.toString().trim());
+					if (i < this.headers.length - 1) {
+						put(',');
 					}
 				}
-				if (hasComma) {
-					sval = '"' + sbval.toString() + '"';
-				} else {
-					sval = sbval.toString();
-				}
-				dataLine += sval;
-				if (i < this.headers.length - 1) {
-					dataLine += ",";
-				}
 			}
-		}
-		try {
-			writeLine(dataLine);
+			put('\n');
 		} catch (IOException e) {
-			throw new ETLException(ETLConstants.ERR_FILE,
-					"Error writing line *" + dataLine + "* to file *" + this.fileName + "* error is " + e, e);
+			throw new ETLException(ETLConstants.ERR_FILE, "Error writing record " + record + " to file *"
+					+ this.fileName + "* error is " + e, e);
 		}
 		this.numLines++;
 	}
 
 	/**
-	 * Private write liner.
+	 * Put one value, escaping quotes and backslashes with a backslash. If it
+	 * contains a comma it is quoted.
 	 * 
 	 * @param s
 	 * @throws IOException
 	 */
-	void writeLine(String s) throws IOException {
-		fw.write(s + "\n");
+	void putEscaped(String s) throws IOException {
+		boolean hasComma = s.indexOf(',') >= 0;
+		if (hasComma) {
+			put('"');
+		}
+		int len = s.length();
+		for (int j = 0; j < len; j++) {
+			char c = s.charAt(j);
+			if (c == '"' || c == '\\') {
+				put('\\');
+			}
+			put(c);
+		}
+		if (hasComma) {
+			put('"');
+		}
+	}
+
+	void put(char c) throws IOException {
+		if (this.numChars == this.chars.length) {
+			flushChars(false);
+		}
+		this.chars[this.numChars++] = c;
+	}
+
+	void put(String s) throws IOException {
+		for (int i = 0; i < s.length(); i++) {
+			put(s.charAt(i));
+		}
+	}
+
+	/**
+	 * Encode the char buffer into the byte buffer, writing the byte buffer to
+	 * the file as it fills. A surrogate pair cut in two by the end of the
+	 * buffer waits for the rest of it, unless this is the end of the file.
+	 * 
+	 * @param endOfInput
+	 * @throws IOException
+	 */
+	void flushChars(boolean endOfInput) throws IOException {
+		CharBuffer in = CharBuffer.wrap(this.chars, 0, this.numChars);
+		while (true) {
+			CoderResult result = this.encoder.encode(in, this.bytes, endOfInput);
+			if (result.isOverflow()) {
+				writeBytes();
+			} else if (result.isUnderflow()) {
+				break;
+			} else {
+				result.throwException();
+			}
+		}
+		if (endOfInput) {
+			CoderResult result = this.encoder.flush(this.bytes);
+			if (result.isOverflow()) {
+				writeBytes();
+				this.encoder.flush(this.bytes);
+			}
+			writeBytes();
+		}
+		int left = in.remaining();
+		System.arraycopy(this.chars, in.position(), this.chars, 0, left);
+		this.numChars = left;
+	}
+
+	void writeBytes() throws IOException {
+		this.bytes.flip();
+		while (this.bytes.hasRemaining()) {
+			this.channel.write(this.bytes);
+		}
+		this.bytes.clear();
+	}
+
+	/**
+	 * Slots of the headers in the record's schema. Resolved again only when
+	 * the schema changes or grows.
+	 * 
+	 * @param record
+	 * @return
+	 */
+	int[] getSlots(ImdbRecord record) {
+		RecordSchema schema = record.getSchema();
+		if (schema != this.slotSchema || schema.size() != this.slotSchemaSize) {
+			this.slotSchemaSize = schema.size();
+			this.slots = new int[this.headers.length];
+			for (int i = 0; i < this.headers.length; i++) {
+				this.slots[i] = schema.slotOf(this.headers[i]);
+			}
+			this.slotSchema = schema;
+		}
+		return this.slots;
 	}
 
 	/**
@@ -94,6 +94,23 @@ public class ETLProperties {
 		return Integer.parseInt(s);
 	}
 
+	/**
+	 * Get int property with given name. If not found, return default. Throw
+	 * runtime error if not int.
+	 * 
+	 * @param propName
+	 * @param defaultVal
+	 * @return
+	 * @throws ETLException
+	 */
+	public int getInt(String propName, int defaultVal) throws ETLException {
+		String s = getProperty(propName, false);
+		if (s == null || s.equals("")) {
+			return defaultVal;
+		}
+		return Integer.parseInt(s);
+	}
+
 	/**
 	 * Get property with given name. Throw runtime error if not found.
 	 * 
@@ -1,6 +1,10 @@
 package org.jude.bigdata.recroom.movies.etl;
 
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 import org.apache.log4j.Logger;
+import org.jude.bigdata.recroom.movies.etl.parser.ChunkSplitter;
 import org.jude.bigdata.recroom.movies.etl.parser.ImdbLineParser;
 
 /**
@@ -11,17 +15,31 @@ import org.jude.bigdata.recroom.movies.etl.parser.ImdbLineParser;
  * 
  */
 public class ImdbIterator {
+
+	/**
+	 * Told of each record a statement failed on. Called on the thread that
+	 * rejects it, often a driver I/O thread; don't block.
+	 */
+	public interface RejectListener {
+		void rejected(String statementName, ImdbRecord record);
+	}
+
 	int numIter = 0;
 	int numIterFail = 0;
-	int numRejects = 0;
-	int numPending = 0;
+	AtomicLong numRejects = new AtomicLong(0);
+	AtomicInteger numPending = new AtomicInteger(0);
+	volatile InFlightWindow window = null;
+	volatile boolean waiting = false;
 
 	ImdbLineParser parser = null;
+	RecordPipeline pipeline = null;
+	RejectsFile replay = null;
+	volatile RejectListener rejectListener = null;
+	LoadMetrics.ParseMetrics parseMetrics;
 	boolean eof = false;
 	String source;
 
 	Logger logger = Logger.getLogger(ImdbIterator.class);
-	Logger rejectLogger = null;
 
 	public static final int PROGRESS_AT = 100000;
 	public static final long SLEEP_INTERVAL = 2000;
@@ -34,36 +52,116 @@ public class ImdbIterator {
 	 * @throws ETLException
 	 */
 	public ImdbIterator(String source, String path) throws ETLException {
+		this(source, path, false);
+	}
+
+	/**
+	 * Constructor opens the parser for the given source name. In pipelined
+	 * mode, reading the file and parsing it run on their own threads, ahead of
+	 * the caller of nextRecord().
+	 * 
+	 * @param source
+	 * @param path
+	 * @param pipelined
+	 * @throws ETLException
+	 */
+	public ImdbIterator(String source, String path, boolean pipelined) throws ETLException {
+		this(source, path, pipelined, 1);
+	}
+
+	/**
+	 * Constructor opens the parser for the given source name. With chunks > 1,
+	 * a source that can be split is parsed in that many chunks at once (see
+	 * ChunkSplitter); records then come in file order within a block, but not
+	 * across the file.
+	 * 
+	 * @param source
+	 * @param path
+	 * @param pipelined
+	 * @param chunks
+	 * @throws ETLException
+	 */
+	public ImdbIterator(String source, String path, boolean pipelined, int chunks) throws ETLException {
 		this.source = source;
-		this.rejectLogger = Logger.getLogger("reject." + source);
+		this.parseMetrics = LoadMetrics.instance().parser(source);
+		ImdbLineParser chunkParsers[] = (chunks > 1) ? ChunkSplitter.openChunks(source, path, chunks) : null;
+		if (chunkParsers != null) {
+			this.parser = chunkParsers[0];
+			this.pipeline = new RecordPipeline(source);
+			this.pipeline.start(chunkParsers);
+			return;
+		}
 		this.parser = ImdbLineParser.getParser(source, path);
+		this.parser.setPipelined(pipelined);
 		this.parser.openReader();
+		if (pipelined) {
+			this.pipeline = new RecordPipeline(source);
+			this.pipeline.start(this.parser);
+		}
+	}
+
+	/**
+	 * Constructor for a replay: the records are the source's rejects in the
+	 * given rejects file, instead of the IMDB file
+	 * 
+	 * @param source
+	 * @param replay
+	 * @throws ETLException
+	 */
+	public ImdbIterator(String source, RejectsFile replay) throws ETLException {
+		this.source = source;
+		this.replay = replay;
+		this.replay.openForRead(source);
 	}
 
 	/**
 	 * Get next record. If null, it means either EOF or an error in the record.
 	 * Check isEOF() to determine which. Also enforce the skipping logic here.
+	 * If the reject writer is far behind, help it out first (see RejectLog).
 	 * 
 	 * @return
 	 * @throws ETLException
 	 */
 	public ImdbRecord nextRecord() throws ETLException {
+		RejectLog.awaitRoom();
 		while (true) {
 			ImdbRecord t = null;
 			try {
 				// read next record from IMDB source
-				t = this.parser.next();
+				if (this.replay != null) {
+					t = this.replay.read();
+				} else if (this.pipeline == null) {
+					long startNanos = System.nanoTime();
+					t = this.parser.next();
+					if (t != null) {
+						this.parseMetrics.parsed(1, System.nanoTime() - startNanos);
+						t.setLineNumber(this.parser.getLineNumber());
+					}
+				} else {
+					t = nextFromPipeline();
+				}
 			} catch (ETLException x) {
+				// a parser thread died; the rest of the file is lost
+				if (this.eof) {
+					throw x;
+				}
 				// This error is extremely rare. Has never occurred for me.
 				ETLException.logError(logger, "Error getting next record", x);
 				this.numIterFail++;
+				if (this.parseMetrics != null) {
+					this.parseMetrics.failed();
+				}
 				return null;
 			}
 
 			// did I reach end-of-file?
 			if (t == null) {
 				this.eof = true;
-				this.parser.closeReader();
+				if (this.replay != null) {
+					this.replay.safeClose();
+				} else if (this.pipeline == null) {
+					this.parser.closeReader();
+				}
 				return null;
 			}
 
@@ -77,6 +175,38 @@ public class ImdbIterator {
 		}
 	}
 	
+	/**
+	 * Name of the IMDB source file
+	 * 
+	 * @return
+	 */
+	public String getSource() {
+		return this.source;
+	}
+
+	/**
+	 * Next record from the parser thread; null at EOF. If the parser thread
+	 * died, throws its failure and sets EOF, so the caller can tell it from a
+	 * record that failed to parse.
+	 * 
+	 * @return
+	 * @throws ETLException
+	 */
+	ImdbRecord nextFromPipeline() throws ETLException {
+		Object item = this.pipeline.take();
+		if (item == RecordPipeline.EOF) {
+			return null;
+		}
+		if (item instanceof RecordPipeline.Failure) {
+			this.eof = true;
+			throw ((RecordPipeline.Failure) item).getError();
+		}
+		if (item instanceof ETLException) {
+			throw (ETLException) item;
+		}
+		return (ImdbRecord) item;
+	}
+
 	public int getPosition() {
 		return this.numIter - 1;
 	}
@@ -92,10 +222,16 @@ public class ImdbIterator {
 
 	/**
 	 * Count one CQL execution against the pending count. Iterator needs to know
-	 * how outstanding/pending requests there are. For async mode only.
+	 * how outstanding/pending requests there are. For async mode only. Blocks
+	 * until the window has room for the request.
+	 * 
+	 * @param window
+	 *            - in-flight window the request is charged to
 	 */
-	public synchronized void addPending() {
-		this.numPending++;
+	public void addPending(InFlightWindow window) {
+		window.acquire();
+		this.window = window;
+		this.numPending.incrementAndGet();
 	}
 
 	/**
@@ -104,14 +240,15 @@ public class ImdbIterator {
 	 * 
 	 * @param currentRecord
 	 */
-	public synchronized void logSuccess() {
-		this.numPending--;
+	public void logSuccess() {
+		releasePending();
 	}
 
 	/**
 	 * Log that there was an error of some type (CQL execution, data integrity,
 	 * business rule problem, or otherwise) processing the record. Decrement the
-	 * pending update count (if async mode(
+	 * pending update count (if async mode). The reject is written by the
+	 * RejectLog thread.
 	 * 
 	 * @param etlException
 	 * @param currentRecord
@@ -120,13 +257,92 @@ public class ImdbIterator {
 	 *            as a reuslt of the failure
 	 * 
 	 */
-	public synchronized void logFailure(ETLException etlException, ImdbRecord currentRecord, boolean isPending) {
+	public void logFailure(ETLException etlException, ImdbRecord currentRecord, boolean isPending) {
+		logFailure(null, etlException, currentRecord, isPending);
+	}
 
-		String debugMsg = "REJECT|" + source + "|" + etlException + "|json is " + currentRecord;
-		rejectLogger.error(debugMsg);
-		this.numRejects++;
+	/**
+	 * Log a failure of the given statement; a replay of the rejects (see
+	 * RejectsFile) sends just that statement again
+	 * 
+	 * @param statementName
+	 * @param etlException
+	 * @param currentRecord
+	 * @param isPending
+	 */
+	public void logFailure(String statementName, ETLException etlException, ImdbRecord currentRecord,
+			boolean isPending) {
+		RejectLog.instance().reject(this.source, statementName, etlException, currentRecord);
+		RejectListener listener = this.rejectListener;
+		if (listener != null && statementName != null) {
+			listener.rejected(statementName, currentRecord);
+		}
+		this.numRejects.incrementAndGet();
 		if (isPending) {
-			this.numPending--;
+			releasePending();
+		}
+	}
+
+	public void setRejectListener(RejectListener rejectListener) {
+		this.rejectListener = rejectListener;
+	}
+
+	/**
+	 * A request is waiting to be retried (see WriteRetrier): hand back its
+	 * slot in the window, but keep it pending so runTo() waits for it
+	 */
+	public void suspendPending() {
+		InFlightWindow window = this.window;
+		if (window != null) {
+			window.release();
+		}
+	}
+
+	/**
+	 * The retry is about to be sent: take a slot in the window again. Blocks
+	 * until there is one.
+	 */
+	public void resumePending() {
+		InFlightWindow window = this.window;
+		if (window != null) {
+			window.acquire();
+		}
+	}
+
+	/**
+	 * Hand back the permit of a completed request and wake up runTo() if it
+	 * is waiting. Only takes the iterator lock then.
+	 */
+	void releasePending() {
+		InFlightWindow window = this.window;
+		if (window != null) {
+			window.release();
+		}
+		endPending();
+	}
+
+	/**
+	 * A suspended request (see suspendPending()) was rejected. Like
+	 * logFailure(), but it has no slot in the window to hand back.
+	 * 
+	 * @param statementName
+	 * @param etlException
+	 * @param currentRecord
+	 */
+	public void logSuspendedFailure(String statementName, ETLException etlException, ImdbRecord currentRecord) {
+		logFailure(statementName, etlException, currentRecord, false);
+		endPending();
+	}
+
+	/**
+	 * One less pending request; wake up runTo() if it is waiting
+	 */
+	void endPending() {
+		this.numPending.decrementAndGet();
+		if (this.waiting) {
+			synchronized (this) {
+				notifyAll();
+			}
 		}
 	}
 
@@ -134,28 +350,36 @@ public class ImdbIterator {
 	 * Show where we are in the run - iterations, errors, pending records
 	 */
 	public void showProgress() {
-		logger.info(this.source + " iter " + numIter + " iterfail " + numIterFail + " rejects " + numRejects
-				+ " pending " + this.getNumPending());
+		InFlightWindow window = this.window;
+		logger.info(this.source + " iter " + numIter + " iterfail " + numIterFail + " rejects " + numRejects.get()
+				+ " pending " + this.getNumPending() + (window == null ? "" : " window " + window.getLimit()));
 	}
 
 	/**
 	 * Wait until the number of pending requests has decreased to lowerLimit.
+	 * Wakes as soon as a completing request brings the count down; shows
+	 * progress every SLEEP_INTERVAL while waiting.
 	 * 
 	 */
 	public void runTo(int lowerLimit) {
-
-		// I feel like if my limit is zero, I need to be extra sure. There's
-		// always the chance I ran down to zero but another request snuck
-		// in; so let's sleep a bit more and check back
-		int numIter = (lowerLimit == 0 ? 3 : 1);
-		for (int i = 0; i < numIter; i++) {
-			while (getNumPending() > lowerLimit) {
-				showProgress();
-				sleep(lowerLimit);
-			}
-			if (i < numIter - 1) {
-				sleep(lowerLimit);
+		long nextProgress = 0;
+		synchronized (this) {
+			this.waiting = true;
+			while (this.numPending.get() > lowerLimit) {
+				long now = System.currentTimeMillis();
+				if (now >= nextProgress) {
+					showProgress();
+					nextProgress = now + SLEEP_INTERVAL;
+				}
+				try {
+					wait(nextProgress - now);
+				} catch (InterruptedException e) {
+					logger.error("Error waiting in iterator for rundown to " + lowerLimit + ". Error is " + e, e);
+					Thread.currentThread().interrupt();
+					break;
+				}
 			}
+			this.waiting = false;
 		}
 
 		// whether async or not, show where we're at now.
@@ -166,15 +390,7 @@ public class ImdbIterator {
 	/**
 	 * Returns number of of pending requests/ For async mode only.
 	 */
-	public synchronized int getNumPending() {
-		return this.numPending;
-	}
-
-	void sleep(int lowerLimit) {
-		try {
-			Thread.sleep(SLEEP_INTERVAL);
-		} catch (InterruptedException e) {
-			logger.error("Error waiting in iterator for rundown to " + lowerLimit + ". Error is " + e, e);
-		}
+	public int getNumPending() {
+		return this.numPending.get();
 	}
 }
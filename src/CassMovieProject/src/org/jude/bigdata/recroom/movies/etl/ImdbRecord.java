@@ -1,10 +1,8 @@
 package org.jude.bigdata.recroom.movies.etl;
 
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
-import java.util.Map;
+import java.util.LinkedHashSet;
 import java.util.Set;
 
 /**
@@ -12,21 +10,53 @@ import java.util.Set;
  * of the classes that use it refer to it as JSON. It is meant to be a JSON-like
  * hierarchical key-value structure.
  * 
+ * The values sit in an array, in the slots given by the record's schema (see
+ * RecordSchema), rather than in a map of their own. Ints and floats appended
+ * with appendInt()/appendFloat() are kept unboxed; get() boxes them.
+ * 
  * @author Tibcouser
  * 
  */
 public class ImdbRecord {
 
-	Map<String, Object> recordMap = new HashMap<String, Object>();
+	static final byte ABSENT = 0;
+	static final byte OBJECT = 1;
+	static final byte INT = 2;
+	static final byte FLOAT = 3;
+
+	RecordSchema schema;
+	byte kinds[];
+	Object values[];
+	int prims[] = null;
 	String docType;
+	long lineNumber = 0;
+	String replayStatement = null;
 
 	public ImdbRecord() {
+		this(RecordSchema.DEFAULT);
 	}
 
 	public ImdbRecord(String docType) {
+		this(RecordSchema.forName(docType));
 		this.docType = docType;
 	}
 
+	/**
+	 * Record with the fields of the given schema; e.g., one per parser source
+	 * 
+	 * @param schema
+	 */
+	public ImdbRecord(RecordSchema schema) {
+		this.schema = schema;
+		int size = schema.size();
+		this.kinds = new byte[size];
+		this.values = new Object[size];
+	}
+
+	public RecordSchema getSchema() {
+		return this.schema;
+	}
+
 	public String getDocType() {
 		return this.docType;
 	}
@@ -35,41 +65,195 @@ public class ImdbRecord {
 		this.docType = docType;
 	}
 
+	/**
+	 * Line of the IMDB file the record was parsed from (see
+	 * ImdbLineParser.getLineNumber()); 0 if not known
+	 * 
+	 * @return
+	 */
+	public long getLineNumber() {
+		return this.lineNumber;
+	}
+
+	public void setLineNumber(long lineNumber) {
+		this.lineNumber = lineNumber;
+	}
+
+	/**
+	 * For a record read back from a rejects file, the statement it failed on
+	 * (see RejectsFile.read()); the connection sends only that one again. Null
+	 * if not known, or once it's been sent.
+	 * 
+	 * @return
+	 */
+	public String getReplayStatement() {
+		return this.replayStatement;
+	}
+
+	public void setReplayStatement(String replayStatement) {
+		this.replayStatement = replayStatement;
+	}
+
+	/**
+	 * Make sure the arrays reach the slot; the schema may have grown since
+	 * the record was made
+	 * 
+	 * @param slot
+	 */
+	void ensureSlot(int slot) {
+		if (slot >= this.kinds.length) {
+			int size = Math.max(slot + 1, this.schema.size());
+			this.kinds = Arrays.copyOf(this.kinds, size);
+			this.values = Arrays.copyOf(this.values, size);
+			if (this.prims != null) {
+				this.prims = Arrays.copyOf(this.prims, size);
+			}
+		}
+	}
+
+	void setPrim(String key, byte kind, int bits) {
+		int slot = this.schema.addField(key);
+		ensureSlot(slot);
+		if (this.prims == null) {
+			this.prims = new int[this.kinds.length];
+		}
+		this.kinds[slot] = kind;
+		this.values[slot] = null;
+		this.prims[slot] = bits;
+	}
+
 	public ImdbRecord append(String key, Object value) {
-		recordMap.put(key, value);
+		int slot = this.schema.addField(key);
+		ensureSlot(slot);
+		this.kinds[slot] = OBJECT;
+		this.values[slot] = value;
 		return this;
 	}
 
 	public ImdbRecord append(String key, String value[]) {
-		recordMap.put(key, new HashSet<String>(Arrays.asList(value)));
+		return append(key, (Object) new HashSet<String>(Arrays.asList(value)));
+	}
+
+	public ImdbRecord appendInt(String key, int value) {
+		setPrim(key, INT, value);
+		return this;
+	}
+
+	public ImdbRecord appendFloat(String key, float value) {
+		setPrim(key, FLOAT, Float.floatToRawIntBits(value));
 		return this;
 	}
 
+	/**
+	 * As appendInt(), for a value that may be null
+	 * 
+	 * @param key
+	 * @param value
+	 * @return
+	 */
+	public ImdbRecord appendInt(String key, Integer value) {
+		return value == null ? append(key, (Object) null) : appendInt(key, value.intValue());
+	}
+
+	public ImdbRecord appendFloat(String key, Float value) {
+		return value == null ? append(key, (Object) null) : appendFloat(key, value.floatValue());
+	}
+
 	public ImdbRecord appendSubdoc(String key, ImdbRecord value) {
-		recordMap.put(key, value);
+		append(key, value);
 		value.setDocType(key);
 		return this;
 	}
 
 	public Object get(String key) {
-		return recordMap.get(key);
+		return get(this.schema.slotOf(key));
+	}
+
+	/**
+	 * Value in the given slot of the record's schema; null if none
+	 * 
+	 * @param slot
+	 * @return
+	 */
+	public Object get(int slot) {
+		if (slot < 0 || slot >= this.kinds.length) {
+			return null;
+		}
+		switch (this.kinds[slot]) {
+		case INT:
+			return Integer.valueOf(this.prims[slot]);
+		case FLOAT:
+			return Float.valueOf(Float.intBitsToFloat(this.prims[slot]));
+		default:
+			return this.values[slot];
+		}
+	}
+
+	/**
+	 * Does the slot hold a value, i.e., not missing and not null?
+	 * 
+	 * @param slot
+	 * @return
+	 */
+	public boolean hasValue(int slot) {
+		if (slot < 0 || slot >= this.kinds.length) {
+			return false;
+		}
+		return this.kinds[slot] == INT || this.kinds[slot] == FLOAT
+				|| (this.kinds[slot] == OBJECT && this.values[slot] != null);
+	}
+
+	/**
+	 * Is the slot an unboxed int (appendInt())? Then getInt() reads it.
+	 * 
+	 * @param slot
+	 * @return
+	 */
+	public boolean isInt(int slot) {
+		return slot >= 0 && slot < this.kinds.length && this.kinds[slot] == INT;
+	}
+
+	public boolean isFloat(int slot) {
+		return slot >= 0 && slot < this.kinds.length && this.kinds[slot] == FLOAT;
+	}
+
+	public int getInt(int slot) {
+		return this.prims[slot];
+	}
+
+	public float getFloat(int slot) {
+		return Float.intBitsToFloat(this.prims[slot]);
 	}
 
 	public ImdbRecord getSubdoc(String key) {
-		return (ImdbRecord) recordMap.get(key);
+		return (ImdbRecord) get(key);
 	}
 
 	public boolean containsKey(String key) {
-		return recordMap.containsKey(key);
+		int slot = this.schema.slotOf(key);
+		return slot >= 0 && slot < this.kinds.length && this.kinds[slot] != ABSENT;
 	}
 
 	public ImdbRecord remove(String key) {
-		recordMap.remove(key);
+		int slot = this.schema.slotOf(key);
+		if (slot >= 0 && slot < this.kinds.length) {
+			this.kinds[slot] = ABSENT;
+			this.values[slot] = null;
+		}
 		return this;
 	}
 
 	public String toString() {
-		return recordMap.toString();
+		StringBuilder sb = new StringBuilder("{");
+		for (int i = 0; i < this.kinds.length; i++) {
+			if (this.kinds[i] != ABSENT) {
+				if (sb.length() > 1) {
+					sb.append(", ");
+				}
+				sb.append(this.schema.getField(i)).append('=').append(get(i));
+			}
+		}
+		return sb.append('}').toString();
 	}
 
 	public String getMandatoryString(String key) throws ETLException {
@@ -77,17 +261,28 @@ public class ImdbRecord {
 	}
 
 	public Object getMandatory(String key) throws ETLException {
-		Object s = recordMap.get(key);
+		Object s = get(key);
 		if (s == null) {
 			throw new ETLException(ETLConstants.ERR_FIELD_NOT_FOUND,
 					"Mandatory field *" + key + "* not found in record "
-							+ recordMap);
+							+ this);
 		}
 		return s;
 	}
 
+	/**
+	 * Names of the fields the record has, in slot order
+	 * 
+	 * @return
+	 */
 	public Set<String> keys() {
-		return recordMap.keySet();
+		Set<String> keys = new LinkedHashSet<String>();
+		for (int i = 0; i < this.kinds.length; i++) {
+			if (this.kinds[i] != ABSENT) {
+				keys.add(this.schema.getField(i));
+			}
+		}
+		return keys;
 	}
 
 	/**
@@ -96,10 +291,19 @@ public class ImdbRecord {
 	 * @param rec2
 	 */
 	public void merge(ImdbRecord rec2) {
-		Iterator<String> keys = rec2.keys().iterator();
-		while (keys.hasNext()) {
-			String nextKey = keys.next();
-			this.recordMap.put(nextKey, rec2.get(nextKey));
+		for (int i = 0; i < rec2.kinds.length; i++) {
+			switch (rec2.kinds[i]) {
+			case ABSENT:
+				break;
+			case INT:
+				appendInt(rec2.schema.getField(i), rec2.prims[i]);
+				break;
+			case FLOAT:
+				appendFloat(rec2.schema.getField(i), rec2.getFloat(i));
+				break;
+			default:
+				append(rec2.schema.getField(i), rec2.values[i]);
+			}
 		}
 	}
 }
@@ -0,0 +1,118 @@
+package org.jude.bigdata.recroom.movies.etl;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limits the number of CQL requests in flight. The producer takes a permit
+ * before it submits a request and blocks if none is available; the permit is
+ * handed back when the request completes (success, failure or reject). This
+ * replaces the old poll-and-sleep breather in CassDBConnection.
+ *
+ * The limit can be changed while requests are in flight (see WindowTuner).
+ * Shrinking it takes the permits away as the requests complete.
+ *
+ * @author mhavey
+ *
+ */
+public class InFlightWindow {
+
+	/**
+	 * Semaphore that can take permits away
+	 */
+	static class ResizableSemaphore extends Semaphore {
+		private static final long serialVersionUID = 1L;
+
+		ResizableSemaphore(int permits) {
+			super(permits);
+		}
+
+		void reduce(int reduction) {
+			reducePermits(reduction);
+		}
+	}
+
+	ResizableSemaphore permits;
+	volatile int limit;
+	AtomicInteger waits = new AtomicInteger(0);
+
+	/**
+	 * Constructor
+	 *
+	 * @param limit
+	 *            - max number of requests in flight
+	 */
+	public InFlightWindow(int limit) {
+		this.limit = limit;
+		this.permits = new ResizableSemaphore(limit);
+	}
+
+	/**
+	 * Take a permit, waiting until one is free.
+	 */
+	public void acquire() {
+		if (!this.permits.tryAcquire()) {
+			this.waits.incrementAndGet();
+			this.permits.acquireUninterruptibly();
+		}
+	}
+
+	/**
+	 * Give back a permit.
+	 */
+	public void release() {
+		this.permits.release();
+	}
+
+	/**
+	 * Max number of requests in flight
+	 *
+	 * @return
+	 */
+	public int getLimit() {
+		return this.limit;
+	}
+
+	/**
+	 * Change the max number of requests in flight
+	 *
+	 * @param newLimit
+	 */
+	public synchronized void setLimit(int newLimit) {
+		int delta = newLimit - this.limit;
+		if (delta > 0) {
+			this.permits.release(delta);
+		} else if (delta < 0) {
+			this.permits.reduce(-delta);
+		}
+		this.limit = newLimit;
+	}
+
+	/**
+	 * Number of free slots
+	 *
+	 * @return
+	 */
+	public int getAvailable() {
+		return Math.max(0, this.permits.availablePermits());
+	}
+
+	/**
+	 * Number of requests currently in flight
+	 *
+	 * @return
+	 */
+	public int getInFlight() {
+		return this.limit - this.permits.availablePermits();
+	}
+
+	/**
+	 * How many times the producer had to wait for a permit since the last
+	 * call; i.e., whether the window held it back
+	 *
+	 * @return
+	 */
+	public int takeWaits() {
+		return this.waits.getAndSet(0);
+	}
+}
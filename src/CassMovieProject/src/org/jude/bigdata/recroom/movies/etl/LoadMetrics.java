@@ -0,0 +1,362 @@
+package org.jude.bigdata.recroom.movies.etl;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.apache.log4j.Logger;
+
+/**
+ * Throughput and latency of the job, per prepared statement and per IMDB
+ * parser. For each statement: requests submitted and completed, latency
+ * (HdrHistogram, in microseconds), requests in flight, retries and rejects by
+ * error code. For each parser (source): records parsed, parse failures and
+ * time spent in the parser.
+ *
+ * Every interval (MetricsIntervalMs), a summary of the interval goes to
+ * controller.log, one "Metrics" line per busy statement and parser; at the
+ * end of the job, report() logs the totals for the whole job.
+ *
+ * @author mhavey
+ *
+ */
+public class LoadMetrics {
+
+	public static final long DEFAULT_INTERVAL_MS = 30000;
+
+	/**
+	 * Metrics of one prepared statement
+	 */
+	public static class StatementMetrics {
+		String name;
+		AtomicLong submitted = new AtomicLong(0);
+		AtomicLong completed = new AtomicLong(0);
+		AtomicLong retries = new AtomicLong(0);
+		ConcurrentMap<String, AtomicLong> errors = new ConcurrentHashMap<String, AtomicLong>();
+		Recorder latencies = new Recorder(3);
+
+		// reporter's view; see LoadMetrics.logInterval()
+		Histogram interval = null;
+		Histogram total = new Histogram(3);
+		long lastSubmitted = 0;
+		long lastCompleted = 0;
+
+		StatementMetrics(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * Requests sent to the cluster
+		 *
+		 * @param count
+		 */
+		public void submitted(int count) {
+			this.submitted.addAndGet(count);
+		}
+
+		/**
+		 * Requests back from the cluster, successful or not
+		 *
+		 * @param startNanos
+		 *            - System.nanoTime() when they were sent
+		 * @param count
+		 */
+		public void completed(long startNanos, int count) {
+			// each write of a batch waited as long as the batch
+			long micros = Math.max(0, (System.nanoTime() - startNanos) / 1000);
+			for (int i = 0; i < count; i++) {
+				this.latencies.recordValue(micros);
+			}
+			this.completed.addAndGet(count);
+		}
+
+		public void retried() {
+			this.retries.incrementAndGet();
+		}
+
+		/**
+		 * A record rejected on this statement
+		 *
+		 * @param errCode
+		 */
+		public void rejected(String errCode) {
+			AtomicLong count = this.errors.get(errCode);
+			if (count == null) {
+				count = new AtomicLong(0);
+				AtomicLong raced = this.errors.putIfAbsent(errCode, count);
+				if (raced != null) {
+					count = raced;
+				}
+			}
+			count.incrementAndGet();
+		}
+
+		public long getInFlight() {
+			return this.submitted.get() - this.completed.get();
+		}
+
+		String errorString() {
+			Map<String, Long> sorted = new TreeMap<String, Long>();
+			for (Map.Entry<String, AtomicLong> error : this.errors.entrySet()) {
+				sorted.put(error.getKey(), error.getValue().get());
+			}
+			return sorted.toString();
+		}
+	}
+
+	/**
+	 * Metrics of the parser(s) of one source
+	 */
+	public static class ParseMetrics {
+		String source;
+		AtomicLong records = new AtomicLong(0);
+		AtomicLong failures = new AtomicLong(0);
+		AtomicLong parseNanos = new AtomicLong(0);
+
+		// reporter's view
+		long lastRecords = 0;
+		long lastParseNanos = 0;
+
+		ParseMetrics(String source) {
+			this.source = source;
+		}
+
+		/**
+		 * Records parsed, and the time it took
+		 *
+		 * @param count
+		 * @param nanos
+		 */
+		public void parsed(int count, long nanos) {
+			this.records.addAndGet(count);
+			this.parseNanos.addAndGet(nanos);
+		}
+
+		public void failed() {
+			this.failures.incrementAndGet();
+		}
+	}
+
+	static LoadMetrics instance = new LoadMetrics();
+
+	ConcurrentMap<String, StatementMetrics> statements = new ConcurrentHashMap<String, StatementMetrics>();
+	ConcurrentMap<String, ParseMetrics> parsers = new ConcurrentHashMap<String, ParseMetrics>();
+	volatile InFlightWindow window = null;
+	long intervalMs = DEFAULT_INTERVAL_MS;
+	long startedAt = System.currentTimeMillis();
+	long lastReportAt = startedAt;
+	ScheduledExecutorService timer = null;
+
+	Logger logger = Logger.getLogger(LoadMetrics.class);
+
+	public static LoadMetrics instance() {
+		return instance;
+	}
+
+	/**
+	 * How often to log the summary; 0 for just the report at the end
+	 *
+	 * @param intervalMs
+	 */
+	public void setInterval(long intervalMs) {
+		this.intervalMs = intervalMs;
+	}
+
+	/**
+	 * The in-flight window, for the summary
+	 *
+	 * @param window
+	 */
+	public void setWindow(InFlightWindow window) {
+		this.window = window;
+	}
+
+	/**
+	 * The metrics of the given statement
+	 *
+	 * @param name
+	 * @return
+	 */
+	public StatementMetrics statement(String name) {
+		StatementMetrics metrics = this.statements.get(name);
+		if (metrics == null) {
+			metrics = new StatementMetrics(name);
+			StatementMetrics raced = this.statements.putIfAbsent(name, metrics);
+			if (raced != null) {
+				metrics = raced;
+			}
+		}
+		return metrics;
+	}
+
+	/**
+	 * The parse metrics of the given source
+	 *
+	 * @param source
+	 * @return
+	 */
+	public ParseMetrics parser(String source) {
+		ParseMetrics metrics = this.parsers.get(source);
+		if (metrics == null) {
+			metrics = new ParseMetrics(source);
+			ParseMetrics raced = this.parsers.putIfAbsent(source, metrics);
+			if (raced != null) {
+				metrics = raced;
+			}
+		}
+		return metrics;
+	}
+
+	/**
+	 * Start of the job: start logging the summary every interval
+	 */
+	public synchronized void start() {
+		this.startedAt = System.currentTimeMillis();
+		this.lastReportAt = this.startedAt;
+		if (this.intervalMs <= 0) {
+			return;
+		}
+		this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "metrics");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		this.timer.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					logInterval();
+				} catch (Throwable t) {
+					logger.error("Error logging metrics " + t, t);
+				}
+			}
+		}, this.intervalMs, this.intervalMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * End of the job: stop the summary and log the report for the whole job
+	 *
+	 * @param jobSpec
+	 */
+	public static void report(String jobSpec) {
+		instance.stop();
+		instance.logReport(jobSpec);
+	}
+
+	synchronized void stop() {
+		if (this.timer != null) {
+			this.timer.shutdownNow();
+			this.timer = null;
+		}
+	}
+
+	/**
+	 * Log what happened since the last interval
+	 */
+	synchronized void logInterval() {
+		long now = System.currentTimeMillis();
+		double seconds = Math.max(1, now - this.lastReportAt) / 1000.0;
+		this.lastReportAt = now;
+
+		for (StatementMetrics metrics : new TreeMap<String, StatementMetrics>(this.statements).values()) {
+			takeInterval(metrics);
+			long submitted = metrics.submitted.get();
+			long completed = metrics.completed.get();
+			long inFlight = submitted - completed;
+			if (submitted == metrics.lastSubmitted && completed == metrics.lastCompleted && inFlight == 0) {
+				continue;
+			}
+			Histogram interval = metrics.interval;
+			logger.info("Metrics " + metrics.name + ": submit " + rate(submitted - metrics.lastSubmitted, seconds)
+					+ "/s, complete " + rate(completed - metrics.lastCompleted, seconds) + "/s, latency "
+					+ latencies(interval) + ", in flight " + inFlight + ", retries " + metrics.retries.get()
+					+ ", rejects " + metrics.errorString());
+			metrics.lastSubmitted = submitted;
+			metrics.lastCompleted = completed;
+		}
+
+		for (ParseMetrics metrics : new TreeMap<String, ParseMetrics>(this.parsers).values()) {
+			long records = metrics.records.get();
+			long parseNanos = metrics.parseNanos.get();
+			if (records == metrics.lastRecords) {
+				continue;
+			}
+			logger.info("Metrics parse " + metrics.source + ": " + rate(records - metrics.lastRecords, seconds)
+					+ " records/s, " + perRecord(parseNanos - metrics.lastParseNanos, records - metrics.lastRecords)
+					+ "us/record, failures " + metrics.failures.get());
+			metrics.lastRecords = records;
+			metrics.lastParseNanos = parseNanos;
+		}
+
+		InFlightWindow window = this.window;
+		if (window != null) {
+			logger.info("Metrics window " + window.getLimit() + ", in flight " + window.getInFlight());
+		}
+	}
+
+	/**
+	 * Log the totals for the job
+	 *
+	 * @param jobSpec
+	 */
+	synchronized void logReport(String jobSpec) {
+		double seconds = Math.max(1, System.currentTimeMillis() - this.startedAt) / 1000.0;
+		logger.info("Report " + jobSpec + ": " + Math.round(seconds) + "s");
+		for (StatementMetrics metrics : new TreeMap<String, StatementMetrics>(this.statements).values()) {
+			takeInterval(metrics);
+			long submitted = metrics.submitted.get();
+			if (submitted == 0 && metrics.errors.isEmpty()) {
+				continue;
+			}
+			logger.info("Report " + metrics.name + ": submitted " + submitted + ", completed "
+					+ metrics.completed.get() + ", " + rate(metrics.completed.get(), seconds) + "/s, latency "
+					+ latencies(metrics.total) + " max " + metrics.total.getMaxValue() + "us, retries "
+					+ metrics.retries.get() + ", rejects " + metrics.errorString());
+		}
+		for (ParseMetrics metrics : new TreeMap<String, ParseMetrics>(this.parsers).values()) {
+			long records = metrics.records.get();
+			logger.info("Report parse " + metrics.source + ": " + records + " records, " + rate(records, seconds)
+					+ "/s, " + perRecord(metrics.parseNanos.get(), records) + "us/record, failures "
+					+ metrics.failures.get());
+		}
+	}
+
+	/**
+	 * Move what the statement recorded since last time into its interval
+	 * histogram, and add it to its total
+	 *
+	 * @param metrics
+	 */
+	static void takeInterval(StatementMetrics metrics) {
+		metrics.interval = metrics.latencies.getIntervalHistogram(metrics.interval);
+		metrics.total.add(metrics.interval);
+	}
+
+	static String latencies(Histogram histogram) {
+		if (histogram.getTotalCount() == 0) {
+			return "none";
+		}
+		return "p50 " + histogram.getValueAtPercentile(50.0) + "us p99 " + histogram.getValueAtPercentile(99.0)
+				+ "us p999 " + histogram.getValueAtPercentile(99.9) + "us";
+	}
+
+	static long rate(long count, double seconds) {
+		return Math.round(count / seconds);
+	}
+
+	static String perRecord(long nanos, long records) {
+		if (records == 0) {
+			return "0";
+		}
+		return String.format("%.1f", nanos / 1000.0 / records);
+	}
+}
@@ -0,0 +1,464 @@
+package org.jude.bigdata.recroom.movies.etl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Index of movie_id to release_year. Role and doc loads use it to answer the
+ * movie existence check locally instead of selecting from the movie table for
+ * every record.
+ *
+ * The movie list has several million titles, too many for a HashMap in our
+ * 2GB heap, so the index lives off-heap in two direct buffers:
+ * <ul>
+ * <li>an arena of entries, each [key length (2 bytes)][key][release year (2
+ * bytes)]. Key chars below 0xFF take one byte; any other char is stored as 0xFF
+ * followed by its two bytes.</li>
+ * <li>an open-addressing hash table (linear probing) of arena offsets + 1; 0
+ * marks a free slot.</li>
+ * </ul>
+ * Lookups take a CharSequence and compare it against the arena in place, so
+ * they allocate nothing. Build the index on one thread, then share it for
+ * lookups.
+ *
+ * The index can be saved to a file and mapped back in (read-only) by a later
+ * job.
+ *
+ * remove() leaves the entry in place with NOT_FOUND for a year, so the probe
+ * chains through it still hold; a put() of the movie brings it back.
+ *
+ * @author mhavey
+ *
+ */
+public class MovieIndex {
+
+	/**
+	 * getReleaseYear() result for a movie that is not in the index
+	 */
+	public static final int NOT_FOUND = -1;
+
+	/**
+	 * getReleaseYear() result for a movie that is in the index but has no
+	 * release year
+	 */
+	public static final int NO_YEAR = -2;
+
+	public static final String INDEX_FILE_NAME = "movies.idx";
+
+	static final int MAGIC = 0x4d494458; // MIDX
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 20;
+	static final int INITIAL_SLOTS = 1 << 16;
+	static final int INITIAL_ARENA = 1 << 20;
+	static final float MAX_LOAD = 0.6f;
+	static final int ESCAPE = 0xFF;
+
+	ByteBuffer arena;
+	int arenaUsed = 0;
+	IntBuffer slots;
+	int mask;
+	int size = 0;
+	int numRemoved = 0;
+	boolean readOnly = false;
+
+	static Logger logger = Logger.getLogger(MovieIndex.class);
+
+	/**
+	 * Constructor - empty index
+	 */
+	public MovieIndex() {
+		this.arena = ByteBuffer.allocateDirect(INITIAL_ARENA);
+		this.slots = ByteBuffer.allocateDirect(INITIAL_SLOTS * 4).asIntBuffer();
+		this.mask = INITIAL_SLOTS - 1;
+	}
+
+	/**
+	 * Constructor - index over buffers mapped from a saved file
+	 */
+	MovieIndex(ByteBuffer arena, int arenaUsed, IntBuffer slots, int size) {
+		this.arena = arena;
+		this.arenaUsed = arenaUsed;
+		this.slots = slots;
+		this.mask = slots.capacity() - 1;
+		this.size = size;
+		this.readOnly = true;
+	}
+
+	/**
+	 * Add a movie, or replace its release year if it is already there
+	 *
+	 * @param movieID
+	 * @param releaseYear
+	 *            - or NO_YEAR
+	 */
+	public void put(CharSequence movieID, int releaseYear) {
+		if (this.readOnly) {
+			throw new IllegalStateException("Movie index loaded from file is read only");
+		}
+		int slot = findSlot(movieID);
+		int offset = this.slots.get(slot) - 1;
+		if (offset >= 0) {
+			int yearPos = offset + 2 + keyLength(offset);
+			if (this.arena.getShort(yearPos) == NOT_FOUND) {
+				this.size++;
+				this.numRemoved--;
+			}
+			this.arena.putShort(yearPos, (short) releaseYear);
+			return;
+		}
+
+		// append the entry to the arena
+		int keyLen = encodedLength(movieID);
+		if (keyLen > 0xFFFF) {
+			throw new IllegalArgumentException("Movie id too long " + movieID);
+		}
+		ensureArena(2 + keyLen + 2);
+		offset = this.arenaUsed;
+		this.arena.putShort(offset, (short) keyLen);
+		int pos = offset + 2;
+		for (int i = 0; i < movieID.length(); i++) {
+			char c = movieID.charAt(i);
+			if (c < ESCAPE) {
+				this.arena.put(pos++, (byte) c);
+			} else {
+				this.arena.put(pos++, (byte) ESCAPE);
+				this.arena.putChar(pos, c);
+				pos += 2;
+			}
+		}
+		this.arena.putShort(pos, (short) releaseYear);
+		this.arenaUsed = pos + 2;
+
+		// and point a slot at it
+		this.slots.put(slot, offset + 1);
+		this.size++;
+		if (this.size + this.numRemoved > this.slots.capacity() * MAX_LOAD) {
+			rehash(this.slots.capacity() * 2);
+		}
+	}
+
+	/**
+	 * Add the movie in the given record (from the movie list) unless it is
+	 * already there. Like the movie insert, the first one wins.
+	 *
+	 * @param record
+	 * @return false if the movie was already in the index
+	 * @throws ETLException
+	 */
+	public boolean addMovie(ImdbRecord record) throws ETLException {
+		String movieID = record.getMandatoryString(ETLConstants.FIELD_MOVIE_ID);
+		if (contains(movieID)) {
+			return false;
+		}
+		Integer year = (Integer) record.get(ETLConstants.FIELD_RELEASE_YEAR);
+		put(movieID, year == null ? NO_YEAR : year);
+		return true;
+	}
+
+	/**
+	 * Take a movie out of the index; e.g., one whose insert was rejected
+	 *
+	 * @param movieID
+	 * @return false if it wasn't there
+	 */
+	public boolean remove(CharSequence movieID) {
+		if (this.readOnly) {
+			throw new IllegalStateException("Movie index loaded from file is read only");
+		}
+		int offset = this.slots.get(findSlot(movieID)) - 1;
+		if (offset < 0) {
+			return false;
+		}
+		int yearPos = offset + 2 + keyLength(offset);
+		if (this.arena.getShort(yearPos) == NOT_FOUND) {
+			return false;
+		}
+		this.arena.putShort(yearPos, (short) NOT_FOUND);
+		this.size--;
+		this.numRemoved++;
+		return true;
+	}
+
+	/**
+	 * Release year of the given movie, NO_YEAR if it has none, NOT_FOUND if it
+	 * is not in the index.
+	 *
+	 * @param movieID
+	 * @return
+	 */
+	public int getReleaseYear(CharSequence movieID) {
+		int offset = this.slots.get(findSlot(movieID)) - 1;
+		if (offset < 0) {
+			return NOT_FOUND;
+		}
+		return this.arena.getShort(offset + 2 + keyLength(offset));
+	}
+
+	/**
+	 * Is the given movie in the index?
+	 *
+	 * @param movieID
+	 * @return
+	 */
+	public boolean contains(CharSequence movieID) {
+		return getReleaseYear(movieID) != NOT_FOUND;
+	}
+
+	/**
+	 * Number of movies in the index
+	 *
+	 * @return
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * Slot holding the given movie, or the free slot where it would go
+	 */
+	int findSlot(CharSequence movieID) {
+		int slot = hash(movieID) & this.mask;
+		while (true) {
+			int offset = this.slots.get(slot) - 1;
+			if (offset < 0 || keyEquals(offset, movieID)) {
+				return slot;
+			}
+			slot = (slot + 1) & this.mask;
+		}
+	}
+
+	int keyLength(int offset) {
+		return this.arena.getShort(offset) & 0xFFFF;
+	}
+
+	/**
+	 * Compare the key of the entry at offset with movieID, char by char
+	 */
+	boolean keyEquals(int offset, CharSequence movieID) {
+		int pos = offset + 2;
+		int end = pos + keyLength(offset);
+		for (int i = 0; i < movieID.length(); i++) {
+			if (pos >= end) {
+				return false;
+			}
+			char c = movieID.charAt(i);
+			int b = this.arena.get(pos++) & 0xFF;
+			if (c < ESCAPE) {
+				if (b != c) {
+					return false;
+				}
+			} else {
+				if (b != ESCAPE || pos + 2 > end || this.arena.getChar(pos) != c) {
+					return false;
+				}
+				pos += 2;
+			}
+		}
+		return pos == end;
+	}
+
+	/**
+	 * Hash the chars of the key (murmur3 finalizer over a polynomial hash)
+	 */
+	static int hash(CharSequence key) {
+		int h = 0;
+		for (int i = 0; i < key.length(); i++) {
+			h = 31 * h + key.charAt(i);
+		}
+		return mix(h);
+	}
+
+	/**
+	 * Same hash as hash(), over the key of the entry at offset
+	 */
+	int hashEntry(int offset) {
+		int h = 0;
+		int pos = offset + 2;
+		int end = pos + keyLength(offset);
+		while (pos < end) {
+			int b = this.arena.get(pos++) & 0xFF;
+			if (b == ESCAPE) {
+				h = 31 * h + this.arena.getChar(pos);
+				pos += 2;
+			} else {
+				h = 31 * h + b;
+			}
+		}
+		return mix(h);
+	}
+
+	static int mix(int h) {
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	static int encodedLength(CharSequence key) {
+		int len = 0;
+		for (int i = 0; i < key.length(); i++) {
+			len += (key.charAt(i) < ESCAPE) ? 1 : 3;
+		}
+		return len;
+	}
+
+	/**
+	 * Grow the arena, if need be, to take another needed bytes
+	 */
+	void ensureArena(int needed) {
+		if (this.arenaUsed + needed <= this.arena.capacity()) {
+			return;
+		}
+		int newCapacity = this.arena.capacity();
+		while (this.arenaUsed + needed > newCapacity) {
+			newCapacity *= 2;
+		}
+		ByteBuffer newArena = ByteBuffer.allocateDirect(newCapacity);
+		ByteBuffer used = this.arena.duplicate();
+		used.position(0).limit(this.arenaUsed);
+		newArena.put(used);
+		this.arena = newArena;
+	}
+
+	/**
+	 * Move every entry into a hash table of the given size
+	 */
+	void rehash(int numSlots) {
+		IntBuffer newSlots = ByteBuffer.allocateDirect(numSlots * 4).asIntBuffer();
+		int newMask = numSlots - 1;
+		for (int i = 0; i < this.slots.capacity(); i++) {
+			int offset = this.slots.get(i) - 1;
+			if (offset < 0) {
+				continue;
+			}
+			int slot = hashEntry(offset) & newMask;
+			while (newSlots.get(slot) != 0) {
+				slot = (slot + 1) & newMask;
+			}
+			newSlots.put(slot, offset + 1);
+		}
+		this.slots = newSlots;
+		this.mask = newMask;
+	}
+
+	/**
+	 * Save the index to the given file
+	 *
+	 * @param file
+	 * @throws ETLException
+	 */
+	public void save(File file) throws ETLException {
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "rw");
+			raf.setLength(0);
+			FileChannel channel = raf.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(MAGIC).putInt(VERSION).putInt(this.size).putInt(this.slots.capacity())
+					.putInt(this.arenaUsed);
+			header.flip();
+			writeFully(channel, header);
+
+			ByteBuffer slotBytes = ByteBuffer.allocate(this.slots.capacity() * 4);
+			IntBuffer slotInts = slotBytes.asIntBuffer();
+			for (int i = 0; i < this.slots.capacity(); i++) {
+				slotInts.put(i, this.slots.get(i));
+			}
+			writeFully(channel, slotBytes);
+
+			ByteBuffer used = this.arena.duplicate();
+			used.position(0).limit(this.arenaUsed);
+			writeFully(channel, used);
+			logger.info("Saved movie index of " + this.size + " movies to *" + file + "*");
+		} catch (IOException e) {
+			throw new ETLException(ETLConstants.ERR_FILE, "Error saving movie index to *" + file + "*", e);
+		} finally {
+			closeQuietly(raf);
+		}
+	}
+
+	static void writeFully(FileChannel channel, ByteBuffer buf) throws IOException {
+		while (buf.hasRemaining()) {
+			channel.write(buf);
+		}
+	}
+
+	/**
+	 * Map a saved index back in. The index is read only.
+	 *
+	 * @param file
+	 * @return
+	 * @throws ETLException
+	 */
+	public static MovieIndex load(File file) throws ETLException {
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "r");
+			MappedByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+			if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION) {
+				throw new ETLException(ETLConstants.ERR_FILE, "Not a movie index file *" + file + "*");
+			}
+			int size = map.getInt(8);
+			int numSlots = map.getInt(12);
+			int arenaUsed = map.getInt(16);
+
+			map.position(HEADER_SIZE).limit(HEADER_SIZE + numSlots * 4);
+			IntBuffer slots = map.slice().asIntBuffer();
+			map.limit(map.capacity()).position(HEADER_SIZE + numSlots * 4);
+			ByteBuffer arena = map.slice();
+
+			logger.info("Loaded movie index of " + size + " movies from *" + file + "*");
+			return new MovieIndex(arena, arenaUsed, slots, size);
+		} catch (IOException e) {
+			throw new ETLException(ETLConstants.ERR_FILE, "Error loading movie index from *" + file + "*", e);
+		} finally {
+			closeQuietly(raf);
+		}
+	}
+
+	static void closeQuietly(RandomAccessFile raf) {
+		if (raf != null) {
+			try {
+				raf.close();
+			} catch (IOException e) {
+				logger.error("Error closing movie index file " + e, e);
+			}
+		}
+	}
+
+	/**
+	 * Build the index from the main movie list. Movies that the movie load
+	 * would reject for breaking the series/episode order are left out.
+	 *
+	 * @param iterator
+	 *            - iterator on the "movies" source
+	 * @return
+	 * @throws ETLException
+	 */
+	public static MovieIndex buildFromImdb(ImdbIterator iterator) throws ETLException {
+		MovieIndex index = new MovieIndex();
+		SeriesTracker seriesTracker = new SeriesTracker();
+		while (!iterator.isEOF()) {
+			ImdbRecord next = iterator.nextRecord();
+			if (next != null) {
+				try {
+					seriesTracker.isEpisode(next);
+				} catch (ETLException e) {
+					continue;
+				}
+				index.addMovie(next);
+			}
+		}
+		logger.info("Built movie index from IMDB movie list. Movies: " + index.size());
+		return index;
+	}
+}
@@ -0,0 +1,279 @@
+package org.jude.bigdata.recroom.movies.etl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Merge join of the movie list with the movie update files (genres, ratings,
+ * etc.). All of these files are sorted by movie ID, so we walk them together
+ * and build one complete movie record - base row plus every attribute,
+ * including the UDTs - which the movie load writes with a single insert
+ * instead of an insert plus one update (or select-then-update) per file.
+ *
+ * Update rows that don't line up - an orphan, whose movie isn't in the movie
+ * list, or a row out of order in its file - are put aside. Once the merged
+ * movies are in, the loader sends them the old way, one update each, which
+ * also rejects them just like before.
+ *
+ * A movie list row out of order (e.g., a dupe of the previous movie) gets no
+ * updates; isInOrder() is false for it.
+ *
+ * @author mhavey
+ *
+ */
+public class MovieMergeJoin {
+
+	// put-aside rows are held in memory until the movies are in; warn every
+	// this many, since a file that isn't really sorted ends up all put aside
+	public static final int PUT_ASIDE_WARN = 100000;
+
+	/**
+	 * One update file in the join
+	 */
+	public static class Source {
+		ImdbIterator iterator;
+		String fileName;
+		String attribute;
+		boolean mergeUDT;
+		String statementName;
+		ImdbRecord head = null;
+		String headKey = null;
+		String lastKey = null;
+		List<ImdbRecord> putAside = new ArrayList<ImdbRecord>();
+		int numMerged = 0;
+
+		Source(ImdbIterator iterator, String fileName, String attribute, boolean mergeUDT, String statementName) {
+			this.iterator = iterator;
+			this.fileName = fileName;
+			this.attribute = attribute;
+			this.mergeUDT = mergeUDT;
+			this.statementName = statementName;
+		}
+
+		public ImdbIterator getIterator() {
+			return this.iterator;
+		}
+
+		public String getFileName() {
+			return this.fileName;
+		}
+
+		public String getStatementName() {
+			return this.statementName;
+		}
+
+		public List<ImdbRecord> getPutAside() {
+			return this.putAside;
+		}
+
+		/**
+		 * Put a row aside, to send once the movies are in
+		 *
+		 * @param row
+		 */
+		void putAsideRow(ImdbRecord row) {
+			this.putAside.add(row);
+			if (this.putAside.size() % PUT_ASIDE_WARN == 0) {
+				Logger.getLogger(MovieMergeJoin.class).warn(
+						"Merge join " + this.fileName + " has " + this.putAside.size()
+								+ " rows put aside in memory; is it sorted by movie ID?");
+			}
+		}
+
+		/**
+		 * Move to the next row of the file. Rows out of order go straight to
+		 * the put-aside list.
+		 *
+		 * @throws ETLException
+		 */
+		void advance() throws ETLException {
+			this.head = null;
+			this.headKey = null;
+			while (!this.iterator.isEOF()) {
+				ImdbRecord next = this.iterator.nextRecord();
+				if (next == null) {
+					continue;
+				}
+				String key = next.getMandatoryString(ETLConstants.FIELD_MOVIE_ID);
+				if (this.lastKey != null && key.compareTo(this.lastKey) < 0) {
+					this.putAsideRow(next);
+					continue;
+				}
+				this.head = next;
+				this.headKey = key;
+				this.lastKey = key;
+				return;
+			}
+		}
+	}
+
+	ImdbIterator movieIterator;
+	List<Source> sources = new ArrayList<Source>();
+	String lastMovieKey = null;
+	boolean inOrder = false;
+	boolean started = false;
+
+	Logger logger = Logger.getLogger(MovieMergeJoin.class);
+
+	/**
+	 * Constructor
+	 *
+	 * @param movieIterator
+	 *            - iterator on the movie list; drives the join
+	 */
+	public MovieMergeJoin(ImdbIterator movieIterator) {
+		this.movieIterator = movieIterator;
+	}
+
+	/**
+	 * Add an update file. Add them in the order the old load applied them: a
+	 * file that merges into a UDT comes after the one that sets it.
+	 *
+	 * @param iterator
+	 * @param fileName
+	 * @param attribute
+	 *            - movie column the file sets
+	 * @param mergeUDT
+	 *            - merge into the UDT rather than replace it
+	 * @param statementName
+	 *            - statement used to send the file's rows the old way
+	 */
+	public void addSource(ImdbIterator iterator, String fileName, String attribute, boolean mergeUDT,
+			String statementName) {
+		this.sources.add(new Source(iterator, fileName, attribute, mergeUDT, statementName));
+	}
+
+	public List<Source> getSources() {
+		return this.sources;
+	}
+
+	/**
+	 * Next movie from the movie list. If null, either EOF or an error in the
+	 * record; check isEOF(), as with ImdbIterator. If the movie is in order,
+	 * follow with either mergeUpdates() or putAsideUpdates().
+	 *
+	 * @return
+	 * @throws ETLException
+	 */
+	public ImdbRecord nextRecord() throws ETLException {
+		if (!this.started) {
+			for (Source source : this.sources) {
+				source.advance();
+			}
+			this.started = true;
+		}
+		this.inOrder = false;
+
+		ImdbRecord movie = this.movieIterator.nextRecord();
+		if (movie == null) {
+			if (this.movieIterator.isEOF()) {
+				// whatever is left has no movie
+				for (Source source : this.sources) {
+					while (source.head != null) {
+						source.putAsideRow(source.head);
+						source.advance();
+					}
+				}
+			}
+			return null;
+		}
+		String key = movie.getMandatoryString(ETLConstants.FIELD_MOVIE_ID);
+		if (this.lastMovieKey != null && key.compareTo(this.lastMovieKey) <= 0) {
+			return movie;
+		}
+		this.lastMovieKey = key;
+		this.inOrder = true;
+
+		// rows before this movie have no movie
+		for (Source source : this.sources) {
+			while (source.head != null && source.headKey.compareTo(key) < 0) {
+				source.putAsideRow(source.head);
+				source.advance();
+			}
+		}
+		return movie;
+	}
+
+	/**
+	 * Is the last movie returned in order in the movie list? If not (e.g., a
+	 * dupe of the previous movie), it has no updates to merge.
+	 *
+	 * @return
+	 */
+	public boolean isInOrder() {
+		return this.inOrder;
+	}
+
+	/**
+	 * Merge the updates for the last movie returned into it. The last row of
+	 * a file for the movie wins, as with one update each.
+	 *
+	 * @param movie
+	 * @throws ETLException
+	 */
+	public void mergeUpdates(ImdbRecord movie) throws ETLException {
+		for (Source source : this.sources) {
+			while (source.head != null && source.headKey.equals(this.lastMovieKey)) {
+				merge(movie, source, source.head);
+				source.numMerged++;
+				source.advance();
+			}
+		}
+	}
+
+	/**
+	 * The last movie returned won't be loaded (rejected), so neither are its
+	 * updates. Put them aside, so they get rejected the old way.
+	 *
+	 * @throws ETLException
+	 */
+	public void putAsideUpdates() throws ETLException {
+		for (Source source : this.sources) {
+			while (source.head != null && source.headKey.equals(this.lastMovieKey)) {
+				source.putAsideRow(source.head);
+				source.advance();
+			}
+		}
+	}
+
+	/**
+	 * Merge an update row into the movie
+	 *
+	 * @param movie
+	 * @param source
+	 * @param update
+	 */
+	void merge(ImdbRecord movie, Source source, ImdbRecord update) {
+		Object value = update.get(source.attribute);
+		if (value == null) {
+			return;
+		}
+		if (value instanceof ImdbRecord) {
+			// build the UDT in its own record; the update rows stay as parsed
+			ImdbRecord subdoc = movie.getSubdoc(source.attribute);
+			if (subdoc == null || !source.mergeUDT) {
+				subdoc = new ImdbRecord();
+				movie.append(source.attribute, subdoc);
+			}
+			subdoc.merge((ImdbRecord) value);
+		} else {
+			movie.append(source.attribute, value);
+		}
+	}
+
+	public boolean isEOF() {
+		return this.movieIterator.isEOF();
+	}
+
+	/**
+	 * Log how each file fared
+	 */
+	public void logSummary() {
+		for (Source source : this.sources) {
+			logger.info("Merge join " + source.fileName + " merged " + source.numMerged + " put aside "
+					+ source.putAside.size());
+		}
+	}
+}
@@ -0,0 +1,260 @@
+package org.jude.bigdata.recroom.movies.etl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+
+/**
+ * Groups consecutive writes of a statement that land in the same partition into
+ * a single batch (UNLOGGED, or COUNTER for counter updates). Our IMDB files are
+ * sorted by movie (or contributor), so a run of follow-on writes for one movie
+ * goes to Cassandra as one request instead of one each.
+ *
+ * A batch is sent when the partition key changes, when it reaches the max
+ * size, or when it has been open longer than the linger time. Each write in
+ * the batch still holds its own slot in the in-flight window and is logged as
+ * a success or failure on its own iterator when the batch completes.
+ *
+ * Open batches are kept per statement per iterator, so files loading in
+ * parallel don't break up each other's runs.
+ *
+ * @author mhavey
+ *
+ */
+public class PartitionBatcher {
+
+	/**
+	 * A write waiting in a batch
+	 */
+	static class Entry {
+		ImdbRecord record;
+		ImdbIterator iterator;
+
+		Entry(ImdbRecord record, ImdbIterator iterator) {
+			this.record = record;
+			this.iterator = iterator;
+		}
+	}
+
+	/**
+	 * An open batch: the writes so far for one partition
+	 */
+	static class PendingBatch {
+		CassDBConnection.PreparedStatementDefinition statement;
+		String partitionKey;
+		BatchStatement batch;
+		List<Entry> entries = new ArrayList<Entry>();
+		long openedAt = System.currentTimeMillis();
+
+		PendingBatch(CassDBConnection.PreparedStatementDefinition statement, String partitionKey) {
+			this.statement = statement;
+			this.partitionKey = partitionKey;
+			this.batch = new BatchStatement(statement.getBatchType());
+		}
+	}
+
+	/**
+	 * Callback for a batch. Fans the result out to each write in it.
+	 */
+	static class BatchFutureCallback implements FutureCallback<ResultSet> {
+		CassDBConnection cConnection;
+		PendingBatch pending;
+		long startNanos = System.nanoTime();
+
+		BatchFutureCallback(CassDBConnection cConnection, PendingBatch pending) {
+			this.cConnection = cConnection;
+			this.pending = pending;
+		}
+
+		public void onSuccess(ResultSet rs) {
+			this.cConnection.recordResponse(this.pending.statement, this.startNanos, null, this.pending.entries.size());
+			for (Entry entry : this.pending.entries) {
+				entry.iterator.logSuccess();
+			}
+		}
+
+		public void onFailure(Throwable t) {
+			this.cConnection.recordResponse(this.pending.statement, this.startNanos, t, this.pending.entries.size());
+			for (Entry entry : this.pending.entries) {
+				this.cConnection.onCQLResultFailure(this.pending.statement.getStatementName(), entry.record,
+						entry.iterator, t);
+			}
+		}
+	}
+
+	CassDBConnection cConnection;
+	int maxSize;
+	long lingerMs;
+	Map<String, PendingBatch> openBatches = new HashMap<String, PendingBatch>();
+	ScheduledExecutorService lingerTimer = null;
+
+	Logger logger = Logger.getLogger(PartitionBatcher.class);
+
+	/**
+	 * Constructor
+	 *
+	 * @param cConnection
+	 * @param maxSize
+	 *            - max writes per batch
+	 * @param lingerMs
+	 *            - max time a batch stays open waiting for more writes
+	 */
+	public PartitionBatcher(CassDBConnection cConnection, int maxSize, long lingerMs) {
+		this.cConnection = cConnection;
+		this.maxSize = maxSize;
+		this.lingerMs = lingerMs;
+	}
+
+	/**
+	 * Start the timer that sends batches that have lingered too long
+	 */
+	public void start() {
+		this.lingerTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "batch-linger");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		this.lingerTimer.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					flushExpired();
+				} catch (Throwable t) {
+					logger.error("Error flushing lingering batches " + t, t);
+				}
+			}
+		}, this.lingerMs, this.lingerMs, TimeUnit.MILLISECONDS);
+		logger.info("Batching writes by partition. Max batch size " + this.maxSize + " linger ms " + this.lingerMs);
+	}
+
+	/**
+	 * Send whatever is open and stop the timer
+	 */
+	public void stop() {
+		if (this.lingerTimer != null) {
+			this.lingerTimer.shutdownNow();
+		}
+		flushAll();
+	}
+
+	/**
+	 * Add a write to the open batch for its statement. If the write is for a
+	 * different partition than the open batch, send the open batch first.
+	 *
+	 * @param stmt
+	 * @param bstmt
+	 * @param record
+	 * @param iterator
+	 */
+	public synchronized void add(CassDBConnection.PreparedStatementDefinition stmt, BoundStatement bstmt,
+			ImdbRecord record, ImdbIterator iterator) {
+		String slot = stmt.getStatementName() + "@" + iterator.getSource();
+		String partitionKey = partitionKey(stmt, record);
+		PendingBatch pending = this.openBatches.get(slot);
+		if (pending != null && !pending.partitionKey.equals(partitionKey)) {
+			send(pending);
+			pending = null;
+		}
+		if (pending == null) {
+			pending = new PendingBatch(stmt, partitionKey);
+			this.openBatches.put(slot, pending);
+		}
+		pending.batch.add(bstmt);
+		pending.entries.add(new Entry(record, iterator));
+		if (pending.entries.size() >= this.maxSize) {
+			this.openBatches.remove(slot);
+			send(pending);
+		}
+	}
+
+	/**
+	 * Are there writes waiting in open batches?
+	 *
+	 * @return
+	 */
+	public synchronized boolean hasOpenBatches() {
+		return !this.openBatches.isEmpty();
+	}
+
+	/**
+	 * Send every open batch. Needed before the loader blocks on the in-flight
+	 * window, because the writes in open batches hold slots in it.
+	 */
+	public synchronized void flushAll() {
+		for (PendingBatch pending : this.openBatches.values()) {
+			send(pending);
+		}
+		this.openBatches.clear();
+	}
+
+	/**
+	 * Send the batches that have been open longer than the linger time
+	 */
+	synchronized void flushExpired() {
+		long expiry = System.currentTimeMillis() - this.lingerMs;
+		Iterator<PendingBatch> iter = this.openBatches.values().iterator();
+		while (iter.hasNext()) {
+			PendingBatch pending = iter.next();
+			if (pending.openedAt <= expiry) {
+				iter.remove();
+				send(pending);
+			}
+		}
+	}
+
+	/**
+	 * Send a batch. A batch of one goes as a plain statement.
+	 *
+	 * @param pending
+	 */
+	void send(PendingBatch pending) {
+		BatchFutureCallback callback = new BatchFutureCallback(this.cConnection, pending);
+		pending.statement.getMetrics().submitted(pending.entries.size());
+		try {
+			ResultSetFuture future;
+			if (pending.entries.size() == 1) {
+				future = this.cConnection.session.executeAsync(pending.batch.getStatements().iterator().next());
+			} else {
+				future = this.cConnection.session.executeAsync(pending.batch);
+			}
+			Futures.addCallback(future, callback);
+		} catch (Throwable t) {
+			callback.onFailure(t);
+		}
+	}
+
+	/**
+	 * The record's partition key for the statement, as a string
+	 *
+	 * @param stmt
+	 * @param record
+	 * @return
+	 */
+	static String partitionKey(CassDBConnection.PreparedStatementDefinition stmt, ImdbRecord record) {
+		String cols[] = stmt.getBatchColumns();
+		if (cols.length == 1) {
+			return String.valueOf(record.get(cols[0]));
+		}
+		StringBuilder key = new StringBuilder();
+		for (int i = 0; i < cols.length; i++) {
+			key.append(record.get(cols[i])).append('\u0000');
+		}
+		return key.toString();
+	}
+}
@@ -0,0 +1,206 @@
+package org.jude.bigdata.recroom.movies.etl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.jude.bigdata.recroom.movies.etl.parser.ImdbLineParser;
+
+/**
+ * Runs ImdbLineParsers on their own threads and hands the records they produce
+ * to the loader through a bounded queue. Each parser runs on a single thread,
+ * so the records of one parser come out in file order; parsers that track
+ * state across lines (series/episodes, multi-line records) see their lines in
+ * the same order as in the synchronous mode.
+ *
+ * The queue holds batches of ImdbRecords and ETLExceptions (a record that
+ * failed to parse), and a final EOF marker once every parser is done. Parsers
+ * of chunks of the same file (see ChunkSplitter) run side by side, so their
+ * records interleave; a batch is only cut where the parser's block key
+ * changes (see ImdbLineParser.getBlockKey()), so a block, e.g. the roles of
+ * one contributor or a series and its episodes, still comes out in one run.
+ *
+ * If a parser thread dies (anything but a record that fails to parse), what it
+ * parsed so far is queued, then a Failure, which is always taken before EOF;
+ * the loader must fail the file rather than take the short read as its end.
+ *
+ * @author mhavey
+ *
+ */
+public class RecordPipeline {
+
+	public static final int BATCH_SIZE = 100;
+	public static final int QUEUE_SIZE = 100;
+	public static final Object EOF = new Object();
+
+	/**
+	 * A parser thread died; the records after the ones already queued are lost
+	 */
+	public static class Failure {
+		ETLException error;
+
+		Failure(ETLException error) {
+			this.error = error;
+		}
+
+		public ETLException getError() {
+			return this.error;
+		}
+	}
+
+	BlockingQueue<Object> queue = new ArrayBlockingQueue<Object>(QUEUE_SIZE);
+	List<?> takeBatch = null;
+	int takePos = 0;
+	AtomicInteger numRunning = new AtomicInteger(0);
+	volatile Failure failure = null;
+	String name;
+
+	Logger logger = Logger.getLogger(RecordPipeline.class);
+
+	/**
+	 * Constructor
+	 *
+	 * @param name
+	 */
+	public RecordPipeline(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Start a thread per parser. The parsers must already be open.
+	 *
+	 * @param parsers
+	 */
+	public void start(ImdbLineParser... parsers) {
+		this.numRunning.addAndGet(parsers.length);
+		for (int i = 0; i < parsers.length; i++) {
+			final ImdbLineParser parser = parsers[i];
+			Thread t = new Thread(new Runnable() {
+				public void run() {
+					drain(parser);
+				}
+			}, "parse-" + this.name + "-" + i);
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	/**
+	 * Parser thread mainline. Read every record from the parser and queue it
+	 * in batches.
+	 *
+	 * @param parser
+	 */
+	void drain(ImdbLineParser parser) {
+		List<Object> batch = new ArrayList<Object>(BATCH_SIZE);
+		Object lastKey = null;
+		LoadMetrics.ParseMetrics metrics = LoadMetrics.instance().parser(this.name);
+		int parsed = 0;
+		long parseNanos = 0;
+		try {
+			while (true) {
+				try {
+					long startNanos = System.nanoTime();
+					ImdbRecord t = parser.next();
+					parseNanos += System.nanoTime() - startNanos;
+					if (t == null) {
+						break;
+					}
+					parsed++;
+					t.setLineNumber(parser.getLineNumber());
+					Object key = parser.getBlockKey(t);
+					if (batch.size() >= BATCH_SIZE && (key == null || !key.equals(lastKey))) {
+						// metrics a batch at a time, so the parser threads
+						// don't contend on them
+						metrics.parsed(parsed, parseNanos);
+						parsed = 0;
+						parseNanos = 0;
+						queue.put(batch);
+						batch = new ArrayList<Object>(BATCH_SIZE);
+					}
+					batch.add(t);
+					lastKey = key;
+				} catch (ETLException x) {
+					metrics.failed();
+					batch.add(x);
+				}
+			}
+			metrics.parsed(parsed, parseNanos);
+			if (batch.size() > 0) {
+				queue.put(batch);
+			}
+		} catch (InterruptedException e) {
+			logger.error("Parser thread for " + this.name + " interrupted " + e, e);
+			fail(batch, new ETLException(ETLConstants.ERR_FILE, "Parser thread for " + this.name + " interrupted", e));
+			Thread.currentThread().interrupt();
+		} catch (Throwable t) {
+			fail(batch, new ETLException(ETLConstants.ERR_FILE, "Parser thread for " + this.name + " failed", t));
+		} finally {
+			try {
+				parser.closeReader();
+			} catch (ETLException e) {
+				// already logged by parser
+			}
+			if (numRunning.decrementAndGet() == 0) {
+				try {
+					queue.put(EOF);
+				} catch (InterruptedException e) {
+					logger.error("Parser thread for " + this.name + " interrupted at EOF " + e, e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * A parser thread died: queue what it parsed before the failure, then the
+	 * failure. Waits for room, like the records. The failure is also kept
+	 * aside, so that take() reports it at EOF even if it couldn't be queued.
+	 *
+	 * @param batch
+	 * @param error
+	 */
+	void fail(List<Object> batch, ETLException error) {
+		Failure failure = new Failure(error);
+		if (this.failure == null) {
+			this.failure = failure;
+		}
+		try {
+			if (batch.size() > 0) {
+				queue.put(batch);
+			}
+			queue.put(failure);
+		} catch (InterruptedException e) {
+			logger.error("Parser thread for " + this.name + " interrupted queueing its failure " + e, e);
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Take the next item: an ImdbRecord, an ETLException (a record that failed
+	 * to parse), a Failure (a parser thread died), or EOF. Single consumer.
+	 *
+	 * @return
+	 * @throws ETLException
+	 */
+	public Object take() throws ETLException {
+		try {
+			while (this.takeBatch == null || this.takePos == this.takeBatch.size()) {
+				Object item = queue.take();
+				if (item == EOF && this.failure != null) {
+					return this.failure;
+				}
+				if (!(item instanceof List)) {
+					return item;
+				}
+				this.takeBatch = (List<?>) item;
+				this.takePos = 0;
+			}
+			return this.takeBatch.get(this.takePos++);
+		} catch (InterruptedException e) {
+			throw new ETLException(ETLConstants.ERR_FILE, "Interrupted waiting for records from " + this.name, e);
+		}
+	}
+}
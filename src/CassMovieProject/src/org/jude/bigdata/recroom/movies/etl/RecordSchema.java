@@ -0,0 +1,113 @@
+package org.jude.bigdata.recroom.movies.etl;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The field slots of the ImdbRecords of one source (or one kind of subdoc):
+ * field name to index in the record's value array. A parser's records all
+ * share its schema, so a field is looked up once per record rather than hashed
+ * into a map of its own. Fields are added to the schema the first time a
+ * record of the source gets them; a slot, once given, never changes, so a
+ * caller can resolve the slots it needs once (see slotOf()) and read records
+ * by slot from then on.
+ *
+ * @author mhavey
+ *
+ */
+public class RecordSchema {
+
+	// one per source, made on first use
+	static Map<String, RecordSchema> schemas = new HashMap<String, RecordSchema>();
+
+	// for records made without a source
+	public static final RecordSchema DEFAULT = forName("");
+
+	String name;
+	Map<String, Integer> slots = new ConcurrentHashMap<String, Integer>();
+	volatile String fields[] = new String[0];
+
+	RecordSchema(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * The schema of the given source or subdoc name
+	 *
+	 * @param name
+	 * @return
+	 */
+	public static synchronized RecordSchema forName(String name) {
+		RecordSchema schema = schemas.get(name);
+		if (schema == null) {
+			schema = new RecordSchema(name);
+			schemas.put(name, schema);
+		}
+		return schema;
+	}
+
+	public String getName() {
+		return this.name;
+	}
+
+	/**
+	 * Slot of the field, or -1 if no record of the schema has it yet
+	 *
+	 * @param field
+	 * @return
+	 */
+	public int slotOf(String field) {
+		Integer slot = this.slots.get(field);
+		return slot == null ? -1 : slot;
+	}
+
+	/**
+	 * Slot of the field, adding it if need be
+	 *
+	 * @param field
+	 * @return
+	 */
+	public int addField(String field) {
+		Integer slot = this.slots.get(field);
+		if (slot != null) {
+			return slot;
+		}
+		synchronized (this) {
+			slot = this.slots.get(field);
+			if (slot == null) {
+				slot = this.fields.length;
+				String grown[] = Arrays.copyOf(this.fields, slot + 1);
+				grown[slot] = field;
+				this.fields = grown;
+				this.slots.put(field, slot);
+			}
+			return slot;
+		}
+	}
+
+	/**
+	 * Field name of the slot
+	 *
+	 * @param slot
+	 * @return
+	 */
+	public String getField(int slot) {
+		return this.fields[slot];
+	}
+
+	/**
+	 * Number of fields so far
+	 *
+	 * @return
+	 */
+	public int size() {
+		return this.fields.length;
+	}
+
+	@Override
+	public String toString() {
+		return this.name + Arrays.toString(this.fields);
+	}
+}
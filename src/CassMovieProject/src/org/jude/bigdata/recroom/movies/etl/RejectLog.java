@@ -0,0 +1,278 @@
+package org.jude.bigdata.recroom.movies.etl;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Writes rejects to the reject.<source> loggers (rejects.log) on a thread of
+ * its own. Rejects often come from the driver's I/O threads (see
+ * CassDBConnection.CassFutureCallback), which should not wait on the log4j
+ * appender, or on each other: reject() only puts the reject on a lock-free
+ * queue, and the line is built and logged by the writer thread.
+ *
+ * reject() never writes or blocks, so the queue is bounded by the producers
+ * instead: once QUEUE_SIZE rejects are queued (the writer is far behind), the
+ * next producer to ask for a record (see awaitRoom(), from
+ * ImdbIterator.nextRecord()) writes out the queue itself before it goes on.
+ * Only the requests already in flight can add to the queue meanwhile.
+ *
+ * Line format: REJECT|source|errCode|offender|message|cause|record
+ *
+ * If given a rejects file (see openFile()), the writer thread also writes each
+ * reject to it as a JSON line (see RejectsFile), and at the end of the job
+ * close() logs how many rejects there were of each source and error code.
+ *
+ * @author mhavey
+ *
+ */
+public class RejectLog {
+
+	public static final int QUEUE_SIZE = 64 * 1024;
+	static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+	/**
+	 * One reject, as queued
+	 */
+	static class Reject {
+		String source;
+		String statement;
+		ETLException error;
+		ImdbRecord record;
+
+		Reject(String source, String statement, ETLException error, ImdbRecord record) {
+			this.source = source;
+			this.statement = statement;
+			this.error = error;
+			this.record = record;
+		}
+	}
+
+	static volatile RejectLog instance = null;
+
+	ConcurrentLinkedQueue<Reject> queue = new ConcurrentLinkedQueue<Reject>();
+	AtomicInteger queued = new AtomicInteger(0);
+	AtomicLong producerWaitNanos = new AtomicLong(0);
+	Map<String, Logger> loggers = new HashMap<String, Logger>();
+	Map<String, long[]> counts = new TreeMap<String, long[]>();
+	RejectsFile file = null;
+	Thread writer;
+
+	Logger logger = Logger.getLogger(RejectLog.class);
+
+	/**
+	 * The reject log, started on first use. Takes no lock once started.
+	 *
+	 * @return
+	 */
+	public static RejectLog instance() {
+		RejectLog log = instance;
+		if (log != null) {
+			return log;
+		}
+		synchronized (RejectLog.class) {
+			if (instance == null) {
+				log = new RejectLog();
+				log.start();
+				instance = log;
+			}
+			return instance;
+		}
+	}
+
+	/**
+	 * Called by a producer (not a driver thread) before it makes more work: if
+	 * the queue is full, write it out on this thread. Does nothing if the
+	 * reject log was never started.
+	 */
+	public static void awaitRoom() {
+		RejectLog log = instance;
+		if (log != null && log.queued.get() >= QUEUE_SIZE) {
+			long start = System.nanoTime();
+			log.writeQueued();
+			log.producerWaitNanos.addAndGet(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * End of the job: write out what's queued, close the rejects file and log
+	 * the count of rejects by source and error code. Does nothing if the
+	 * reject log was never started.
+	 */
+	public static void close() {
+		RejectLog log;
+		synchronized (RejectLog.class) {
+			log = instance;
+		}
+		if (log != null) {
+			log.drain();
+			log.closeFile();
+			log.logSummary();
+		}
+	}
+
+	void start() {
+		this.writer = new Thread(new Runnable() {
+			public void run() {
+				writeLoop();
+			}
+		}, "reject-writer");
+		this.writer.setDaemon(true);
+		this.writer.start();
+
+		// an exit in the middle of the job shouldn't lose the rejects
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			public void run() {
+				drain();
+			}
+		}, "reject-flush"));
+	}
+
+	/**
+	 * Also write the rejects to the given file, as JSON lines. Call before the
+	 * first reject.
+	 *
+	 * @param file
+	 * @throws ETLException
+	 */
+	public synchronized void openFile(RejectsFile file) throws ETLException {
+		file.openForWrite();
+		this.file = file;
+		logger.info("Writing rejects to *" + file.getFile() + "*");
+	}
+
+	synchronized void closeFile() {
+		if (this.file != null) {
+			this.file.safeClose();
+			logger.info("Wrote " + this.file.getNumLines() + " rejects to *" + this.file.getFile() + "*");
+			this.file = null;
+		}
+	}
+
+	/**
+	 * Log the number of rejects of each source and error code
+	 */
+	synchronized void logSummary() {
+		long total = 0;
+		for (Map.Entry<String, long[]> count : this.counts.entrySet()) {
+			logger.info("Rejects " + count.getKey() + " " + count.getValue()[0]);
+			total += count.getValue()[0];
+		}
+		logger.info("Rejects total " + total);
+	}
+
+	/**
+	 * Queue a reject
+	 *
+	 * @param source
+	 * @param statement
+	 *            - the statement that failed, if any
+	 * @param error
+	 * @param record
+	 */
+	public void reject(String source, String statement, ETLException error, ImdbRecord record) {
+		this.queued.incrementAndGet();
+		this.queue.offer(new Reject(source, statement, error, record));
+	}
+
+	/**
+	 * Writer thread mainline. Parks a moment when there's nothing to write, so
+	 * reject() never has to wake it.
+	 */
+	void writeLoop() {
+		while (true) {
+			if (!writeQueued()) {
+				LockSupport.parkNanos(IDLE_PARK_NANOS);
+			}
+		}
+	}
+
+	/**
+	 * Write everything queued so far. Takes each reject off the queue and
+	 * writes it under the lock, so that with drain() at it too, the rejects
+	 * are still written in order.
+	 *
+	 * @return whether there was anything
+	 */
+	boolean writeQueued() {
+		boolean wrote = false;
+		while (true) {
+			synchronized (this) {
+				Reject reject = this.queue.poll();
+				if (reject == null) {
+					return wrote;
+				}
+				write(reject);
+			}
+			this.queued.decrementAndGet();
+			wrote = true;
+		}
+	}
+
+	/**
+	 * Write out what's queued, from the caller's thread, and wait for the
+	 * writer to finish the one it has
+	 */
+	void drain() {
+		writeQueued();
+		while (this.queued.get() > 0) {
+			LockSupport.parkNanos(IDLE_PARK_NANOS);
+			writeQueued();
+		}
+		long waitMs = TimeUnit.NANOSECONDS.toMillis(this.producerWaitNanos.getAndSet(0));
+		if (waitMs > 0) {
+			logger.info("Reject queue was full; the loaders spent " + waitMs + "ms writing it out");
+		}
+		synchronized (this) {
+			if (this.file != null) {
+				try {
+					this.file.flush();
+				} catch (ETLException e) {
+					ETLException.logError(logger, "Error flushing rejects file", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Log one reject line
+	 *
+	 * @param reject
+	 */
+	synchronized void write(Reject reject) {
+		Logger rejectLogger = this.loggers.get(reject.source);
+		if (rejectLogger == null) {
+			rejectLogger = Logger.getLogger("reject." + reject.source);
+			this.loggers.put(reject.source, rejectLogger);
+		}
+		ETLException e = reject.error;
+		rejectLogger.error("REJECT|" + reject.source + "|" + e.getErrCode() + "|" + e.getOffender() + "|"
+				+ e.getMessage() + "|" + e.getCause() + "|" + reject.record);
+
+		String countKey = reject.source + " " + e.getErrCode();
+		long count[] = this.counts.get(countKey);
+		if (count == null) {
+			count = new long[1];
+			this.counts.put(countKey, count);
+		}
+		count[0]++;
+
+		if (this.file != null) {
+			try {
+				this.file.write(reject.source, reject.statement, e, reject.record);
+			} catch (ETLException x) {
+				// rejects.log still has it
+				ETLException.logError(logger, "Error writing reject to rejects file; no longer writing it", x);
+				this.file.safeClose();
+				this.file = null;
+			}
+		}
+	}
+}
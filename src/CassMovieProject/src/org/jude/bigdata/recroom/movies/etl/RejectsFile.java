@@ -0,0 +1,521 @@
+package org.jude.bigdata.recroom.movies.etl;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import org.apache.log4j.Logger;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * The rejects of a job as JSON lines, one reject per line:
+ *
+ * {"source":"actors","line":1234,"errCode":"RecordNotFound","statement":...,
+ * "offender":...,"message":...,"cause":...,"record":{"movie_id":...,...}}
+ *
+ * The line is the line number in the IMDB file at which the parser returned
+ * the record (for the multiline lists, the line that ended it). The record is
+ * written with its types: ints and floats as JSON numbers, sets as arrays,
+ * subdocs as objects (with their doc type, if they have one, as "@docType").
+ * Values JSON has no type for - longs, doubles, lists, timestamps, uuids, etc.,
+ * which a select can bring into a record - are written as {"@type":...,
+ * "value":...}. openForRead()/read() read the records of one source back as
+ * they were, so a job can send just the rejects again (see the controller's
+ * --replay option). A value of a type not known here is written, and read
+ * back, as its toString().
+ *
+ * The statement is the one that failed, if the reject came from one. read()
+ * hands it back with the record (see ImdbRecord.getReplayStatement()), so the
+ * replay sends only that statement, not the whole chain: a doc whose count
+ * failed after its post went through isn't posted again. read() skips the
+ * dupes (ERR_DUPE; the row that was kept is already in), and a failure of
+ * the same statement on the same line it has already given.
+ *
+ * @author mhavey
+ *
+ */
+public class RejectsFile {
+
+	public static final String SUFFIX = ".rejects.jsonl";
+
+	static final Charset UTF8 = Charset.forName("UTF-8");
+	static final JsonFactory jsonFactory = new JsonFactory();
+
+	static final String KEY_SOURCE = "source";
+	static final String KEY_LINE = "line";
+	static final String KEY_ERR_CODE = "errCode";
+	static final String KEY_STATEMENT = "statement";
+	static final String KEY_OFFENDER = "offender";
+	static final String KEY_MESSAGE = "message";
+	static final String KEY_CAUSE = "cause";
+	static final String KEY_RECORD = "record";
+	static final String KEY_DOC_TYPE = "@docType";
+	static final String KEY_TYPE = "@type";
+	static final String KEY_VALUE = "value";
+
+	static final String TYPE_LIST = "list";
+	static final String TYPE_LONG = "bigint";
+	static final String TYPE_DOUBLE = "double";
+	static final String TYPE_DECIMAL = "decimal";
+	static final String TYPE_VARINT = "varint";
+	static final String TYPE_TIMESTAMP = "timestamp";
+	static final String TYPE_UUID = "uuid";
+
+	File file;
+	JsonGenerator generator = null;
+	BufferedReader reader = null;
+	String readSource = null;
+	RecordSchema readSchema = null;
+	Set<String> readKeys = null;
+	int numDupes = 0;
+	int numRepeats = 0;
+	int numLines = 0;
+
+	Logger logger = Logger.getLogger(RejectsFile.class);
+
+	public RejectsFile(File file) {
+		this.file = file;
+	}
+
+	public File getFile() {
+		return this.file;
+	}
+
+	/**
+	 * Open the file for writing; an existing file is replaced
+	 *
+	 * @throws ETLException
+	 */
+	public void openForWrite() throws ETLException {
+		if (this.generator != null || this.reader != null) {
+			throw new ETLException(ETLConstants.ERR_FILE, "Rejects file *" + this.file + "* is already open");
+		}
+		try {
+			this.generator = jsonFactory.createGenerator(new BufferedWriter(new OutputStreamWriter(
+					new FileOutputStream(this.file), UTF8)));
+			// one reject per line; we end the lines ourselves
+			this.generator.setRootValueSeparator(null);
+		} catch (IOException e) {
+			throw new ETLException(ETLConstants.ERR_FILE, "Error opening rejects file *" + this.file + "*", e);
+		}
+	}
+
+	/**
+	 * Write one reject
+	 *
+	 * @param source
+	 * @param statement
+	 *            - the statement that failed, or null
+	 * @param error
+	 * @param record
+	 * @throws ETLException
+	 */
+	public void write(String source, String statement, ETLException error, ImdbRecord record)
+			throws ETLException {
+		try {
+			this.generator.writeStartObject();
+			this.generator.writeStringField(KEY_SOURCE, source);
+			this.generator.writeNumberField(KEY_LINE, record == null ? 0 : record.getLineNumber());
+			this.generator.writeStringField(KEY_ERR_CODE, error.getErrCode());
+			this.generator.writeStringField(KEY_STATEMENT, statement);
+			this.generator.writeStringField(KEY_OFFENDER, error.getOffender());
+			this.generator.writeStringField(KEY_MESSAGE, error.getMessage());
+			this.generator.writeStringField(KEY_CAUSE, error.getCause() == null ? null : error.getCause().toString());
+			if (record != null) {
+				this.generator.writeFieldName(KEY_RECORD);
+				writeRecord(record);
+			}
+			this.generator.writeEndObject();
+			this.generator.writeRaw('\n');
+			this.numLines++;
+		} catch (IOException e) {
+			throw new ETLException(ETLConstants.ERR_FILE, "Error writing rejects file *" + this.file + "*", e);
+		}
+	}
+
+	void writeRecord(ImdbRecord record) throws IOException {
+		this.generator.writeStartObject();
+		// first, so the reader can make the record of the right schema
+		if (record.getDocType() != null) {
+			this.generator.writeStringField(KEY_DOC_TYPE, record.getDocType());
+		}
+		for (int i = 0; i < record.kinds.length; i++) {
+			if (record.kinds[i] == ImdbRecord.ABSENT) {
+				continue;
+			}
+			this.generator.writeFieldName(record.schema.getField(i));
+			if (record.isInt(i)) {
+				this.generator.writeNumber(record.getInt(i));
+			} else if (record.isFloat(i)) {
+				this.generator.writeNumber(record.getFloat(i));
+			} else {
+				writeValue(record.values[i]);
+			}
+		}
+		this.generator.writeEndObject();
+	}
+
+	void writeValue(Object value) throws IOException {
+		if (value == null) {
+			this.generator.writeNull();
+		} else if (value instanceof ImdbRecord) {
+			writeRecord((ImdbRecord) value);
+		} else if (value instanceof Integer) {
+			this.generator.writeNumber((Integer) value);
+		} else if (value instanceof Float) {
+			this.generator.writeNumber((Float) value);
+		} else if (value instanceof String) {
+			this.generator.writeString((String) value);
+		} else if (value instanceof Boolean) {
+			this.generator.writeBoolean((Boolean) value);
+		} else if (value instanceof Set) {
+			writeElements((Collection<?>) value);
+		} else {
+			writeTyped(value);
+		}
+	}
+
+	void writeElements(Collection<?> values) throws IOException {
+		this.generator.writeStartArray();
+		for (Object element : values) {
+			writeValue(element);
+		}
+		this.generator.writeEndArray();
+	}
+
+	/**
+	 * Write a value JSON has no type for, with its type
+	 *
+	 * @param value
+	 * @throws IOException
+	 */
+	void writeTyped(Object value) throws IOException {
+		this.generator.writeStartObject();
+		if (value instanceof Collection) {
+			this.generator.writeStringField(KEY_TYPE, TYPE_LIST);
+			this.generator.writeFieldName(KEY_VALUE);
+			writeElements((Collection<?>) value);
+		} else if (value instanceof Long) {
+			this.generator.writeStringField(KEY_TYPE, TYPE_LONG);
+			this.generator.writeNumberField(KEY_VALUE, (Long) value);
+		} else if (value instanceof Double) {
+			this.generator.writeStringField(KEY_TYPE, TYPE_DOUBLE);
+			this.generator.writeNumberField(KEY_VALUE, (Double) value);
+		} else if (value instanceof Date) {
+			this.generator.writeStringField(KEY_TYPE, TYPE_TIMESTAMP);
+			this.generator.writeNumberField(KEY_VALUE, ((Date) value).getTime());
+		} else {
+			String type = value.getClass().getName();
+			if (value instanceof BigDecimal) {
+				type = TYPE_DECIMAL;
+			} else if (value instanceof BigInteger) {
+				type = TYPE_VARINT;
+			} else if (value instanceof UUID) {
+				type = TYPE_UUID;
+			}
+			this.generator.writeStringField(KEY_TYPE, type);
+			this.generator.writeStringField(KEY_VALUE, value.toString());
+		}
+		this.generator.writeEndObject();
+	}
+
+	/**
+	 * Push what's written so far to the file
+	 *
+	 * @throws ETLException
+	 */
+	public void flush() throws ETLException {
+		try {
+			if (this.generator != null) {
+				this.generator.flush();
+			}
+		} catch (IOException e) {
+			throw new ETLException(ETLConstants.ERR_FILE, "Error writing rejects file *" + this.file + "*", e);
+		}
+	}
+
+	/**
+	 * Open the file to read back the records rejected from the given source
+	 *
+	 * @param source
+	 * @throws ETLException
+	 */
+	public void openForRead(String source) throws ETLException {
+		if (this.generator != null || this.reader != null) {
+			throw new ETLException(ETLConstants.ERR_FILE, "Rejects file *" + this.file + "* is already open");
+		}
+		try {
+			this.reader = new BufferedReader(new InputStreamReader(new FileInputStream(this.file), UTF8));
+		} catch (IOException e) {
+			throw new ETLException(ETLConstants.ERR_FILE, "Error opening rejects file *" + this.file + "*", e);
+		}
+		this.readSource = source;
+		this.readSchema = RecordSchema.forName(source);
+		this.readKeys = new HashSet<String>();
+		this.numDupes = 0;
+		this.numRepeats = 0;
+	}
+
+	/**
+	 * Next record rejected from the source, with its line number and the
+	 * statement it failed on. Skips dupes and repeats (see above).
+	 *
+	 * @return the record, or null at EOF
+	 * @throws ETLException
+	 */
+	public ImdbRecord read() throws ETLException {
+		try {
+			String line;
+			while ((line = this.reader.readLine()) != null) {
+				this.numLines++;
+				if (line.trim().length() == 0) {
+					continue;
+				}
+				ImdbRecord record = parseLine(line);
+				if (record != null) {
+					return record;
+				}
+			}
+			if (this.numDupes > 0 || this.numRepeats > 0) {
+				logger.info("Replay of " + this.readSource + " skipped " + this.numDupes + " dupes and "
+						+ this.numRepeats + " repeated rejects");
+				this.numDupes = 0;
+				this.numRepeats = 0;
+			}
+			return null;
+		} catch (IOException e) {
+			throw new ETLException(ETLConstants.ERR_FILE, "Error reading rejects file *" + this.file + "* at line "
+					+ this.numLines, e);
+		}
+	}
+
+	/**
+	 * The record of the reject line, if it's from our source, has one and is
+	 * to be sent again
+	 *
+	 * @param line
+	 * @return
+	 * @throws IOException
+	 */
+	ImdbRecord parseLine(String line) throws IOException {
+		JsonParser parser = jsonFactory.createParser(line);
+		try {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				throw new IOException("Reject is not a JSON object: " + line);
+			}
+			String source = null;
+			long lineNumber = 0;
+			String errCode = null;
+			String statement = null;
+			ImdbRecord record = null;
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String key = parser.getCurrentName();
+				JsonToken token = parser.nextToken();
+				if (key.equals(KEY_SOURCE)) {
+					source = parser.getText();
+					if (!this.readSource.equals(source)) {
+						return null;
+					}
+				} else if (key.equals(KEY_LINE)) {
+					lineNumber = parser.getLongValue();
+				} else if (key.equals(KEY_ERR_CODE)) {
+					errCode = parser.getText();
+				} else if (key.equals(KEY_STATEMENT)) {
+					statement = token == JsonToken.VALUE_NULL ? null : parser.getText();
+				} else if (key.equals(KEY_RECORD) && token == JsonToken.START_OBJECT) {
+					record = readRecord(parser, new ImdbRecord(this.readSchema), parser.nextToken());
+				} else {
+					parser.skipChildren();
+				}
+			}
+			if (record == null || !this.readSource.equals(source)) {
+				return null;
+			}
+			if (ETLConstants.ERR_DUPE.equals(errCode)) {
+				this.numDupes++;
+				return null;
+			}
+			String key = statement + "|" + (lineNumber > 0 ? Long.toString(lineNumber) : record.toString());
+			if (!this.readKeys.add(key)) {
+				this.numRepeats++;
+				return null;
+			}
+			record.setLineNumber(lineNumber);
+			record.setReplayStatement(statement);
+			return record;
+		} finally {
+			parser.close();
+		}
+	}
+
+	/**
+	 * Read the fields of a record object
+	 *
+	 * @param parser
+	 * @param record
+	 * @param token
+	 *            - the first token in the object
+	 * @return
+	 * @throws IOException
+	 */
+	static ImdbRecord readRecord(JsonParser parser, ImdbRecord record, JsonToken token) throws IOException {
+		for (; token == JsonToken.FIELD_NAME; token = parser.nextToken()) {
+			String key = parser.getCurrentName();
+			token = parser.nextToken();
+			if (key.equals(KEY_DOC_TYPE)) {
+				record.setDocType(parser.getText());
+			} else if (token == JsonToken.VALUE_NUMBER_INT) {
+				record.appendInt(key, parser.getIntValue());
+			} else if (token == JsonToken.VALUE_NUMBER_FLOAT) {
+				record.appendFloat(key, parser.getFloatValue());
+			} else {
+				record.append(key, readValue(parser, token));
+			}
+		}
+		return record;
+	}
+
+	/**
+	 * Read the value the parser is at
+	 *
+	 * @param parser
+	 * @param token
+	 *            - the value's token
+	 * @return
+	 * @throws IOException
+	 */
+	static Object readValue(JsonParser parser, JsonToken token) throws IOException {
+		switch (token) {
+		case VALUE_NULL:
+			return null;
+		case VALUE_NUMBER_INT:
+			return parser.getIntValue();
+		case VALUE_NUMBER_FLOAT:
+			return parser.getFloatValue();
+		case VALUE_TRUE:
+		case VALUE_FALSE:
+			return parser.getBooleanValue();
+		case START_ARRAY:
+			return readElements(parser, new HashSet<Object>());
+		case START_OBJECT:
+			token = parser.nextToken();
+			if (token == JsonToken.FIELD_NAME && parser.getCurrentName().equals(KEY_TYPE)) {
+				return readTyped(parser);
+			}
+			if (token == JsonToken.FIELD_NAME && parser.getCurrentName().equals(KEY_DOC_TYPE)) {
+				parser.nextToken();
+				return readRecord(parser, new ImdbRecord(parser.getText()), parser.nextToken());
+			}
+			return readRecord(parser, new ImdbRecord(), token);
+		default:
+			return parser.getText();
+		}
+	}
+
+	static <C extends Collection<Object>> C readElements(JsonParser parser, C values) throws IOException {
+		JsonToken token;
+		while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+			values.add(readValue(parser, token));
+		}
+		return values;
+	}
+
+	/**
+	 * Read a value written by writeTyped(); the parser is at its "@type"
+	 *
+	 * @param parser
+	 * @return
+	 * @throws IOException
+	 */
+	static Object readTyped(JsonParser parser) throws IOException {
+		parser.nextToken();
+		String type = parser.getText();
+		if (parser.nextToken() != JsonToken.FIELD_NAME || !parser.getCurrentName().equals(KEY_VALUE)) {
+			throw new IOException("No value for the " + type + " at " + parser.getCurrentLocation());
+		}
+		JsonToken token = parser.nextToken();
+		Object value;
+		if (type.equals(TYPE_LIST)) {
+			List<Object> values = new ArrayList<Object>();
+			value = readElements(parser, values);
+		} else if (type.equals(TYPE_LONG)) {
+			value = parser.getLongValue();
+		} else if (type.equals(TYPE_DOUBLE)) {
+			value = parser.getDoubleValue();
+		} else if (type.equals(TYPE_TIMESTAMP)) {
+			value = new Date(parser.getLongValue());
+		} else if (type.equals(TYPE_DECIMAL)) {
+			value = new BigDecimal(parser.getText());
+		} else if (type.equals(TYPE_VARINT)) {
+			value = new BigInteger(parser.getText());
+		} else if (type.equals(TYPE_UUID)) {
+			value = UUID.fromString(parser.getText());
+		} else {
+			value = (token == JsonToken.VALUE_NULL) ? null : parser.getText();
+		}
+		if (parser.nextToken() != JsonToken.END_OBJECT) {
+			throw new IOException("More than a value in the " + type + " at " + parser.getCurrentLocation());
+		}
+		return value;
+	}
+
+	/**
+	 * Close the file. If it throws ETLException, it closed as much as it could
+	 *
+	 * @throws ETLException
+	 */
+	public void close() throws ETLException {
+		try {
+			if (this.generator != null) {
+				this.generator.close();
+			}
+			if (this.reader != null) {
+				this.reader.close();
+			}
+		} catch (IOException e) {
+			ETLException ex = new ETLException(ETLConstants.ERR_FILE, "Error closing rejects file *" + this.file
+					+ "*", e);
+			ETLException.logError(logger, "", ex);
+			throw ex;
+		} finally {
+			this.generator = null;
+			this.reader = null;
+		}
+	}
+
+	public void safeClose() {
+		try {
+			close();
+		} catch (ETLException x) {
+			// swallow it - already logged
+		}
+	}
+
+	/**
+	 * Lines written, or read so far
+	 *
+	 * @return
+	 */
+	public int getNumLines() {
+		return this.numLines;
+	}
+}
@@ -0,0 +1,59 @@
+package org.jude.bigdata.recroom.movies.etl;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Client-side stand-in for "if not exists" on the movie_cast insert. The
+ * primary key is (movie_id, contrib_class, contrib_id). The contributor class is
+ * the role file, and each role file lists all of a contributor's roles in one
+ * block, so a dupe can only happen within a block: the same contributor in the
+ * same movie twice. We keep the movies seen in the current block and clear
+ * them when the contributor changes.
+ *
+ * Role files can load in parallel, so there is one block per file.
+ *
+ * @author mhavey
+ *
+ */
+public class RoleDeduper {
+
+	/**
+	 * The current contributor of one file, and the movies seen for it so far
+	 */
+	static class Block {
+		String contribID = null;
+		Set<String> movieIDs = new HashSet<String>();
+	}
+
+	Map<String, Block> blocks = new HashMap<String, Block>();
+
+	/**
+	 * Is the record a second role of its contributor in the same movie? If not,
+	 * remember it.
+	 *
+	 * @param record
+	 * @param iterator
+	 * @return
+	 * @throws ETLException
+	 */
+	public boolean isDupe(ImdbRecord record, ImdbIterator iterator) throws ETLException {
+		String contribID = record.getMandatoryString(ETLConstants.FIELD_CONTRIB_ID);
+		String movieID = record.getMandatoryString(ETLConstants.FIELD_MOVIE_ID);
+		Block block;
+		synchronized (this) {
+			block = this.blocks.get(iterator.getSource());
+			if (block == null) {
+				block = new Block();
+				this.blocks.put(iterator.getSource(), block);
+			}
+		}
+		if (!contribID.equals(block.contribID)) {
+			block.contribID = contribID;
+			block.movieIDs.clear();
+		}
+		return !block.movieIDs.add(movieID);
+	}
+}
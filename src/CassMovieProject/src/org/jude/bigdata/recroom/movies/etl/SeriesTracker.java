@@ -0,0 +1,43 @@
+package org.jude.bigdata.recroom.movies.etl;
+
+/**
+ * Does the RI check of episode vs. series on the main movie list. A series
+ * with N episodes comes on N successive lines; a movie that starts a new
+ * series must be a series or a feature, and a movie that continues the series
+ * must be an episode. Feed the movies in file order.
+ * 
+ * @author mhavey
+ * 
+ */
+public class SeriesTracker {
+
+	String lastSeries = null;
+
+	/**
+	 * Check the next movie from the movie list.
+	 * 
+	 * @param movie
+	 * @return true if the movie is an episode of the current series, false if
+	 *         it starts a new one
+	 * @throws ETLException
+	 *             if the movie breaks the series/episode order; it should be
+	 *             rejected
+	 */
+	public boolean isEpisode(ImdbRecord movie) throws ETLException {
+		String series = movie.getMandatoryString(ETLConstants.FIELD_SERIES_ID);
+		String type = movie.getMandatoryString(ETLConstants.FIELD_SERIES_TYPE);
+		if (lastSeries == null || !lastSeries.equals(series)) {
+			lastSeries = series;
+			if (type.equals(ETLConstants.SERIES_SERIES) || type.equals(ETLConstants.SERIES_FEATURE)) {
+				return false;
+			}
+			throw new ETLException(ETLConstants.ERR_RECORD_SEMANTIC,
+					"Movie introducing new series must be series or feature");
+		} else {
+			if (type.equals(ETLConstants.SERIES_EPISODE)) {
+				return true;
+			}
+			throw new ETLException(ETLConstants.ERR_RECORD_SEMANTIC, "Movie in same series must be an episode");
+		}
+	}
+}
@@ -0,0 +1,266 @@
+package org.jude.bigdata.recroom.movies.etl;
+
+import java.util.Arrays;
+import java.util.Set;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.ColumnDefinitions;
+import com.datastax.driver.core.DataType;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.SettableByIndexData;
+import com.datastax.driver.core.UDTValue;
+import com.datastax.driver.core.UserType;
+
+/**
+ * Binds ImdbRecords to one prepared statement. Built once per statement, when
+ * it is created: the CQL type of each bound variable, and for a UDT its field
+ * order and types, come from the prepared statement's metadata. Binding a
+ * record is then a loop over the columns that reads each value by its slot in
+ * the record's schema (see RecordSchema) and calls the setter for the
+ * column's type, with no lookup by name and no instanceof chain.
+ *
+ * The slots are resolved again only when a record of another schema comes
+ * along, or the schema has grown.
+ *
+ * @author mhavey
+ *
+ */
+public class StatementBinder {
+
+	static final int TYPE_STRING = 0;
+	static final int TYPE_INT = 1;
+	static final int TYPE_FLOAT = 2;
+	static final int TYPE_SET = 3;
+	static final int TYPE_UDT = 4;
+	static final int TYPE_OTHER = 5;
+
+	/**
+	 * Field slots for records of one schema. Immutable, so threads can share
+	 * it without locking.
+	 */
+	static class Slots {
+		final RecordSchema schema;
+		final int size;
+		final int slots[];
+
+		Slots(RecordSchema schema, String fields[]) {
+			this.schema = schema;
+			this.size = schema.size();
+			this.slots = new int[fields.length];
+			for (int i = 0; i < fields.length; i++) {
+				this.slots[i] = schema.slotOf(fields[i]);
+			}
+		}
+
+		boolean isFor(RecordSchema schema) {
+			return this.schema == schema && this.size == schema.size();
+		}
+	}
+
+	/**
+	 * The fields, types and slots of a set of values: the bound variables of
+	 * the statement, or the fields of a UDT
+	 */
+	static class Fields {
+		String names[];
+		int types[];
+		Fields udts[];
+		UserType udtTypes[];
+		volatile Slots slots = null;
+
+		Fields(String names[]) {
+			this.names = names;
+			this.types = new int[names.length];
+			this.udts = new Fields[names.length];
+			this.udtTypes = new UserType[names.length];
+			Arrays.fill(this.types, TYPE_OTHER);
+		}
+
+		void setType(int i, DataType type) {
+			switch (type.getName()) {
+			case TEXT:
+			case VARCHAR:
+				this.types[i] = TYPE_STRING;
+				break;
+			case INT:
+				this.types[i] = TYPE_INT;
+				break;
+			case FLOAT:
+				this.types[i] = TYPE_FLOAT;
+				break;
+			case SET:
+				this.types[i] = TYPE_SET;
+				break;
+			case UDT:
+				UserType udt = (UserType) type;
+				String fieldNames[] = udt.getFieldNames().toArray(new String[udt.size()]);
+				Fields udtFields = new Fields(fieldNames);
+				for (int j = 0; j < fieldNames.length; j++) {
+					udtFields.setType(j, udt.getFieldType(fieldNames[j]));
+				}
+				this.types[i] = TYPE_UDT;
+				this.udts[i] = udtFields;
+				this.udtTypes[i] = udt;
+				break;
+			default:
+				this.types[i] = TYPE_OTHER;
+			}
+		}
+
+		int[] getSlots(RecordSchema schema) {
+			Slots current = this.slots;
+			if (current == null || !current.isFor(schema)) {
+				current = new Slots(schema, this.names);
+				this.slots = current;
+			}
+			return current.slots;
+		}
+	}
+
+	PreparedStatement statement;
+	Fields columns;
+
+	/**
+	 * Compile the binder for the statement
+	 *
+	 * @param statement
+	 * @param columns
+	 *            - record field of each bound variable, in order
+	 */
+	public StatementBinder(PreparedStatement statement, String columns[]) {
+		this.statement = statement;
+		this.columns = new Fields(columns);
+		ColumnDefinitions vars = statement.getVariables();
+		for (int i = 0; i < columns.length && i < vars.size(); i++) {
+			this.columns.setType(i, vars.getType(i));
+		}
+	}
+
+	/**
+	 * Bind the record's values to a new bound statement
+	 *
+	 * @param record
+	 * @param leaveNullsUnset
+	 *            - leave a column with no value unset instead of binding null
+	 * @return
+	 * @throws ETLException
+	 */
+	public BoundStatement bind(ImdbRecord record, boolean leaveNullsUnset) throws ETLException {
+		BoundStatement bstmt = this.statement.bind();
+		int slots[] = this.columns.getSlots(record.getSchema());
+		for (int i = 0; i < slots.length; i++) {
+			int slot = slots[i];
+			if (!record.hasValue(slot)) {
+				if (!leaveNullsUnset) {
+					bstmt.setToNull(i);
+				}
+				continue;
+			}
+			if (this.columns.types[i] == TYPE_UDT) {
+				ImdbRecord subdoc = toSubdoc(record.get(slot), i);
+				bstmt.setUDTValue(i, bindUDT(subdoc, this.columns.udts[i], this.columns.udtTypes[i]));
+			} else {
+				setValue(bstmt, i, this.columns.types[i], record, slot, this.columns.names);
+			}
+		}
+		return bstmt;
+	}
+
+	ImdbRecord toSubdoc(Object value, int i) throws ETLException {
+		if (!(value instanceof ImdbRecord)) {
+			throw new ETLException(ETLConstants.ERR_CONVERSION, "Can't make sense of column " + i
+					+ " in bound values " + Arrays.toString(this.columns.names));
+		}
+		return (ImdbRecord) value;
+	}
+
+	/**
+	 * Make the UDT value of the subdoc. Fields the subdoc doesn't have are
+	 * left unset.
+	 *
+	 * @param subdoc
+	 * @param fields
+	 * @param udt
+	 * @return
+	 * @throws ETLException
+	 */
+	UDTValue bindUDT(ImdbRecord subdoc, Fields fields, UserType udt) throws ETLException {
+		UDTValue uv = udt.newValue();
+		int slots[] = fields.getSlots(subdoc.getSchema());
+		for (int j = 0; j < slots.length; j++) {
+			int slot = slots[j];
+			if (!subdoc.hasValue(slot)) {
+				continue;
+			}
+			if (fields.types[j] == TYPE_UDT) {
+				throw new ETLException(ETLConstants.ERR_CONVERSION, "Illegal UDT type in UDT field *"
+						+ fields.names[j] + "* of " + udt.getTypeName());
+			}
+			setValue(uv, j, fields.types[j], subdoc, slot, fields.names);
+		}
+		return uv;
+	}
+
+	/**
+	 * Set one value (not null) by the type of its column
+	 *
+	 * @param data
+	 * @param i
+	 * @param type
+	 * @param record
+	 * @param slot
+	 * @param names
+	 * @throws ETLException
+	 */
+	@SuppressWarnings("unchecked")
+	static void setValue(SettableByIndexData<?> data, int i, int type, ImdbRecord record, int slot, String names[])
+			throws ETLException {
+		try {
+			switch (type) {
+			case TYPE_STRING:
+				data.setString(i, (String) record.get(slot));
+				break;
+			case TYPE_INT:
+				data.setInt(i, record.isInt(slot) ? record.getInt(slot) : (Integer) record.get(slot));
+				break;
+			case TYPE_FLOAT:
+				data.setFloat(i, record.isFloat(slot) ? record.getFloat(slot) : (Float) record.get(slot));
+				break;
+			case TYPE_SET:
+				data.setSet(i, (Set<String>) record.get(slot), String.class);
+				break;
+			default:
+				setByValue(data, i, record.get(slot), names);
+			}
+		} catch (ClassCastException e) {
+			throw new ETLException(ETLConstants.ERR_CONVERSION, "Illegal type *" + record.get(slot) + "* of type "
+					+ record.get(slot).getClass() + " for *" + names[i] + "* in bound values "
+					+ Arrays.toString(names), e);
+		}
+	}
+
+	/**
+	 * For a column of a type we don't compile for, go by the type of the value
+	 *
+	 * @param data
+	 * @param i
+	 * @param value
+	 * @param names
+	 * @throws ETLException
+	 */
+	@SuppressWarnings("unchecked")
+	static void setByValue(SettableByIndexData<?> data, int i, Object value, String names[]) throws ETLException {
+		if (value instanceof String) {
+			data.setString(i, (String) value);
+		} else if (value instanceof Integer) {
+			data.setInt(i, (Integer) value);
+		} else if (value instanceof Float) {
+			data.setFloat(i, (Float) value);
+		} else if (value instanceof Set) {
+			data.setSet(i, (Set<String>) value);
+		} else {
+			throw new ETLException(ETLConstants.ERR_CONVERSION, "Can't make sense of column " + i
+					+ " in bound values " + Arrays.toString(names));
+		}
+	}
+}
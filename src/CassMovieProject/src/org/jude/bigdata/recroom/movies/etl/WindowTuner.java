@@ -0,0 +1,179 @@
+package org.jude.bigdata.recroom.movies.etl;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.apache.log4j.Logger;
+
+import com.datastax.driver.core.exceptions.BusyConnectionException;
+import com.datastax.driver.core.exceptions.OperationTimedOutException;
+import com.datastax.driver.core.exceptions.OverloadedException;
+import com.datastax.driver.core.exceptions.ReadTimeoutException;
+import com.datastax.driver.core.exceptions.WriteTimeoutException;
+
+/**
+ * Sizes the in-flight window from how the cluster is coping (AIMD). The
+ * callbacks record the latency of each request and count the errors that
+ * mean the cluster is overloaded (timeouts, Overloaded, busy connections).
+ * Every interval, the tuner looks at what came in since the last one:
+ *
+ * - any overload errors: halve the window
+ *
+ * - median latency more than LATENCY_TOLERANCE times the baseline: shrink
+ * the window by a tenth
+ *
+ * - else, if the loader had to wait for the window: grow it by STEP
+ *
+ * The median rather than the tail, so that a compaction or GC pause on one
+ * node doesn't shrink the window by itself; timeouts do that. The baseline is
+ * the lowest median seen, drifting up slowly so that it follows the cluster
+ * as tables grow. The window stays between its min and max.
+ *
+ * @author mhavey
+ *
+ */
+public class WindowTuner {
+
+	public static final long INTERVAL_MS = 1000;
+	public static final int STEP = 50;
+	public static final double LATENCY_TOLERANCE = 2.0;
+	static final double SHRINK = 0.9;
+	static final double BACKOFF = 0.5;
+	static final long MIN_SAMPLES = 100;
+	static final int BASELINE_DRIFT = 1000;
+
+	InFlightWindow window;
+	int minLimit;
+	int maxLimit;
+	Recorder latencies = new Recorder(3);
+	Histogram interval = null;
+	AtomicInteger overloads = new AtomicInteger(0);
+	long baselineMicros = 0;
+	ScheduledExecutorService timer = null;
+
+	Logger logger = Logger.getLogger(WindowTuner.class);
+
+	/**
+	 * Constructor
+	 *
+	 * @param window
+	 * @param minLimit
+	 * @param maxLimit
+	 */
+	public WindowTuner(InFlightWindow window, int minLimit, int maxLimit) {
+		this.window = window;
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+	}
+
+	/**
+	 * Start tuning every INTERVAL_MS
+	 */
+	public void start() {
+		this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "window-tuner");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		this.timer.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					tune();
+				} catch (Throwable t) {
+					logger.error("Error tuning in-flight window " + t, t);
+				}
+			}
+		}, INTERVAL_MS, INTERVAL_MS, TimeUnit.MILLISECONDS);
+		logger.info("Tuning in-flight window from " + this.window.getLimit() + " between " + this.minLimit + " and "
+				+ this.maxLimit);
+	}
+
+	public void stop() {
+		if (this.timer != null) {
+			this.timer.shutdownNow();
+		}
+	}
+
+	/**
+	 * A request completed
+	 *
+	 * @param startNanos
+	 *            - System.nanoTime() when it was sent
+	 * @param error
+	 *            - its error, or null
+	 */
+	public void record(long startNanos, Throwable error) {
+		this.latencies.recordValue(Math.max(0, (System.nanoTime() - startNanos) / 1000));
+		if (error != null && isOverload(error)) {
+			this.overloads.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Does the error mean the cluster (or our connections to it) can't keep
+	 * up?
+	 *
+	 * @param error
+	 * @return
+	 */
+	static boolean isOverload(Throwable error) {
+		return error instanceof WriteTimeoutException || error instanceof ReadTimeoutException
+				|| error instanceof OperationTimedOutException || error instanceof OverloadedException
+				|| error instanceof BusyConnectionException;
+	}
+
+	/**
+	 * Adjust the window from the interval just ended
+	 */
+	synchronized void tune() {
+		this.interval = this.latencies.getIntervalHistogram(this.interval);
+		int errors = this.overloads.getAndSet(0);
+		int waits = this.window.takeWaits();
+		int limit = this.window.getLimit();
+		long median = this.interval.getValueAtPercentile(50.0);
+
+		int newLimit = limit;
+		String why;
+		if (errors > 0) {
+			newLimit = (int) (limit * BACKOFF);
+			why = errors + " overload errors";
+		} else if (this.interval.getTotalCount() < MIN_SAMPLES) {
+			return;
+		} else if (this.baselineMicros > 0 && median > this.baselineMicros * LATENCY_TOLERANCE) {
+			newLimit = (int) (limit * SHRINK);
+			why = "median " + median + "us over baseline " + this.baselineMicros + "us";
+		} else if (waits > 0) {
+			newLimit = limit + STEP;
+			why = "median " + median + "us, baseline " + this.baselineMicros + "us";
+		} else {
+			why = null;
+		}
+
+		// baseline follows the best median, and creeps up toward what we see
+		if (this.interval.getTotalCount() >= MIN_SAMPLES) {
+			if (this.baselineMicros == 0 || median < this.baselineMicros) {
+				this.baselineMicros = median;
+			} else {
+				this.baselineMicros += (median - this.baselineMicros) / BASELINE_DRIFT;
+			}
+		}
+
+		newLimit = Math.max(this.minLimit, Math.min(this.maxLimit, newLimit));
+		if (newLimit == limit) {
+			return;
+		}
+		this.window.setLimit(newLimit);
+		if (newLimit < limit) {
+			logger.info("In-flight window down from " + limit + " to " + newLimit + ": " + why);
+		} else if (logger.isDebugEnabled()) {
+			logger.debug("In-flight window up from " + limit + " to " + newLimit + ": " + why);
+		}
+	}
+}
@@ -0,0 +1,231 @@
+package org.jude.bigdata.recroom.movies.etl;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.util.concurrent.RateLimiter;
+
+/**
+ * Caps the rate of writes (rows per second) the loader sends, over all tables
+ * and per table, so a load doesn't flood a cluster that is also serving reads.
+ * The in-flight window only caps how many writes are outstanding. Each write
+ * takes a token from the global bucket and from its table's bucket (Guava's
+ * RateLimiter), waiting for one if need be. No rate, or 0, means no limit.
+ *
+ * The rates come from the WriteRate and WriteRate.<table> properties. They
+ * can be changed while the job runs by editing the control file
+ * (WriteRateFile), which has the same properties and is checked every
+ * CHECK_INTERVAL_MS; a rate missing from it goes back to its
+ * controller.properties value.
+ *
+ * @author mhavey
+ *
+ */
+public class WriteRateLimiter {
+
+	public static final long CHECK_INTERVAL_MS = 5000;
+	static final String TABLE_PREFIX = ETLConstants.PROP_WRITE_RATE + ".";
+	static final String GLOBAL = "*";
+
+	Map<String, Double> configuredRates;
+	volatile RateLimiter global = null;
+	Map<String, RateLimiter> tables = new ConcurrentHashMap<String, RateLimiter>();
+	Map<String, Double> rates = new TreeMap<String, Double>();
+	File controlFile;
+	long controlFileModified = 0;
+	ScheduledExecutorService checker = null;
+
+	Logger logger = Logger.getLogger(WriteRateLimiter.class);
+
+	/**
+	 * Constructor
+	 *
+	 * @param props
+	 *            - WriteRate properties from controller.properties
+	 * @param controlFile
+	 *            - or null
+	 */
+	public WriteRateLimiter(ETLProperties props, File controlFile) throws ETLException {
+		this.configuredRates = readRates(props.props);
+		this.controlFile = controlFile;
+		setRates(this.configuredRates);
+	}
+
+	/**
+	 * Is there anything to limit, or a control file that might say so?
+	 *
+	 * @return
+	 */
+	public boolean isActive() {
+		return this.controlFile != null || !this.rates.isEmpty();
+	}
+
+	/**
+	 * Start checking the control file, if there is one
+	 */
+	public void start() {
+		if (this.controlFile == null) {
+			return;
+		}
+		this.checker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "write-rate-control");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		this.checker.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					checkControlFile();
+				} catch (Throwable t) {
+					logger.error("Error reading write rate control file *" + controlFile + "* " + t, t);
+				}
+			}
+		}, 0, CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+		logger.info("Write rates can be changed in *" + this.controlFile + "*");
+	}
+
+	public void stop() {
+		if (this.checker != null) {
+			this.checker.shutdownNow();
+		}
+	}
+
+	/**
+	 * Wait for the right to send one row to the given table
+	 *
+	 * @param table
+	 */
+	public void acquire(String table) {
+		RateLimiter limiter = this.global;
+		if (limiter != null) {
+			limiter.acquire();
+		}
+		if (table != null) {
+			limiter = this.tables.get(table);
+			if (limiter != null) {
+				limiter.acquire();
+			}
+		}
+	}
+
+	/**
+	 * Apply the control file if it changed since we last read it. A control
+	 * file that's gone puts the configured rates back.
+	 *
+	 * @throws ETLException
+	 */
+	void checkControlFile() throws ETLException {
+		long modified = this.controlFile.exists() ? this.controlFile.lastModified() : 0;
+		if (modified == this.controlFileModified) {
+			return;
+		}
+		this.controlFileModified = modified;
+		Map<String, Double> newRates = new TreeMap<String, Double>(this.configuredRates);
+		if (modified != 0) {
+			Properties control = new Properties();
+			FileReader reader = null;
+			try {
+				reader = new FileReader(this.controlFile);
+				control.load(reader);
+			} catch (IOException e) {
+				throw new ETLException(ETLConstants.ERR_FILE, "Error loading write rate control file *"
+						+ this.controlFile + "*", e);
+			} finally {
+				if (reader != null) {
+					try {
+						reader.close();
+					} catch (IOException e) {
+						// nothing more to read
+					}
+				}
+			}
+			newRates.putAll(readRates(control));
+		}
+		setRates(newRates);
+	}
+
+	/**
+	 * The rates in the properties: the global one under GLOBAL, the others
+	 * by table. A rate of 0 is kept, to turn off a configured limit.
+	 *
+	 * @param props
+	 * @return
+	 * @throws ETLException
+	 */
+	static Map<String, Double> readRates(Properties props) throws ETLException {
+		Map<String, Double> rates = new TreeMap<String, Double>();
+		for (String name : props.stringPropertyNames()) {
+			String key;
+			if (name.equals(ETLConstants.PROP_WRITE_RATE)) {
+				key = GLOBAL;
+			} else if (name.startsWith(TABLE_PREFIX)) {
+				key = name.substring(TABLE_PREFIX.length());
+			} else {
+				continue;
+			}
+			String value = props.getProperty(name).trim();
+			try {
+				rates.put(key, value.length() == 0 ? 0.0 : Double.parseDouble(value));
+			} catch (NumberFormatException e) {
+				throw new ETLException(ETLConstants.ERR_USAGE, "Illegal write rate *" + value + "* for " + name);
+			}
+		}
+		return rates;
+	}
+
+	/**
+	 * Make the buckets match the given rates, logging what changed
+	 *
+	 * @param newRates
+	 */
+	synchronized void setRates(Map<String, Double> newRates) {
+		Map<String, Double> applied = new TreeMap<String, Double>();
+		for (Map.Entry<String, Double> rate : newRates.entrySet()) {
+			if (rate.getValue() > 0) {
+				applied.put(rate.getKey(), rate.getValue());
+			}
+		}
+		for (String key : this.rates.keySet()) {
+			if (!applied.containsKey(key)) {
+				setRate(key, 0);
+			}
+		}
+		for (Map.Entry<String, Double> rate : applied.entrySet()) {
+			setRate(rate.getKey(), rate.getValue());
+		}
+		if (!applied.equals(this.rates)) {
+			logger.info("Write rates (rows/sec) now " + (applied.isEmpty() ? "unlimited" : applied.toString()));
+		}
+		this.rates = applied;
+	}
+
+	void setRate(String key, double rate) {
+		RateLimiter limiter = key.equals(GLOBAL) ? this.global : this.tables.get(key);
+		if (rate <= 0) {
+			if (key.equals(GLOBAL)) {
+				this.global = null;
+			} else {
+				this.tables.remove(key);
+			}
+		} else if (limiter != null) {
+			limiter.setRate(rate);
+		} else if (key.equals(GLOBAL)) {
+			this.global = RateLimiter.create(rate);
+		} else {
+			this.tables.put(key, RateLimiter.create(rate));
+		}
+	}
+}
@@ -0,0 +1,224 @@
+package org.jude.bigdata.recroom.movies.etl;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.datastax.driver.core.exceptions.BusyConnectionException;
+import com.datastax.driver.core.exceptions.NoHostAvailableException;
+import com.datastax.driver.core.exceptions.OperationTimedOutException;
+import com.datastax.driver.core.exceptions.OverloadedException;
+import com.datastax.driver.core.exceptions.ReadTimeoutException;
+import com.datastax.driver.core.exceptions.UnavailableException;
+import com.datastax.driver.core.exceptions.WriteTimeoutException;
+
+/**
+ * Retries requests that failed because the cluster was busy or unreachable
+ * (timeouts, Unavailable, Overloaded, busy connections, no host), rather than
+ * rejecting them. Only idempotent statements are retried (see
+ * PreparedStatementDefinition.isIdempotent()): not lightweight transactions,
+ * counter updates or inserts that generate their own uuid.
+ *
+ * A retry waits a backoff (base * 2^(attempt-1), at most max, less up to half
+ * of it at random so that retries of the same burst don't all come back
+ * together), then waits for the circuit breaker to close and for a slot in the
+ * in-flight window, and is sent again on its own, not in a batch. While it
+ * waits, the request gives back its slot but stays pending on its iterator.
+ * The timer thread only times the backoff: the waiting and the sending
+ * (which, for a check, runs the select and its follow-ons) are done by
+ * WORKER_THREADS workers, so one retry stuck on the window doesn't hold up
+ * the backoff of the others.
+ *
+ * Retries are also capped by a budget: over the job, at most budgetPercent
+ * retries per hundred requests sent (plus BUDGET_FLOOR), so a cluster that is
+ * failing most writes isn't sent each one several times.
+ *
+ * @author mhavey
+ *
+ */
+public class WriteRetrier {
+
+	public static final long BUDGET_FLOOR = 1000;
+	public static final int WORKER_THREADS = 4;
+
+	CassDBConnection cConnection;
+	int maxAttempts;
+	long baseMs;
+	long maxMs;
+	int budgetPercent;
+	AtomicLong sent = new AtomicLong(0);
+	AtomicLong retries = new AtomicLong(0);
+	AtomicLong overBudget = new AtomicLong(0);
+	Map<String, long[]> retriesByError = new TreeMap<String, long[]>();
+	ScheduledExecutorService timer = null;
+	ExecutorService workers = null;
+
+	Logger logger = Logger.getLogger(WriteRetrier.class);
+
+	/**
+	 * Constructor
+	 *
+	 * @param cConnection
+	 * @param maxAttempts
+	 *            - retries per request
+	 * @param baseMs
+	 *            - backoff before the first retry
+	 * @param maxMs
+	 *            - longest backoff
+	 * @param budgetPercent
+	 *            - retries per hundred requests sent
+	 */
+	public WriteRetrier(CassDBConnection cConnection, int maxAttempts, long baseMs, long maxMs, int budgetPercent) {
+		this.cConnection = cConnection;
+		this.maxAttempts = maxAttempts;
+		this.baseMs = baseMs;
+		this.maxMs = maxMs;
+		this.budgetPercent = budgetPercent;
+	}
+
+	public void start() {
+		this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "write-retry-timer");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		this.workers = Executors.newFixedThreadPool(WORKER_THREADS, new ThreadFactory() {
+			AtomicLong numThreads = new AtomicLong(0);
+
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "write-retry-" + this.numThreads.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		logger.info("Retrying idempotent requests up to " + this.maxAttempts + " times, backoff " + this.baseMs
+				+ "ms to " + this.maxMs + "ms, budget " + this.budgetPercent + "% of requests");
+	}
+
+	/**
+	 * Stop, and log how many retries there were of each error
+	 */
+	public void stop() {
+		if (this.timer != null) {
+			this.timer.shutdownNow();
+		}
+		if (this.workers != null) {
+			this.workers.shutdownNow();
+		}
+		logSummary();
+	}
+
+	/**
+	 * Count a request sent, for the budget
+	 */
+	public void countSent() {
+		this.sent.incrementAndGet();
+	}
+
+	/**
+	 * Is the error one that a retry might get past?
+	 *
+	 * @param t
+	 * @return
+	 */
+	static boolean isRetryable(Throwable t) {
+		return t instanceof WriteTimeoutException || t instanceof ReadTimeoutException
+				|| t instanceof OperationTimedOutException || t instanceof UnavailableException
+				|| t instanceof OverloadedException || t instanceof BusyConnectionException
+				|| t instanceof NoHostAvailableException;
+	}
+
+	/**
+	 * Schedule a retry of the failed request, if it may be retried. If so, the
+	 * request's slot in the window is handed back until the retry is sent.
+	 *
+	 * @param stmt
+	 * @param record
+	 * @param iterator
+	 * @param t
+	 *            - the failure
+	 * @param attempt
+	 *            - retries so far
+	 * @return whether it will be retried; if not, the caller rejects it
+	 */
+	public boolean retry(final CassDBConnection.PreparedStatementDefinition stmt, final ImdbRecord record,
+			final ImdbIterator iterator, Throwable t, final int attempt) {
+		if (stmt == null || !stmt.isIdempotent() || !isRetryable(t) || attempt >= this.maxAttempts) {
+			return false;
+		}
+		if (this.retries.get() >= BUDGET_FLOOR + this.sent.get() * this.budgetPercent / 100) {
+			this.overBudget.incrementAndGet();
+			return false;
+		}
+		this.retries.incrementAndGet();
+		stmt.getMetrics().retried();
+		countError(t);
+		final Runnable resend = new Runnable() {
+			public void run() {
+				cConnection.resendCQL(stmt, record, iterator, attempt + 1);
+			}
+		};
+		try {
+			this.timer.schedule(new Runnable() {
+				public void run() {
+					workers.execute(resend);
+				}
+			}, backoff(attempt + 1), TimeUnit.MILLISECONDS);
+		} catch (Throwable x) {
+			// shut down; too late to retry
+			return false;
+		}
+		iterator.suspendPending();
+		return true;
+	}
+
+	/**
+	 * Backoff before the given retry, with jitter
+	 *
+	 * @param attempt
+	 *            - 1 for the first retry
+	 * @return
+	 */
+	long backoff(int attempt) {
+		long backoff = this.maxMs;
+		if (attempt < 31) {
+			backoff = Math.min(this.maxMs, this.baseMs << (attempt - 1));
+		}
+		return backoff - ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+	}
+
+	synchronized void countError(Throwable t) {
+		String error = t.getClass().getSimpleName();
+		long count[] = this.retriesByError.get(error);
+		if (count == null) {
+			count = new long[1];
+			this.retriesByError.put(error, count);
+		}
+		count[0]++;
+	}
+
+	synchronized void logSummary() {
+		if (this.retries.get() == 0 && this.overBudget.get() == 0) {
+			return;
+		}
+		for (Map.Entry<String, long[]> count : this.retriesByError.entrySet()) {
+			logger.info("Retries " + count.getKey() + " " + count.getValue()[0]);
+		}
+		logger.info("Retries total " + this.retries.get() + " of " + this.sent.get() + " requests sent; "
+				+ this.overBudget.get() + " not retried, over budget");
+	}
+
+	public long getRetries() {
+		return this.retries.get();
+	}
+}
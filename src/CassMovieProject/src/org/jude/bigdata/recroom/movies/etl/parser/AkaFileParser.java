@@ -73,7 +73,7 @@ public class AkaFileParser extends MultilineFileParser {
 			return new ParseResult(currentJSON, false);
 		} else {
 			// consider it a new movie - skip if it has garbage characters in it
-			ImdbRecord newMovie = new ImdbRecord();
+			ImdbRecord newMovie = newRecord();
 			newMovie.append(this.keyFieldName, line.trim());
 			if (currentJSON != null && currentJSON.get(valuesFieldName) != null) {
 				return new ParseResult(currentJSON, newMovie);
@@ -36,7 +36,7 @@ public class AlternateVersionsFileParser extends MultilineFileParser {
 		// This is the movie line
 		if (line.startsWith("#")) {
 			// consider it a new movie
-			ImdbRecord ret = new ImdbRecord();
+			ImdbRecord ret = newRecord();
 			ret.append(this.keyFieldName, line.substring(1).trim());
 			ret.append(ETLConstants.FIELD_DOC_TYPE, sourceName);
 			return new ParseResult(ret, false);
@@ -53,7 +53,7 @@ public class BiographiesFileParser extends MultilineFileParser {
 
 		if (line.startsWith("NM:")) {
 			// consider it a new contrib
-			ImdbRecord newContrib = new ImdbRecord();
+			ImdbRecord newContrib = newRecord();
 			String contribName = line.substring(3).trim();
 			newContrib.append(this.keyFieldName, contribName);
 			return new ParseResult(newContrib, false);
@@ -62,7 +62,7 @@ public class BusinessFileParser extends MultilineFileParser {
 
 		// if line starts with MV:, it's a new movie. Return it.
 		if (line.startsWith("MV:")) {
-			ImdbRecord ret = new ImdbRecord();
+			ImdbRecord ret = newRecord();
 			ret.append(this.keyFieldName, line.substring(3).trim());
 			return new ParseResult(ret, false);
 		}
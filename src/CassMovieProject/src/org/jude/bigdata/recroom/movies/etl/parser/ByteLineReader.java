@@ -0,0 +1,238 @@
+package org.jude.bigdata.recroom.movies.etl.parser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Splits the inflated IMDB file into lines without decoding it. Lines are
+ * found by scanning a reusable byte buffer for '\n' (a trailing '\r' is
+ * dropped), and each line comes back as a ByteLine: a CharSequence view over
+ * the buffer, valid until the next readLine(). Blank and end-line checks run
+ * on the raw bytes, and a parser makes Strings only of what it keeps.
+ *
+ * The IMDB lists are ISO-8859-1, one byte per char, so charAt() is just the
+ * byte.
+ *
+ * @author mhavey
+ *
+ */
+public class ByteLineReader {
+
+	public static final Charset IMDB_CHARSET = Charset.forName("ISO-8859-1");
+	static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * One line, as a view over the reader's buffer
+	 */
+	public static class ByteLine implements CharSequence {
+		byte buf[];
+		int start;
+		int end;
+
+		ByteLine() {
+		}
+
+		ByteLine(byte buf[], int start, int end) {
+			this.buf = buf;
+			this.start = start;
+			this.end = end;
+		}
+
+		public int length() {
+			return this.end - this.start;
+		}
+
+		public char charAt(int index) {
+			return (char) (this.buf[this.start + index] & 0xff);
+		}
+
+		/**
+		 * A String, since the view won't last
+		 */
+		public CharSequence subSequence(int from, int to) {
+			return new String(this.buf, this.start + from, to - from, IMDB_CHARSET);
+		}
+
+		@Override
+		public String toString() {
+			return new String(this.buf, this.start, this.end - this.start, IMDB_CHARSET);
+		}
+
+		/**
+		 * Nothing but whitespace (as in String.trim(): any char <= ' ')?
+		 *
+		 * @return
+		 */
+		public boolean isBlank() {
+			for (int i = this.start; i < this.end; i++) {
+				if ((this.buf[i] & 0xff) > ' ') {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Does the line contain the given bytes?
+		 *
+		 * @param target
+		 * @return
+		 */
+		public boolean contains(byte target[]) {
+			int last = this.end - target.length;
+			outer: for (int i = this.start; i <= last; i++) {
+				for (int j = 0; j < target.length; j++) {
+					if (this.buf[i + j] != target[j]) {
+						continue outer;
+					}
+				}
+				return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Drop leading and trailing whitespace, as String.trim(), by narrowing
+		 * this view.
+		 *
+		 * @return this
+		 */
+		public ByteLine trim() {
+			while (this.start < this.end && (this.buf[this.start] & 0xff) <= ' ') {
+				this.start++;
+			}
+			while (this.end > this.start && (this.buf[this.end - 1] & 0xff) <= ' ') {
+				this.end--;
+			}
+			return this;
+		}
+	}
+
+	InputStream in;
+	byte buf[] = new byte[BUFFER_SIZE];
+	int pos = 0;
+	int limit = 0;
+	long bufOffset = 0; // stream offset of buf[0]
+	long lineOffset = 0;
+	boolean inputEOF = false;
+	long lineNumber = 0;
+	ByteLine line = new ByteLine();
+
+	/**
+	 * Constructor
+	 *
+	 * @param in
+	 *            - the inflated file
+	 */
+	public ByteLineReader(InputStream in) {
+		this.in = in;
+	}
+
+	/**
+	 * Next line, or null at EOF. The line is only good until the next call.
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	public ByteLine readLine() throws IOException {
+		int scan = this.pos;
+		while (true) {
+			byte b[] = this.buf;
+			int limit = this.limit;
+			for (; scan < limit; scan++) {
+				if (b[scan] == '\n') {
+					return lineAt(scan, scan + 1);
+				}
+			}
+			if (this.inputEOF) {
+				if (this.pos == this.limit) {
+					return null;
+				}
+				return lineAt(this.limit, this.limit);
+			}
+			scan -= this.pos;
+			fill();
+			scan += this.pos;
+		}
+	}
+
+	/**
+	 * Make the view for the line from pos to end, and move past it
+	 *
+	 * @param end
+	 * @param next
+	 * @return
+	 */
+	ByteLine lineAt(int end, int next) {
+		if (end > this.pos && this.buf[end - 1] == '\r') {
+			end--;
+		}
+		this.line.buf = this.buf;
+		this.line.start = this.pos;
+		this.line.end = end;
+		this.lineOffset = this.bufOffset + this.pos;
+		this.pos = next;
+		this.lineNumber++;
+		return this.line;
+	}
+
+	/**
+	 * Read more of the file. Moves the partial line to the front of the buffer
+	 * first, growing the buffer if the line fills it.
+	 *
+	 * @throws IOException
+	 */
+	void fill() throws IOException {
+		int partial = this.limit - this.pos;
+		this.bufOffset += this.pos;
+		if (this.pos > 0) {
+			System.arraycopy(this.buf, this.pos, this.buf, 0, partial);
+		} else if (partial == this.buf.length) {
+			byte grown[] = new byte[this.buf.length * 2];
+			System.arraycopy(this.buf, 0, grown, 0, partial);
+			this.buf = grown;
+		}
+		this.pos = 0;
+		this.limit = partial;
+		int n = this.in.read(this.buf, this.limit, this.buf.length - this.limit);
+		if (n == -1) {
+			this.inputEOF = true;
+		} else {
+			this.limit += n;
+		}
+	}
+
+	/**
+	 * Line number of the line last returned by readLine()
+	 *
+	 * @return
+	 */
+	public long getLineNumber() {
+		return this.lineNumber;
+	}
+
+	/**
+	 * Start counting lines from here, e.g., when the stream starts partway
+	 * into the file
+	 *
+	 * @param linesBefore
+	 *            - number of lines before the stream
+	 */
+	public void setLineNumber(long linesBefore) {
+		this.lineNumber = linesBefore;
+	}
+
+	/**
+	 * Offset in the stream of the line last returned by readLine()
+	 *
+	 * @return
+	 */
+	public long getLineOffset() {
+		return this.lineOffset;
+	}
+
+	public void close() throws IOException {
+		this.in.close();
+	}
+}
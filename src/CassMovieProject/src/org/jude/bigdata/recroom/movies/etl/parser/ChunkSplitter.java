@@ -0,0 +1,269 @@
+package org.jude.bigdata.recroom.movies.etl.parser;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+import org.jude.bigdata.recroom.movies.etl.ETLConstants;
+import org.jude.bigdata.recroom.movies.etl.ETLException;
+
+/**
+ * Splits one IMDB list into chunks that are parsed in parallel, a parser per
+ * chunk. Works on the uncompressed sidecar (see ListSidecar), which it writes
+ * first if need be; a .gz can't be entered midway.
+ *
+ * The split points are found by seeking to evenly spaced offsets and walking
+ * forward to the first line the parser says a chunk can start at (see
+ * ImdbLineParser.isSplitPoint()), so no record or block of lines is cut in
+ * two. A quick pass over each chunk then counts its lines, so that each
+ * parser reports the same line numbers as a parser of the whole file, and
+ * finds the end line; chunks past the end line are dropped.
+ *
+ * @author mhavey
+ *
+ */
+public class ChunkSplitter {
+
+	// don't bother splitting into chunks smaller than this
+	public static final long MIN_CHUNK_SIZE = 4L * 1024 * 1024;
+
+	static Logger logger = Logger.getLogger(ChunkSplitter.class);
+
+	/**
+	 * What the line pass found in a chunk
+	 */
+	static class ChunkScan {
+		long lines = 0;
+		long firstDataLine = -1; // in the chunk
+		long endLineOffset = -1;
+	}
+
+	/**
+	 * Open parsers for the chunks of the given source.
+	 *
+	 * @param source
+	 * @param path
+	 * @param chunks
+	 *            - how many chunks to aim for
+	 * @return the open parsers, in file order; null if the source can't be or
+	 *         needn't be split
+	 * @throws ETLException
+	 */
+	public static ImdbLineParser[] openChunks(String source, String path, int chunks) throws ETLException {
+		ImdbLineParser first = ImdbLineParser.getParser(source, path);
+		if (chunks <= 1 || !first.isSplittable()) {
+			return null;
+		}
+
+		File listFile;
+		long dataStart;
+		List<Long> starts = new ArrayList<Long>();
+		try {
+			listFile = ListSidecar.ensure(first.getGzFile(), first.getGzipThreads());
+			long length = listFile.length();
+			dataStart = findDataStart(first, listFile);
+			chunks = (int) Math.min(chunks, (length - dataStart) / MIN_CHUNK_SIZE);
+			if (chunks <= 1) {
+				return null;
+			}
+
+			// chunk 0 starts at the top of the file and skips the preamble
+			starts.add(0L);
+			for (int i = 1; i < chunks; i++) {
+				long target = dataStart + i * ((length - dataStart) / chunks);
+				long split = findSplit(first, listFile, Math.max(target, starts.get(starts.size() - 1)), length);
+				if (split < 0) {
+					break;
+				}
+				if (split > starts.get(starts.size() - 1)) {
+					starts.add(split);
+				}
+			}
+			starts.add(length);
+		} catch (IOException e) {
+			throw new ETLException(ETLConstants.ERR_FILE, "Error splitting *" + source + "* into chunks", e);
+		}
+		if (starts.size() <= 2) {
+			return null;
+		}
+
+		// count lines and find the end line in each chunk
+		ChunkScan scans[] = scanChunks(first, listFile, starts, dataStart);
+		List<ImdbLineParser> parsers = new ArrayList<ImdbLineParser>();
+		long linesBefore = 0;
+		for (int i = 0; i < scans.length; i++) {
+			ImdbLineParser parser = (i == 0) ? first : ImdbLineParser.getParser(source, path);
+			long linesAfter = linesBefore + scans[i].lines;
+			long nextDataLine = 0;
+			for (int j = i + 1; j < scans.length; j++) {
+				if (scans[j].firstDataLine >= 0) {
+					nextDataLine = linesAfter + scans[j].firstDataLine;
+					break;
+				}
+				linesAfter += scans[j].lines;
+			}
+			parser.setChunk(listFile, starts.get(i), starts.get(i + 1), linesBefore, nextDataLine);
+			parsers.add(parser);
+			linesBefore += scans[i].lines;
+			if (scans[i].endLineOffset >= 0) {
+				break;
+			}
+		}
+		logger.info("Parsing *" + listFile + "* in " + parsers.size() + " chunks at " + starts);
+
+		for (int i = 0; i < parsers.size(); i++) {
+			try {
+				parsers.get(i).openReader();
+			} catch (ETLException e) {
+				for (int j = 0; j < i; j++) {
+					parsers.get(j).closeReader();
+				}
+				throw e;
+			}
+		}
+		return parsers.toArray(new ImdbLineParser[parsers.size()]);
+	}
+
+	/**
+	 * Offset of the first line after the header line, hunting it as
+	 * ImdbLineParser.skipPremable() does
+	 *
+	 * @param parser
+	 * @param listFile
+	 * @return
+	 * @throws IOException
+	 * @throws ETLException
+	 */
+	static long findDataStart(ImdbLineParser parser, File listFile) throws IOException, ETLException {
+		ByteLineReader reader = new ByteLineReader(new MappedFileInputStream(listFile));
+		try {
+			String hunted[] = { parser.preHeaderLine, parser.headerLine };
+			for (int i = 0; i < hunted.length; i++) {
+				if (hunted[i] == null) {
+					continue;
+				}
+				byte target[] = hunted[i].getBytes(ByteLineReader.IMDB_CHARSET);
+				while (true) {
+					ByteLineReader.ByteLine line = reader.readLine();
+					if (line == null) {
+						throw new ETLException(ETLConstants.ERR_UNEXPECTED_LINE, "Unable to find specified line "
+								+ hunted[i]);
+					}
+					if (!line.isBlank() && line.contains(target)) {
+						break;
+					}
+				}
+			}
+			return reader.readLine() == null ? listFile.length() : reader.getLineOffset();
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * First split point at or after the given offset. Skips the (possibly
+	 * partial) line there, then walks lines until the parser says a chunk can
+	 * start.
+	 *
+	 * @param parser
+	 * @param listFile
+	 * @param target
+	 * @param length
+	 * @return the offset, or -1 if there is none
+	 * @throws IOException
+	 */
+	static long findSplit(ImdbLineParser parser, File listFile, long target, long length) throws IOException {
+		ByteLineReader reader = new ByteLineReader(new MappedFileInputStream(listFile, target, length));
+		try {
+			if (reader.readLine() == null) {
+				return -1;
+			}
+			ByteLineReader.ByteLine line = reader.readLine();
+			if (line == null) {
+				return -1;
+			}
+			String prevLine = line.toString();
+			while (true) {
+				line = reader.readLine();
+				if (line == null) {
+					return -1;
+				}
+				if (parser.isSplitPoint(prevLine, line)) {
+					return target + reader.getLineOffset();
+				}
+				prevLine = line.toString();
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Line pass over the chunks, one thread each
+	 *
+	 * @param parser
+	 * @param listFile
+	 * @param starts
+	 * @param dataStart
+	 * @return
+	 * @throws ETLException
+	 */
+	static ChunkScan[] scanChunks(ImdbLineParser parser, final File listFile, final List<Long> starts,
+			final long dataStart) throws ETLException {
+		final byte endLineBytes[] = parser.endLine == null ? null : parser.endLine.getBytes(ByteLineReader.IMDB_CHARSET);
+		int numChunks = starts.size() - 1;
+		ExecutorService pool = Executors.newFixedThreadPool(numChunks);
+		try {
+			List<Future<ChunkScan>> futures = new ArrayList<Future<ChunkScan>>();
+			for (int i = 0; i < numChunks; i++) {
+				final long start = starts.get(i);
+				final long end = starts.get(i + 1);
+				futures.add(pool.submit(new Callable<ChunkScan>() {
+					public ChunkScan call() throws IOException {
+						return scanChunk(listFile, start, end, dataStart, endLineBytes);
+					}
+				}));
+			}
+			ChunkScan scans[] = new ChunkScan[numChunks];
+			for (int i = 0; i < numChunks; i++) {
+				scans[i] = futures.get(i).get();
+			}
+			return scans;
+		} catch (ExecutionException e) {
+			throw new ETLException(ETLConstants.ERR_FILE, "Error scanning chunks of *" + listFile + "*", e.getCause());
+		} catch (InterruptedException e) {
+			throw new ETLException(ETLConstants.ERR_FILE, "Interrupted scanning chunks of *" + listFile + "*", e);
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	static ChunkScan scanChunk(File listFile, long start, long end, long dataStart, byte endLineBytes[])
+			throws IOException {
+		ChunkScan scan = new ChunkScan();
+		ByteLineReader reader = new ByteLineReader(new MappedFileInputStream(listFile, start, end));
+		try {
+			ByteLineReader.ByteLine line;
+			while ((line = reader.readLine()) != null) {
+				if (scan.firstDataLine < 0 && !line.isBlank()) {
+					scan.firstDataLine = reader.getLineNumber();
+				}
+				if (scan.endLineOffset < 0 && endLineBytes != null && start + reader.getLineOffset() >= dataStart
+						&& line.contains(endLineBytes)) {
+					scan.endLineOffset = start + reader.getLineOffset();
+				}
+			}
+			scan.lines = reader.getLineNumber();
+		} finally {
+			reader.close();
+		}
+		return scan;
+	}
+}
@@ -41,7 +41,7 @@ public class ColorInfoFileParser extends MultivalFileParser {
 	 * Override
 	 */
 	public ImdbRecord valuesJSON(String movieID, Set<String> values) {
-		ImdbRecord json = new ImdbRecord();
+		ImdbRecord json = newRecord();
 
 		json.append(ETLConstants.FIELD_MOVIE_ID, movieID);
 		json.append(ETLConstants.SUBDOC_TECHNICAL,
@@ -62,7 +62,7 @@ public class CompanyRoleFileParser extends MultilineFileParser {
 		}
 
 		// here's my tuple
-		ImdbRecord thisMovie = new ImdbRecord();
+		ImdbRecord thisMovie = newRecord();
 		thisMovie.append(ETLConstants.FIELD_CONTRIB_ID, contribName);
 		thisMovie.append(ETLConstants.FIELD_CONTRIB_CLASS, this.sourceName);
 		thisMovie.append(ETLConstants.FIELD_MOVIE_ID, movieID);
@@ -36,7 +36,7 @@ public class GoofsFileParser extends MultilineFileParser {
 		// This is the movie line
 		if (line.startsWith("#")) {
 			// consider it a new movie
-			ImdbRecord newGoof = new ImdbRecord();
+			ImdbRecord newGoof = newRecord();
 			String movieID = line.substring(1).trim();
 			newGoof.append(this.keyFieldName, movieID);
 			newGoof.append(ETLConstants.FIELD_DOC_TYPE, sourceName);
@@ -59,7 +59,7 @@ public class GoofsFileParser extends MultilineFileParser {
 			}
 			String goofType = line.substring(0, 4);
 			String docText = line.substring(5).trim();
-			ImdbRecord newJSON = new ImdbRecord();
+			ImdbRecord newJSON = newRecord();
 			newJSON.append(keyFieldName, currentJSON.get(keyFieldName));
 			newJSON.append(ETLConstants.FIELD_DOC_TYPE,
 					currentJSON.get(ETLConstants.FIELD_DOC_TYPE));
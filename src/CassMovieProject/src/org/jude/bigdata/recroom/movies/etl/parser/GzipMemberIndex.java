@@ -0,0 +1,168 @@
+package org.jude.bigdata.recroom.movies.etl.parser;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Where each member of a gzip file starts. A gzip file can be several gzip
+ * members back to back (bgzip writes them that way, as does cat of gzip
+ * files); each member inflates on its own, so they can be inflated in
+ * parallel.
+ *
+ * The index is cached next to the file as <file>.gzidx, along with the length
+ * and timestamp of the file it describes, so it is thrown away if the file
+ * changes.
+ *
+ * @author mhavey
+ *
+ */
+public class GzipMemberIndex {
+
+	public static final String INDEX_SUFFIX = ".gzidx";
+	static final int MAGIC = 0x475A4958; // GZIX
+	static final int VERSION = 1;
+
+	long fileLength;
+	long lastModified;
+	long offsets[];
+
+	static Logger logger = Logger.getLogger(GzipMemberIndex.class);
+
+	/**
+	 * Constructor
+	 *
+	 * @param file
+	 * @param offsets
+	 *            - start of each member, ascending
+	 */
+	public GzipMemberIndex(File file, long offsets[]) {
+		this.fileLength = file.length();
+		this.lastModified = file.lastModified();
+		this.offsets = offsets;
+	}
+
+	GzipMemberIndex(long fileLength, long lastModified, long offsets[]) {
+		this.fileLength = fileLength;
+		this.lastModified = lastModified;
+		this.offsets = offsets;
+	}
+
+	/**
+	 * Number of members
+	 *
+	 * @return
+	 */
+	public int size() {
+		return this.offsets.length;
+	}
+
+	/**
+	 * Start of the given member
+	 *
+	 * @param member
+	 * @return
+	 */
+	public long getOffset(int member) {
+		return this.offsets[member];
+	}
+
+	/**
+	 * End of the given member (start of the next one, or end of file)
+	 *
+	 * @param member
+	 * @return
+	 */
+	public long getEnd(int member) {
+		return member + 1 < this.offsets.length ? this.offsets[member + 1] : this.fileLength;
+	}
+
+	static File indexFile(File file) {
+		return new File(file.getPath() + INDEX_SUFFIX);
+	}
+
+	/**
+	 * Save next to the gzip file. Failing to save isn't an error; we just
+	 * build it again next time.
+	 *
+	 * @param file
+	 */
+	public void save(File file) {
+		File idx = indexFile(file);
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(idx)));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(this.fileLength);
+			out.writeLong(this.lastModified);
+			out.writeInt(this.offsets.length);
+			for (int i = 0; i < this.offsets.length; i++) {
+				out.writeLong(this.offsets[i]);
+			}
+			out.close();
+			out = null;
+			logger.info("Saved gzip index of " + this.offsets.length + " members to *" + idx + "*");
+		} catch (IOException e) {
+			logger.warn("Unable to save gzip index *" + idx + "* " + e);
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException ce) {
+					// ignore
+				}
+				idx.delete();
+			}
+		}
+	}
+
+	/**
+	 * Load the cached index of the given gzip file, if there is one and it is
+	 * still good.
+	 *
+	 * @param file
+	 * @return null if none
+	 */
+	public static GzipMemberIndex load(File file) {
+		File idx = indexFile(file);
+		if (!idx.exists()) {
+			return null;
+		}
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(idx)));
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				return null;
+			}
+			long fileLength = in.readLong();
+			long lastModified = in.readLong();
+			if (fileLength != file.length() || lastModified != file.lastModified()) {
+				logger.info("Gzip index *" + idx + "* is stale");
+				return null;
+			}
+			long offsets[] = new long[in.readInt()];
+			for (int i = 0; i < offsets.length; i++) {
+				offsets[i] = in.readLong();
+			}
+			return new GzipMemberIndex(fileLength, lastModified, offsets);
+		} catch (IOException e) {
+			logger.warn("Unable to read gzip index *" + idx + "* " + e);
+			return null;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+		}
+	}
+}
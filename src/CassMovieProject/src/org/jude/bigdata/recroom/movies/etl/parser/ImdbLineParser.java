@@ -1,22 +1,21 @@
 package org.jude.bigdata.recroom.movies.etl.parser;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.LineNumberReader;
+import java.io.InputStream;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.zip.GZIPInputStream;
 
 import org.apache.log4j.Logger;
 import org.jude.bigdata.recroom.movies.etl.ETLConstants;
 import org.jude.bigdata.recroom.movies.etl.ETLException;
+import org.jude.bigdata.recroom.movies.etl.ETLProperties;
 import org.jude.bigdata.recroom.movies.etl.ImdbRecord;
+import org.jude.bigdata.recroom.movies.etl.RecordSchema;
 
 /**
  * Parses an IMDB file. next() method allows caller to iterate through the file
@@ -38,10 +37,20 @@ public abstract class ImdbLineParser {
 	boolean isEOF = false;
 	long lastLineNumber = 0;
 
-	GZIPInputStream gzis;
-	FileInputStream fis;
-	InputStreamReader isr;
-	LineNumberReader lnr;
+	InputStream gzis;
+	ByteLineReader lineReader;
+	byte endLineBytes[] = null;
+	boolean pipelined = false;
+	boolean regexOnly = false;
+
+	// set when parsing one chunk of the file; see ChunkSplitter
+	File chunkFile = null;
+	long chunkStart = 0;
+	long chunkEnd = 0;
+	long chunkLinesBefore = 0;
+	long chunkNextDataLine = 0;
+	LineBatchReader lineBatchReader = null;
+	RecordSchema schema = null;
 
 	public static final String CSV_DELIMITER = "|";
 
@@ -70,6 +79,135 @@ public abstract class ImdbLineParser {
 		this.endLine = endLine;
 	}
 
+	/**
+	 * New record, with the field slots of this source. See RecordSchema.
+	 * 
+	 * @return
+	 */
+	protected ImdbRecord newRecord() {
+		if (this.schema == null) {
+			this.schema = RecordSchema.forName(this.sourceName == null ? "" : this.sourceName);
+		}
+		return new ImdbRecord(this.schema);
+	}
+
+	/**
+	 * Pipelined mode. When set (before openReader()), inflating and splitting
+	 * the file into lines runs ahead on its own thread, and this parser takes
+	 * the lines from it in order.
+	 * 
+	 * @param pipelined
+	 */
+	public void setPipelined(boolean pipelined) {
+		this.pipelined = pipelined;
+	}
+
+	/**
+	 * Parse with the regexes only, skipping the hand-written scanners of the
+	 * simple parsers. For checking and benchmarking the scanners.
+	 * 
+	 * @param regexOnly
+	 */
+	public void setRegexOnly(boolean regexOnly) {
+		this.regexOnly = regexOnly;
+	}
+
+	/**
+	 * Threads to inflate the file on (GzipThreads property). 1, the default,
+	 * is plain GZIPInputStream. See ParallelGzipInputStream.
+	 * 
+	 * @return
+	 * @throws ETLException
+	 */
+	int getGzipThreads() throws ETLException {
+		ETLProperties props = ETLProperties.instance();
+		return props == null ? 1 : props.getInt(ETLConstants.PROP_GZIP_THREADS, 1);
+	}
+
+	/**
+	 * Read the uncompressed <source>.list instead, writing it first if it
+	 * isn't there (ListSidecar property)? See ListSidecar.
+	 * 
+	 * @return
+	 * @throws ETLException
+	 */
+	boolean useListSidecar() throws ETLException {
+		ETLProperties props = ETLProperties.instance();
+		return props != null && Boolean.parseBoolean(props.getString(ETLConstants.PROP_LIST_SIDECAR, "false"));
+	}
+
+	/**
+	 * The .list.gz file
+	 * 
+	 * @return
+	 */
+	File getGzFile() {
+		return new File(this.path + File.separator + sourceName + ".list.gz");
+	}
+
+	/**
+	 * Parse just one chunk of the (uncompressed) file. Call before
+	 * openReader(). A chunk other than the first starts past the preamble.
+	 * 
+	 * @param listFile
+	 * @param start
+	 * @param end
+	 *            - exclusive
+	 * @param linesBefore
+	 *            - lines in the file before the chunk
+	 * @param nextDataLine
+	 *            - number of the first non-blank line after the chunk, or 0 if
+	 *            none. A parser of the whole file that looks ahead past the
+	 *            chunk's last record reads that line, so the last record gets
+	 *            its number.
+	 */
+	public void setChunk(File listFile, long start, long end, long linesBefore, long nextDataLine) {
+		this.chunkFile = listFile;
+		this.chunkStart = start;
+		this.chunkEnd = end;
+		this.chunkLinesBefore = linesBefore;
+		this.chunkNextDataLine = nextDataLine;
+		if (start > 0) {
+			this.foundHeaderLine = true;
+		}
+	}
+
+	/**
+	 * Can the file be split into chunks and parsed in parallel? If so, the
+	 * parser implements isSplitPoint() and, if its records come in blocks,
+	 * getBlockKey().
+	 * 
+	 * @return
+	 */
+	public boolean isSplittable() {
+		return false;
+	}
+
+	/**
+	 * Can a chunk start at the given line? The lines are raw, blank ones
+	 * included. A chunk must not start in the middle of a record, or of
+	 * anything the parser carries from line to line.
+	 * 
+	 * @param prevLine
+	 * @param line
+	 * @return
+	 */
+	protected boolean isSplitPoint(CharSequence prevLine, CharSequence line) {
+		return false;
+	}
+
+	/**
+	 * Records with the same block key come in a run (e.g., the roles of one
+	 * contributor) and the loader counts on that; see RecordPipeline. Null if
+	 * records don't come in blocks.
+	 * 
+	 * @param record
+	 * @return
+	 */
+	public Object getBlockKey(ImdbRecord record) {
+		return null;
+	}
+
 	/**
 	 * Opens movie file. You should call this after constructing.
 	 * 
@@ -77,12 +215,23 @@ public abstract class ImdbLineParser {
 	 */
 	public void openReader() throws ETLException {
 		isEOF = false;
-		this.fileName = this.path + File.separator + sourceName + ".list.gz";
+		this.fileName = getGzFile().getPath();
 		try {
-			fis = new FileInputStream(fileName);
-			gzis = new GZIPInputStream(fis);
-			isr = new InputStreamReader(gzis);
-			lnr = new LineNumberReader(isr);
+			if (chunkFile != null) {
+				this.fileName = chunkFile.getPath() + "@" + chunkStart;
+				gzis = new MappedFileInputStream(chunkFile, chunkStart, chunkEnd);
+			} else if (useListSidecar()) {
+				gzis = ListSidecar.open(new File(fileName), getGzipThreads());
+			} else {
+				gzis = ParallelGzipInputStream.open(new File(fileName), getGzipThreads());
+			}
+			lineReader = new ByteLineReader(gzis);
+			lineReader.setLineNumber(chunkLinesBefore);
+			endLineBytes = endLine == null ? null : endLine.getBytes(ByteLineReader.IMDB_CHARSET);
+			if (pipelined) {
+				lineBatchReader = new LineBatchReader(lineReader);
+				lineBatchReader.start(sourceName);
+			}
 		} catch (IOException e) {
 			try {
 				ETLException.logError(logger, ETLConstants.ERR_FILE,
@@ -100,24 +249,11 @@ public abstract class ImdbLineParser {
 	 */
 	public void closeReader() throws ETLException {
 		ETLException savedError = null;
-		if (lnr != null) {
-			try {
-				lnr.close();
-				lnr = null;
-			} catch (Throwable t) {
-				ETLException.logError(logger, ETLConstants.ERR_FILE, "Closing lnr", t);
-				savedError = new ETLException(ETLConstants.ERR_FILE, "Error closing lnr ", t);
-			}
-		}
-		if (isr != null) {
-			try {
-				isr.close();
-				isr = null;
-			} catch (Throwable t) {
-				ETLException.logError(logger, ETLConstants.ERR_FILE, "Closing isrs", t);
-				savedError = new ETLException(ETLConstants.ERR_FILE, "Error closing isr ", t);
-			}
+		if (lineBatchReader != null) {
+			lineBatchReader.stop();
+			lineBatchReader = null;
 		}
+		lineReader = null;
 		if (gzis != null) {
 			try {
 				gzis.close();
@@ -127,15 +263,6 @@ public abstract class ImdbLineParser {
 				savedError = new ETLException(ETLConstants.ERR_FILE, "Error closing gzis ", t);
 			}
 		}
-		if (fis != null) {
-			try {
-				fis.close();
-				fis = null;
-			} catch (Throwable t) {
-				ETLException.logError(logger, ETLConstants.ERR_FILE, "Closing fis", t);
-				savedError = new ETLException(ETLConstants.ERR_FILE, "Error closing fis ", t);
-			}
-		}
 		if (savedError != null) {
 			throw savedError;
 		}
@@ -151,35 +278,92 @@ public abstract class ImdbLineParser {
 	 * @throws IOException
 	 */
 	protected String readNextLine(boolean checkEndLine) throws ETLException {
+		CharSequence nextLine = readNextLineView(checkEndLine);
+		return nextLine == null ? null : nextLine.toString();
+	}
+
+	/**
+	 * As readNextLine(), but returns the line as a view, with no String made.
+	 * In the unpipelined case, the view is only good until the next read, so
+	 * take what you need from it first.
+	 * 
+	 * @param checkEndLine
+	 * @return
+	 * @throws ETLException
+	 */
+	protected CharSequence readNextLineView(boolean checkEndLine) throws ETLException {
 		if (isEOF) {
 			return null;
 		}
 
 		try {
 			while (true) {
-				String nextLine = lnr.readLine();
+				if (lineBatchReader != null) {
+					String nextLine = lineBatchReader.readLine();
+					lastLineNumber = lineBatchReader.getLineNumber();
+					if (nextLine == null) {
+						endOfChunk();
+						closeReader();
+						isEOF = true;
+						return null;
+					}
+					if (nextLine.trim().length() == 0) {
+						continue;
+					}
+					if (checkEndLine && endLine != null && nextLine.indexOf(endLine) >= 0) {
+						logger.info("Got end line at " + getLineNumber());
+						ListSidecar.reachedEnd(gzis);
+						isEOF = true;
+						return null;
+					}
+					return nextLine;
+				}
+
+				ByteLineReader.ByteLine nextLine = lineReader.readLine();
+				lastLineNumber = lineReader.getLineNumber();
 				if (nextLine == null) {
+					endOfChunk();
 					closeReader();
 					isEOF = true;
 					return null;
 				}
-				lastLineNumber = lnr.getLineNumber();
-				if (nextLine.trim().length() == 0) {
+				if (nextLine.isBlank()) {
 					continue;
 				}
-				if (checkEndLine && (endLine != null && nextLine.trim().indexOf(endLine) >= 0)) {
+				if (checkEndLine && endLineBytes != null && nextLine.contains(endLineBytes)) {
 					logger.info("Got end line at " + getLineNumber());
+					ListSidecar.reachedEnd(gzis);
 					isEOF = true;
 					return null;
 				}
-
 				return nextLine;
 			}
 		} catch (IOException e) {
 			throw new ETLException(ETLConstants.ERR_FILE, "Error advancing to next line " + e, e);
 		}
-		// is it an end line?
+	}
 
+	/**
+	 * Out of lines in a chunk: number as if we'd read on into the next one, as
+	 * a parser of the whole file would
+	 */
+	void endOfChunk() {
+		if (chunkFile != null && chunkNextDataLine > 0) {
+			lastLineNumber = chunkNextDataLine;
+		}
+	}
+
+	/**
+	 * Trim a line got from readNextLineView(). A view is trimmed in place.
+	 * 
+	 * @param line
+	 * @return
+	 */
+	protected static CharSequence trimView(CharSequence line) {
+		if (line instanceof ByteLineReader.ByteLine) {
+			return ((ByteLineReader.ByteLine) line).trim();
+		}
+		return line.toString().trim();
 	}
 
 	/**
@@ -187,8 +371,8 @@ public abstract class ImdbLineParser {
 	 * 
 	 * @return
 	 */
-	protected long getLineNumber() {
-		return lnr.getLineNumber();
+	public long getLineNumber() {
+		return lastLineNumber;
 	}
 
 	/**
@@ -253,14 +437,14 @@ public abstract class ImdbLineParser {
 		skipPremable();
 
 		// get the line
-		String nextLine = readNextLine(true);
+		CharSequence nextLine = readNextLineView(true);
 
 		// is it an end line?
 		if (nextLine == null) {
-			return checkMore(nextLine);
+			return checkMore(null);
 		}
 
-		return parseLine(nextLine);
+		return parseLineView(nextLine);
 	}
 
 	/**
@@ -272,6 +456,19 @@ public abstract class ImdbLineParser {
 	 */
 	protected abstract ImdbRecord parseLine(String line) throws ETLException;
 
+	/**
+	 * Parse the line from its view. By default, makes a String of it for
+	 * parseLine(). Parsers that can pick their fields straight from the view
+	 * override this.
+	 * 
+	 * @param line
+	 * @return
+	 * @throws ETLException
+	 */
+	protected ImdbRecord parseLineView(CharSequence line) throws ETLException {
+		return parseLine(line.toString());
+	}
+
 	/**
 	 * Check if there still a line to send back after EOF. Default behavior is
 	 * no. Concrete classes that use lookahead logic may override.
@@ -291,7 +488,7 @@ public abstract class ImdbLineParser {
 	 * @param line
 	 * @return
 	 */
-	protected List<String> getPatternToks(Pattern pattern, String line) {
+	protected List<String> getPatternToks(Pattern pattern, CharSequence line) {
 		return getPatternToks(pattern, line, true);
 	}
 
@@ -302,7 +499,7 @@ public abstract class ImdbLineParser {
 	 * @param line
 	 * @return
 	 */
-	protected List<String> getPatternToks(Pattern pattern, String line, boolean removeBlanks) {
+	protected List<String> getPatternToks(Pattern pattern, CharSequence line, boolean removeBlanks) {
 		Matcher matcher = pattern.matcher(line);
 		if (!matcher.find()) {
 			return null;
@@ -318,6 +515,27 @@ public abstract class ImdbLineParser {
 		return list;
 	}
 
+	/**
+	 * Regex fallback for the hand-written scanners: tokens into the given
+	 * array, as a scanner leaves them
+	 * 
+	 * @param pattern
+	 * @param line
+	 * @param toks
+	 * @return number of tokens, -1 if no match
+	 */
+	protected int getPatternToks(Pattern pattern, CharSequence line, String toks[]) {
+		List<String> list = getPatternToks(pattern, line);
+		if (list == null) {
+			return -1;
+		}
+		int n = Math.min(list.size(), toks.length);
+		for (int i = 0; i < n; i++) {
+			toks[i] = list.get(i);
+		}
+		return list.size();
+	}
+
 	/**
 	 * Validate sint is a valid int. If so, return it again as a string. Else if
 	 * failIfBad, throw exception. Otherwise, return log info and return empty
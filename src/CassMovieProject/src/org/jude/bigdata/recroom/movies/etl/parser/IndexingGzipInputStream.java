@@ -0,0 +1,266 @@
+package org.jude.bigdata.recroom.movies.etl.parser;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Inflates a gzip file serially, like GZIPInputStream, and on the way notes
+ * where each gzip member starts. When the whole file has been read, the
+ * offsets are saved as the file's GzipMemberIndex, so the next run can inflate
+ * the members in parallel without scanning first.
+ *
+ * The parsers stop at the end line, which is often a little before the end of
+ * the file. So close() finishes the scan if there isn't much left.
+ *
+ * @author mhavey
+ *
+ */
+public class IndexingGzipInputStream extends InputStream {
+
+	static final int BUFFER_SIZE = 64 * 1024;
+	static final long DRAIN_LIMIT = 16L * 1024 * 1024;
+
+	static final int FTEXT = 1;
+	static final int FHCRC = 2;
+	static final int FEXTRA = 4;
+	static final int FNAME = 8;
+	static final int FCOMMENT = 16;
+
+	File file;
+	FileInputStream in;
+	byte buf[] = new byte[BUFFER_SIZE];
+	int bufPos = 0;
+	int bufLen = 0;
+	long bufStart = 0; // file offset of buf[0]
+	Inflater inflater = new Inflater(true);
+	CRC32 crc = new CRC32();
+	long offsets[] = new long[16];
+	int numMembers = 0;
+	boolean inMember = false;
+	boolean complete = false;
+	boolean failed = false;
+	byte single[] = new byte[1];
+
+	static Logger logger = Logger.getLogger(IndexingGzipInputStream.class);
+
+	/**
+	 * Constructor. Reads the first member's header.
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public IndexingGzipInputStream(File file) throws IOException {
+		this.file = file;
+		this.in = new FileInputStream(file);
+		if (!nextMember()) {
+			throw new EOFException("Empty gzip file *" + file + "*");
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte b[], int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		try {
+			while (true) {
+				if (!this.inMember) {
+					if (this.complete || !nextMember()) {
+						return -1;
+					}
+				}
+				if (this.inflater.needsInput()) {
+					if (!fill()) {
+						throw new EOFException("Unexpected end of gzip file *" + this.file + "*");
+					}
+					this.inflater.setInput(this.buf, this.bufPos, this.bufLen - this.bufPos);
+					this.bufPos = this.bufLen;
+				}
+				int n = this.inflater.inflate(b, off, len);
+				if (n > 0) {
+					this.crc.update(b, off, n);
+				}
+				if (this.inflater.finished()) {
+					endMember();
+				} else if (this.inflater.needsDictionary()) {
+					throw new ZipException("Gzip member needs a preset dictionary");
+				}
+				if (n > 0) {
+					return n;
+				}
+			}
+		} catch (DataFormatException e) {
+			this.failed = true;
+			throw new ZipException("Corrupt gzip file *" + this.file + "* " + e.getMessage());
+		} catch (IOException e) {
+			this.failed = true;
+			throw e;
+		}
+	}
+
+	/**
+	 * Start the next member. Anything after the last member that isn't a gzip
+	 * header is ignored, as GZIPInputStream does.
+	 *
+	 * @return false if no more members
+	 * @throws IOException
+	 */
+	boolean nextMember() throws IOException {
+		long offset = this.bufStart + this.bufPos;
+		int id1 = readByte();
+		if (id1 == -1) {
+			this.complete = true;
+			return false;
+		}
+		int id2 = readByte();
+		int cm = readByte();
+		if (id1 != 0x1f || id2 != 0x8b || cm != 8) {
+			if (this.numMembers == 0) {
+				throw new ZipException("Not in GZIP format *" + this.file + "*");
+			}
+			this.complete = true;
+			return false;
+		}
+		int flags = readByteOrFail();
+		skip(6); // mtime, xfl, os
+		if ((flags & FEXTRA) != 0) {
+			int xlen = readByteOrFail() | (readByteOrFail() << 8);
+			skip(xlen);
+		}
+		if ((flags & FNAME) != 0) {
+			while (readByteOrFail() != 0) {
+			}
+		}
+		if ((flags & FCOMMENT) != 0) {
+			while (readByteOrFail() != 0) {
+			}
+		}
+		if ((flags & FHCRC) != 0) {
+			skip(2);
+		}
+
+		if (this.numMembers == this.offsets.length) {
+			long grown[] = new long[this.offsets.length * 2];
+			System.arraycopy(this.offsets, 0, grown, 0, this.numMembers);
+			this.offsets = grown;
+		}
+		this.offsets[this.numMembers++] = offset;
+		this.inflater.reset();
+		this.crc.reset();
+		this.inMember = true;
+		return true;
+	}
+
+	/**
+	 * The member's deflate stream is done. Take back what the inflater didn't
+	 * use and check the trailer.
+	 *
+	 * @throws IOException
+	 */
+	void endMember() throws IOException {
+		this.bufPos = this.bufLen - this.inflater.getRemaining();
+		long expectedCrc = readIntLE();
+		long expectedSize = readIntLE();
+		if (expectedCrc != this.crc.getValue()) {
+			throw new ZipException("Corrupt gzip file *" + this.file + "*: CRC mismatch in member "
+					+ this.numMembers);
+		}
+		if (expectedSize != (this.inflater.getBytesWritten() & 0xffffffffL)) {
+			throw new ZipException("Corrupt gzip file *" + this.file + "*: size mismatch in member "
+					+ this.numMembers);
+		}
+		this.inMember = false;
+	}
+
+	boolean fill() throws IOException {
+		if (this.bufPos < this.bufLen) {
+			return true;
+		}
+		this.bufStart += this.bufLen;
+		this.bufPos = 0;
+		this.bufLen = 0;
+		int n = this.in.read(this.buf, 0, this.buf.length);
+		if (n <= 0) {
+			return false;
+		}
+		this.bufLen = n;
+		return true;
+	}
+
+	int readByte() throws IOException {
+		if (!fill()) {
+			return -1;
+		}
+		return this.buf[this.bufPos++] & 0xff;
+	}
+
+	int readByteOrFail() throws IOException {
+		int b = readByte();
+		if (b == -1) {
+			throw new EOFException("Unexpected end of gzip file *" + this.file + "*");
+		}
+		return b;
+	}
+
+	long readIntLE() throws IOException {
+		long v = 0;
+		for (int i = 0; i < 4; i++) {
+			v |= ((long) readByteOrFail()) << (8 * i);
+		}
+		return v;
+	}
+
+	void skip(int n) throws IOException {
+		for (int i = 0; i < n; i++) {
+			readByteOrFail();
+		}
+	}
+
+	/**
+	 * Finish the scan if there isn't much left, save the index if we have all
+	 * of it, and close.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (this.in == null) {
+			return;
+		}
+		try {
+			if (!this.complete && !this.failed) {
+				long left = this.file.length() - (this.bufStart + this.bufLen);
+				if (left <= DRAIN_LIMIT) {
+					try {
+						byte scratch[] = new byte[BUFFER_SIZE];
+						while (read(scratch, 0, scratch.length) != -1) {
+						}
+					} catch (IOException e) {
+						logger.warn("Unable to finish gzip index of *" + this.file + "* " + e);
+					}
+				}
+			}
+			if (this.complete) {
+				long members[] = new long[this.numMembers];
+				System.arraycopy(this.offsets, 0, members, 0, this.numMembers);
+				new GzipMemberIndex(this.file, members).save(this.file);
+			}
+		} finally {
+			this.inflater.end();
+			this.in.close();
+			this.in = null;
+		}
+	}
+}
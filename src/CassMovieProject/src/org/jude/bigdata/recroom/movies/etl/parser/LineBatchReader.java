@@ -0,0 +1,161 @@
+package org.jude.bigdata.recroom.movies.etl.parser;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.apache.log4j.Logger;
+
+/**
+ * First stage of the pipelined parse. Runs on its own thread, inflating the
+ * IMDB file and splitting it into batches of lines, which it
+ * hands to the parser thread through a bounded queue. The parser reads the
+ * lines back one at a time with readLine(), in file order.
+ *
+ * @author mhavey
+ *
+ */
+public class LineBatchReader implements Runnable {
+
+	/**
+	 * A batch of consecutive lines. An empty batch marks EOF.
+	 */
+	static class LineBatch {
+		String lines[];
+		int count = 0;
+		long firstLineNumber;
+		IOException error = null;
+
+		LineBatch(int size, long firstLineNumber) {
+			this.lines = new String[size];
+			this.firstLineNumber = firstLineNumber;
+		}
+	}
+
+	public static final int BATCH_SIZE = 1000;
+	public static final int QUEUE_SIZE = 16;
+
+	ByteLineReader lineReader;
+	BlockingQueue<LineBatch> queue = new ArrayBlockingQueue<LineBatch>(QUEUE_SIZE);
+	Thread thread = null;
+	volatile boolean stopped = false;
+
+	// parser-side state
+	LineBatch current = null;
+	int pos = 0;
+	long lineNumber = 0;
+	boolean isEOF = false;
+
+	Logger logger = Logger.getLogger(LineBatchReader.class);
+
+	/**
+	 * Constructor
+	 *
+	 * @param lineReader
+	 *            - reader over the decompressed file; from now on only the
+	 *            batch reader thread touches it
+	 */
+	public LineBatchReader(ByteLineReader lineReader) {
+		this.lineReader = lineReader;
+	}
+
+	/**
+	 * Start the reader thread
+	 *
+	 * @param name
+	 */
+	public void start(String name) {
+		this.thread = new Thread(this, "lines-" + name);
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Stop the reader thread, e.g., because the parser found the end line
+	 * before EOF. Waits for it, so the caller can then close the file.
+	 */
+	public void stop() {
+		this.stopped = true;
+		if (this.thread != null) {
+			this.thread.interrupt();
+			try {
+				this.thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Reader thread mainline
+	 */
+	public void run() {
+		try {
+			while (!stopped) {
+				LineBatch batch = new LineBatch(BATCH_SIZE, lineReader.getLineNumber() + 1);
+				try {
+					while (batch.count < BATCH_SIZE) {
+						ByteLineReader.ByteLine line = lineReader.readLine();
+						if (line == null) {
+							break;
+						}
+						batch.lines[batch.count++] = line.toString();
+					}
+				} catch (IOException e) {
+					batch.error = e;
+				}
+				queue.put(batch);
+				if (batch.count < BATCH_SIZE || batch.error != null) {
+					if (batch.count > 0 && batch.error == null) {
+						// EOF marker
+						queue.put(new LineBatch(0, lineReader.getLineNumber() + 1));
+					}
+					return;
+				}
+			}
+		} catch (InterruptedException e) {
+			if (!stopped) {
+				logger.error("Line reader interrupted " + e, e);
+			}
+		}
+	}
+
+	/**
+	 * Next line from the file, or null at EOF. Parser thread only.
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	public String readLine() throws IOException {
+		while (current == null || pos >= current.count) {
+			if (isEOF) {
+				return null;
+			}
+			try {
+				current = queue.take();
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted waiting for lines", e);
+			}
+			pos = 0;
+			if (current.error != null) {
+				isEOF = true;
+				throw current.error;
+			}
+			if (current.count == 0) {
+				isEOF = true;
+				return null;
+			}
+		}
+		lineNumber = current.firstLineNumber + pos;
+		return current.lines[pos++];
+	}
+
+	/**
+	 * Line number of the line last returned by readLine()
+	 *
+	 * @return
+	 */
+	public long getLineNumber() {
+		return this.lineNumber;
+	}
+}
@@ -0,0 +1,138 @@
+package org.jude.bigdata.recroom.movies.etl.parser;
+
+/**
+ * Helpers for the hand-written scanners that stand in for the regexes of the
+ * simple "title<TAB...>value" parsers. A scanner picks its fields straight
+ * from the (trimmed) line, with no Matcher and no token list. It only takes
+ * lines it can read exactly as the regex would; for anything else (no tab,
+ * odd control chars, fields that don't line up) it returns -1 and the parser
+ * falls back to the regex. Character classes follow java.util.regex: \s is
+ * [ \t\n\x0B\f\r], and . is anything but a line terminator.
+ *
+ * @author mhavey
+ *
+ */
+public class LineTokenizer {
+
+	public static boolean isSpace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+	}
+
+	public static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	public static boolean isLineTerminator(char c) {
+		return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+	}
+
+	public static int indexOf(CharSequence s, char c, int from) {
+		int len = s.length();
+		for (int i = from; i < len; i++) {
+			if (s.charAt(i) == c) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	public static int skipSpace(CharSequence s, int from) {
+		int len = s.length();
+		while (from < len && isSpace(s.charAt(from))) {
+			from++;
+		}
+		return from;
+	}
+
+	public static int skipNonSpace(CharSequence s, int from) {
+		int len = s.length();
+		while (from < len && !isSpace(s.charAt(from))) {
+			from++;
+		}
+		return from;
+	}
+
+	public static int skipDigits(CharSequence s, int from) {
+		int len = s.length();
+		while (from < len && isDigit(s.charAt(from))) {
+			from++;
+		}
+		return from;
+	}
+
+	/**
+	 * Does s[from, to) have a line terminator (which . won't match)?
+	 */
+	public static boolean hasLineTerminator(CharSequence s, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (isLineTerminator(s.charAt(i))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Is s[from, to) blank by String.trim()? getPatternToks() drops such
+	 * groups.
+	 */
+	public static boolean isBlank(CharSequence s, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (s.charAt(i) > ' ') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Do the lines start with the same title (text before the first tab)?
+	 */
+	public static boolean sameTitle(CharSequence a, CharSequence b) {
+		int aEnd = indexOf(a, '\t', 0);
+		int bEnd = indexOf(b, '\t', 0);
+		aEnd = aEnd < 0 ? a.length() : aEnd;
+		bEnd = bEnd < 0 ? b.length() : bEnd;
+		if (aEnd != bEnd) {
+			return false;
+		}
+		for (int i = 0; i < aEnd; i++) {
+			if (a.charAt(i) != b.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public static String substring(CharSequence s, int from, int to) {
+		return s.subSequence(from, to).toString();
+	}
+
+	/**
+	 * Scan "title<TAB><whitespace>value". As regex ([^\t]+)(\s+)(\S+) when
+	 * word is true, else ([^\t]+)(\s+)(.+) (which (\S+.*) matches the same).
+	 *
+	 * @param line
+	 *            - trimmed
+	 * @param word
+	 *            - value is one word, else the rest of the line
+	 * @param toks
+	 *            - gets title and value
+	 * @return 2, or -1 to use the regex
+	 */
+	public static int titleValue(CharSequence line, boolean word, String toks[]) {
+		int tab = indexOf(line, '\t', 0);
+		if (tab <= 0) {
+			return -1;
+		}
+		int valueStart = skipSpace(line, tab);
+		int valueEnd = word ? skipNonSpace(line, valueStart) : line.length();
+		if (valueStart == valueEnd || isBlank(line, valueStart, valueEnd)
+				|| (!word && hasLineTerminator(line, valueStart, valueEnd))) {
+			return -1;
+		}
+		toks[0] = substring(line, 0, tab);
+		toks[1] = substring(line, valueStart, valueEnd);
+		return 2;
+	}
+}
@@ -0,0 +1,208 @@
+package org.jude.bigdata.recroom.movies.etl.parser;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The uncompressed copy of an IMDB list: <source>.list next to
+ * <source>.list.gz. If it is there (and newer than the .gz), we read it
+ * through a memory map and skip inflate altogether; repeat loads of the same
+ * files then come from the page cache. If not, we inflate the .gz as usual
+ * and write the copy as we go, for next time.
+ *
+ * The copy is written to a temp file and renamed when complete, so a load
+ * that fails midway leaves nothing half written. The parsers stop at the end
+ * line, and tell us so (reachedEnd()); only then is the rest of the .gz read
+ * for the copy. A parse that stops anywhere else, e.g. on an error, just
+ * deletes the temp file.
+ *
+ * @author mhavey
+ *
+ */
+public class ListSidecar {
+
+	public static final String SIDECAR_SUFFIX = ".list";
+	public static final String GZ_SUFFIX = ".list.gz";
+
+	static Logger logger = Logger.getLogger(ListSidecar.class);
+
+	/**
+	 * Passes the inflated file through to the reader, copying it to the
+	 * sidecar. If the parser reached the end line, close() reads the rest of
+	 * the file for the copy.
+	 */
+	static class TeeInputStream extends InputStream {
+		InputStream in;
+		OutputStream out;
+		File tmpFile;
+		File sidecar;
+		boolean eof = false;
+		boolean failed = false;
+		volatile boolean reachedEnd = false;
+
+		TeeInputStream(InputStream in, File tmpFile, File sidecar) throws IOException {
+			this.in = in;
+			this.tmpFile = tmpFile;
+			this.sidecar = sidecar;
+			this.out = new BufferedOutputStream(new FileOutputStream(tmpFile), 256 * 1024);
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte b[] = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte b[], int off, int len) throws IOException {
+			int n;
+			try {
+				n = this.in.read(b, off, len);
+			} catch (IOException e) {
+				this.failed = true;
+				throw e;
+			}
+			if (n == -1) {
+				this.eof = true;
+			} else if (this.out != null) {
+				try {
+					this.out.write(b, off, n);
+				} catch (IOException e) {
+					// the load goes on without the copy
+					logger.warn("Unable to write list sidecar *" + this.tmpFile + "* " + e);
+					abandon();
+				}
+			}
+			return n;
+		}
+
+		void abandon() {
+			if (this.out != null) {
+				try {
+					this.out.close();
+				} catch (IOException e) {
+					// ignore
+				}
+				this.out = null;
+			}
+			this.tmpFile.delete();
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				if (this.out != null && !this.failed && this.reachedEnd) {
+					byte scratch[] = new byte[64 * 1024];
+					while (!this.eof && read(scratch, 0, scratch.length) != -1) {
+					}
+				}
+				if (this.out != null) {
+					if (this.failed || !this.eof) {
+						abandon();
+					} else {
+						this.out.close();
+						this.out = null;
+						if (this.tmpFile.renameTo(this.sidecar)) {
+							logger.info("Wrote list sidecar *" + this.sidecar + "*");
+						} else {
+							logger.warn("Unable to rename *" + this.tmpFile + "* to *" + this.sidecar + "*");
+							this.tmpFile.delete();
+						}
+					}
+				}
+			} catch (IOException e) {
+				logger.warn("Unable to finish list sidecar *" + this.tmpFile + "* " + e);
+				abandon();
+			} finally {
+				this.in.close();
+			}
+		}
+	}
+
+	/**
+	 * Open the list: the sidecar if it is good, else the .gz, writing the
+	 * sidecar as we read.
+	 *
+	 * @param gzFile
+	 * @param gzipThreads
+	 *            - see ParallelGzipInputStream.open()
+	 * @return
+	 * @throws IOException
+	 */
+	public static InputStream open(File gzFile, int gzipThreads) throws IOException {
+		File sidecar = sidecarFile(gzFile);
+		if (sidecar.isFile() && sidecar.lastModified() >= gzFile.lastModified()) {
+			logger.info("Reading list sidecar *" + sidecar + "*");
+			return new MappedFileInputStream(sidecar);
+		}
+		InputStream in = ParallelGzipInputStream.open(gzFile, gzipThreads);
+		try {
+			File tmpFile = File.createTempFile(sidecar.getName() + ".", ".tmp", sidecar.getParentFile());
+			return new TeeInputStream(in, tmpFile, sidecar);
+		} catch (IOException e) {
+			logger.warn("Unable to create list sidecar for *" + gzFile + "* " + e);
+			return in;
+		}
+	}
+
+	/**
+	 * The parser reading the stream got to the end line, so the copy can be
+	 * finished when the stream is closed. Any other stream is left alone.
+	 *
+	 * @param in
+	 *            - from open()
+	 */
+	public static void reachedEnd(InputStream in) {
+		if (in instanceof TeeInputStream) {
+			((TeeInputStream) in).reachedEnd = true;
+		}
+	}
+
+	/**
+	 * Make sure the list has a good sidecar, writing it now if need be
+	 *
+	 * @param gzFile
+	 * @param gzipThreads
+	 * @return the sidecar
+	 * @throws IOException
+	 */
+	public static File ensure(File gzFile, int gzipThreads) throws IOException {
+		File sidecar = sidecarFile(gzFile);
+		if (sidecar.isFile() && sidecar.lastModified() >= gzFile.lastModified()) {
+			return sidecar;
+		}
+		logger.info("Writing list sidecar for *" + gzFile + "*");
+		InputStream in = open(gzFile, gzipThreads);
+		try {
+			byte scratch[] = new byte[64 * 1024];
+			while (in.read(scratch, 0, scratch.length) != -1) {
+			}
+		} finally {
+			in.close();
+		}
+		if (!sidecar.isFile()) {
+			throw new IOException("Unable to write list sidecar *" + sidecar + "*");
+		}
+		return sidecar;
+	}
+
+	/**
+	 * <path>/<source>.list for <path>/<source>.list.gz
+	 *
+	 * @param gzFile
+	 * @return
+	 */
+	static File sidecarFile(File gzFile) {
+		String path = gzFile.getPath();
+		if (path.endsWith(GZ_SUFFIX)) {
+			path = path.substring(0, path.length() - GZ_SUFFIX.length());
+		}
+		return new File(path + SIDECAR_SUFFIX);
+	}
+}
@@ -54,7 +54,7 @@ public class LiteratureFileParser extends MultilineFileParser {
 		if (line.startsWith(MOVIE_PREFIX)) {
 			// consider it a new movie
 			String movieID = line.substring(MOVIE_PREFIX_LEN).trim();
-			ImdbRecord ret = new ImdbRecord();
+			ImdbRecord ret = newRecord();
 			ret.append(this.keyFieldName, movieID);
 			ret.append(ETLConstants.FIELD_DOC_TYPE, sourceName);
 			return new ParseResult(ret, false);
@@ -0,0 +1,112 @@
+package org.jude.bigdata.recroom.movies.etl.parser;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a file through a read-only memory map, a window at a time (a single
+ * map is limited to 2GB). Reads are copies out of the page cache, with no
+ * read() system call each.
+ *
+ * Java has no way to unmap; a window is let go when we move past it and is
+ * unmapped when it's collected.
+ *
+ * @author mhavey
+ *
+ */
+public class MappedFileInputStream extends InputStream {
+
+	static final long WINDOW_SIZE = 256L * 1024 * 1024;
+
+	RandomAccessFile raf;
+	FileChannel channel;
+	long length;
+	long windowStart = 0;
+	MappedByteBuffer window = null;
+
+	/**
+	 * Constructor
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public MappedFileInputStream(File file) throws IOException {
+		this.raf = new RandomAccessFile(file, "r");
+		this.channel = this.raf.getChannel();
+		this.length = this.channel.size();
+	}
+
+	/**
+	 * Constructor for part of the file
+	 *
+	 * @param file
+	 * @param start
+	 * @param end
+	 *            - exclusive
+	 * @throws IOException
+	 */
+	public MappedFileInputStream(File file, long start, long end) throws IOException {
+		this(file);
+		this.windowStart = start;
+		this.length = Math.min(end, this.length);
+	}
+
+	/**
+	 * Make sure the window has something left to read, mapping the next one
+	 * if need be
+	 *
+	 * @return false if at EOF
+	 * @throws IOException
+	 */
+	boolean nextWindow() throws IOException {
+		if (this.window != null) {
+			if (this.window.hasRemaining()) {
+				return true;
+			}
+			this.windowStart += this.window.capacity();
+			this.window = null;
+		}
+		if (this.windowStart >= this.length) {
+			return false;
+		}
+		long size = Math.min(WINDOW_SIZE, this.length - this.windowStart);
+		this.window = this.channel.map(FileChannel.MapMode.READ_ONLY, this.windowStart, size);
+		return true;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!nextWindow()) {
+			return -1;
+		}
+		return this.window.get() & 0xff;
+	}
+
+	@Override
+	public int read(byte b[], int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (!nextWindow()) {
+			return -1;
+		}
+		int n = Math.min(len, this.window.remaining());
+		this.window.get(b, off, n);
+		return n;
+	}
+
+	@Override
+	public int available() {
+		return this.window == null ? 0 : this.window.remaining();
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.window = null;
+		this.raf.close();
+	}
+}
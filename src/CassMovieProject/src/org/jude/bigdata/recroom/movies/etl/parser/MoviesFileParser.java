@@ -1,6 +1,5 @@
 package org.jude.bigdata.recroom.movies.etl.parser;
 
-import java.util.List;
 import java.util.regex.Pattern;
 
 import org.apache.log4j.Logger;
@@ -28,6 +27,7 @@ public class MoviesFileParser extends ImdbLineParser {
 	static final String REGEX = "([^\\t]+)(\\s+)(\\S{4})(-\\S{4})?";
 
 	String mostRecenSeriesID = "";
+	String toks[] = new String[3];
 
 	Logger logger = Logger.getLogger(MoviesFileParser.class);
 	static Pattern pattern = Pattern.compile(REGEX);
@@ -41,15 +41,52 @@ public class MoviesFileParser extends ImdbLineParser {
 		super(path, SOURCE_NAME, PRE_HEADER_LINE, HEADER_LINE, END_LINE);
 	}
 
+	/**
+	 * The file can be split at a new movie that isn't an episode, so that a
+	 * series and its episodes stay together
+	 */
+	@Override
+	public boolean isSplittable() {
+		return true;
+	}
+
+	@Override
+	protected boolean isSplitPoint(CharSequence prevLine, CharSequence line) {
+		int tab = LineTokenizer.indexOf(line, '\t', 0);
+		return tab > 0 && LineTokenizer.indexOf(line.subSequence(0, tab), '{', 0) < 0
+				&& !LineTokenizer.isBlank(prevLine, 0, prevLine.length())
+				&& !LineTokenizer.sameTitle(prevLine, line);
+	}
+
+	/**
+	 * A series and its episodes
+	 */
+	@Override
+	public Object getBlockKey(ImdbRecord record) {
+		return record.get(ETLConstants.FIELD_SERIES_ID);
+	}
+
 	@Override
 	public ImdbRecord parseLine(String line) throws ETLException {
-		List<String> toks = getPatternToks(pattern, line.trim());
-		if (toks == null || toks.size() < 2 || toks.size() > 3) {
+		return parseLineView(line);
+	}
+
+	/**
+	 * Parse straight from the view; only the matched fields become Strings
+	 */
+	@Override
+	protected ImdbRecord parseLineView(CharSequence line) throws ETLException {
+		CharSequence trimmed = trimView(line);
+		int numToks = regexOnly ? -1 : scanLine(trimmed);
+		if (numToks < 0) {
+			numToks = getPatternToks(pattern, trimmed, toks);
+		}
+		if (numToks < 2 || numToks > 3) {
 			throw new ETLException(ETLConstants.ERR_MALFORMED_LINE,
 					"Illegal line *" + line + "*");
 		}
 
-		String movieID = toks.get(0);
+		String movieID = toks[0];
 
 		// movie is a feature if it is NOT double-quoted; otherwise, series or
 		// episode
@@ -73,14 +110,14 @@ public class MoviesFileParser extends ImdbLineParser {
 		}
 
 		// next four characters is release year
-		String year = toks.get(1);
+		String year = toks[1];
 		if (year.equals("????")) {
 			year = "";
 		} else {
 			year = validateInt(year, false, true);
 		}
 
-		Integer iyear = null;
+		int iyear;
 		if (year.length() == 0) {
 			logger.debug("Unable to obtain year for movie in line "
 					+ getLineNumber() + " movie is *" + movieID + "*");
@@ -91,12 +128,12 @@ public class MoviesFileParser extends ImdbLineParser {
 
 		String seYear = "";
 		Integer iseYear = null;
-		if (toks.size() == 3) {
-			seYear = toks.get(2);
+		if (numToks == 3) {
+			seYear = toks[2];
 			if (seYear.equals("-????")) {
 				seYear = "";
 			} else {
-				seYear = validateInt(toks.get(2), false, true);
+				seYear = validateInt(toks[2], false, true);
 				// chop off the -1 at the beginning of series end year
 				if (seYear.startsWith("-")) {
 					seYear = seYear.substring(1);
@@ -106,12 +143,45 @@ public class MoviesFileParser extends ImdbLineParser {
 		}
 
 		// Return our record
-		ImdbRecord json = new ImdbRecord();
+		ImdbRecord json = newRecord();
 		json.append(ETLConstants.FIELD_MOVIE_ID, movieID);
 		json.append(ETLConstants.FIELD_SERIES_ID, seriesID);
 		json.append(ETLConstants.FIELD_SERIES_TYPE, seriesType);
-		json.append(ETLConstants.FIELD_SERIES_END_YEAR, iseYear);
-		json.append(ETLConstants.FIELD_RELEASE_YEAR, iyear);
+		json.appendInt(ETLConstants.FIELD_SERIES_END_YEAR, iseYear);
+		json.appendInt(ETLConstants.FIELD_RELEASE_YEAR, iyear);
 		return json;
 	}
+
+	/**
+	 * Hand-written REGEX: title, tab(s), four-char year, optional -year
+	 * 
+	 * @param line
+	 *            - trimmed
+	 * @return number of toks, or -1 to use the regex
+	 */
+	int scanLine(CharSequence line) {
+		int tab = LineTokenizer.indexOf(line, '\t', 0);
+		if (tab <= 0) {
+			return -1;
+		}
+		int yearStart = LineTokenizer.skipSpace(line, tab);
+		int yearEnd = yearStart + 4;
+		if (LineTokenizer.skipNonSpace(line, yearStart) < yearEnd
+				|| LineTokenizer.isBlank(line, yearStart, yearEnd)) {
+			return -1;
+		}
+		toks[0] = LineTokenizer.substring(line, 0, tab);
+		toks[1] = LineTokenizer.substring(line, yearStart, yearEnd);
+		if (yearEnd < line.length() && line.charAt(yearEnd) == '-') {
+			int endYearEnd = yearEnd + 5;
+			if (LineTokenizer.skipNonSpace(line, yearEnd + 1) >= endYearEnd) {
+				if (LineTokenizer.isBlank(line, yearEnd, endYearEnd)) {
+					return -1;
+				}
+				toks[2] = LineTokenizer.substring(line, yearEnd, endYearEnd);
+				return 3;
+			}
+		}
+		return 2;
+	}
 }
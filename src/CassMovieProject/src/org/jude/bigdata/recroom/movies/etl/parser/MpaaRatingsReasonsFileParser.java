@@ -55,7 +55,7 @@ public class MpaaRatingsReasonsFileParser extends MultilineFileParser {
 			throws ETLException {
 		// if line starts with MV:, it's a new movie. Return it.
 		if (line.startsWith("MV:")) {
-			ImdbRecord ret = new ImdbRecord();
+			ImdbRecord ret = newRecord();
 			ret.append(this.keyFieldName, line.substring(3).trim()).append(
 					ETLConstants.SUBDOC_PARENTAL,
 					new ImdbRecord().append(
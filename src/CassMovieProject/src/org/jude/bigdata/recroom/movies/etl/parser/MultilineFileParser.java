@@ -75,6 +75,14 @@ public abstract class MultilineFileParser extends ImdbLineParser {
 		this.forceMode = forceMode;
 	}
 
+	/**
+	 * Records of one key come in a run
+	 */
+	@Override
+	public Object getBlockKey(ImdbRecord record) {
+		return record.get(keyFieldName);
+	}
+
 	/**
 	 * Concrete class implements this. Takes line and currentJSON. Concrete
 	 * class parses line and returns a ParseResult. Outcomes: (a) no forceMode;
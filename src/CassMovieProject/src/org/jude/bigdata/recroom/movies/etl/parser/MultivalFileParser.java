@@ -1,7 +1,6 @@
 package org.jude.bigdata.recroom.movies.etl.parser;
 
 import java.util.HashSet;
-import java.util.List;
 import java.util.Set;
 import java.util.regex.Pattern;
 
@@ -23,6 +22,12 @@ public abstract class MultivalFileParser extends ImdbLineParser {
 	Set<String> lastValues = null;
 	String valuesFieldName = null;
 	Pattern pattern = null;
+	int scanner = SCAN_NONE;
+	String toks[] = new String[2];
+
+	static final int SCAN_NONE = 0;
+	static final int SCAN_WORD = 1;
+	static final int SCAN_PHRASE = 2;
 
 	// Most subclasses will use this pattern - movie<whitepace>word
 	protected static final String REGEX_MOVIE_WORD = "([^\\t]+)(\\s+)(\\S+)";
@@ -43,6 +48,28 @@ public abstract class MultivalFileParser extends ImdbLineParser {
 		super(path, sourceName, preHeaderLine, headerLine, endLine);
 		this.pattern = pattern;
 		this.valuesFieldName = valuesFieldName;
+
+		// the two usual patterns have a hand-written scanner
+		if (pattern.pattern().equals(REGEX_MOVIE_WORD)) {
+			this.scanner = SCAN_WORD;
+		} else if (pattern.pattern().equals(REGEX_MOVIE_PHRASE)) {
+			this.scanner = SCAN_PHRASE;
+		}
+	}
+
+	/**
+	 * The file can be split where the movie changes
+	 */
+	@Override
+	public boolean isSplittable() {
+		return true;
+	}
+
+	@Override
+	protected boolean isSplitPoint(CharSequence prevLine, CharSequence line) {
+		return !LineTokenizer.isBlank(line, 0, line.length())
+				&& !LineTokenizer.isBlank(prevLine, 0, prevLine.length())
+				&& !LineTokenizer.sameTitle(prevLine, line);
 	}
 
 	/**
@@ -51,6 +78,15 @@ public abstract class MultivalFileParser extends ImdbLineParser {
 	 */
 	@Override
 	public ImdbRecord parseLine(String line) throws ETLException {
+		return parseLineView(line);
+	}
+
+	/**
+	 * Parse from the view. Lookahead reads views too; each is done with
+	 * (parseOneLine() has the Strings we keep) before the next is read.
+	 */
+	@Override
+	protected ImdbRecord parseLineView(CharSequence line) throws ETLException {
 		// parse next line
 		String ret[] = parseOneLine(line);
 		String movieID = ret[0];
@@ -81,7 +117,7 @@ public abstract class MultivalFileParser extends ImdbLineParser {
 		// keep reading lines until I have all the values for this movie
 		while (true) {
 			// look ahead to next line
-			String nextLine = readNextLine(true);
+			CharSequence nextLine = readNextLineView(true);
 
 			// if no next line, return what I have
 			if (nextLine == null) {
@@ -136,7 +172,7 @@ public abstract class MultivalFileParser extends ImdbLineParser {
 	 * @return
 	 */
 	public ImdbRecord valuesJSON(String movieID, Set<String> values) {
-		ImdbRecord json = new ImdbRecord();
+		ImdbRecord json = newRecord();
 
 		// seems like this is only for movies, so movieID is the key????
 		json.append(ETLConstants.FIELD_MOVIE_ID, movieID);
@@ -151,13 +187,20 @@ public abstract class MultivalFileParser extends ImdbLineParser {
 	 * @return
 	 * @throws ETLException
 	 */
-	String[] parseOneLine(String line) throws ETLException {
-		List<String> toks = getPatternToks(pattern, line.trim());
-		if (toks == null || toks.size() != 2) {
+	String[] parseOneLine(CharSequence line) throws ETLException {
+		CharSequence trimmed = trimView(line);
+		int numToks = -1;
+		if (scanner != SCAN_NONE && !regexOnly) {
+			numToks = LineTokenizer.titleValue(trimmed, scanner == SCAN_WORD, toks);
+		}
+		if (numToks < 0) {
+			numToks = getPatternToks(pattern, trimmed, toks);
+		}
+		if (numToks != 2) {
 			throw new ETLException(ETLConstants.ERR_MALFORMED_LINE,
 					"Illegal line *" + line + "*");
 		}
-		String ret[] = { toks.get(0), toks.get(1) };
+		String ret[] = { toks[0], toks[1] };
 		return ret;
 	}
 }
@@ -0,0 +1,244 @@
+package org.jude.bigdata.recroom.movies.etl.parser;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Inflates a multi-member gzip file on several threads. The members (from the
+ * file's GzipMemberIndex) are grouped into chunks of about CHUNK_SIZE
+ * compressed bytes; a pool inflates chunks ahead of the reader, and the reader
+ * gets them back in file order, so it sees the same byte stream as
+ * GZIPInputStream.
+ *
+ * Only multi-member files can be split: bgzip output, or gzip files cat'ed
+ * together. An ordinary gzip file is one member, one deflate stream, and
+ * java.util.zip can't restart inflating in the middle of one, so it is read
+ * serially as before. Recompress it with bgzip (or split, gzip and cat) to get
+ * the parallel read.
+ *
+ * Use open() to get the right stream for a file.
+ *
+ * @author mhavey
+ *
+ */
+public class ParallelGzipInputStream extends InputStream {
+
+	static final int CHUNK_SIZE = 1024 * 1024;
+	static final int AHEAD_PER_THREAD = 2;
+
+	/**
+	 * A span of whole members
+	 */
+	static class Chunk {
+		long start;
+		long end;
+
+		Chunk(long start, long end) {
+			this.start = start;
+			this.end = end;
+		}
+	}
+
+	/**
+	 * Reads one chunk from the file and inflates it
+	 */
+	static class InflateTask implements Callable<byte[]> {
+		FileChannel channel;
+		Chunk chunk;
+
+		InflateTask(FileChannel channel, Chunk chunk) {
+			this.channel = channel;
+			this.chunk = chunk;
+		}
+
+		public byte[] call() throws IOException {
+			ByteBuffer compressed = ByteBuffer.allocate((int) (this.chunk.end - this.chunk.start));
+			long pos = this.chunk.start;
+			while (compressed.hasRemaining()) {
+				int n = this.channel.read(compressed, pos);
+				if (n < 0) {
+					throw new IOException("Unexpected end of file reading gzip chunk at " + pos);
+				}
+				pos += n;
+			}
+			GZIPInputStream gzis = new GZIPInputStream(new ByteArrayInputStream(compressed.array()), 64 * 1024);
+			ByteArrayOutputStream inflated = new ByteArrayOutputStream(compressed.capacity() * 4);
+			byte buf[] = new byte[64 * 1024];
+			int n;
+			while ((n = gzis.read(buf)) != -1) {
+				inflated.write(buf, 0, n);
+			}
+			gzis.close();
+			return inflated.toByteArray();
+		}
+	}
+
+	File file;
+	RandomAccessFile raf;
+	FileChannel channel;
+	ExecutorService pool;
+	List<Chunk> chunks = new ArrayList<Chunk>();
+	int nextChunk = 0;
+	LinkedList<Future<byte[]>> ahead = new LinkedList<Future<byte[]>>();
+	int maxAhead;
+	byte current[] = new byte[0];
+	int pos = 0;
+
+	static Logger logger = Logger.getLogger(ParallelGzipInputStream.class);
+
+	/**
+	 * Open the gzip file with the best stream we have for it. With threads
+	 * <= 1, it's plain GZIPInputStream. Otherwise, if the file's member index
+	 * is cached and there is more than one member, inflate in parallel; if
+	 * there is no index, read serially and build one.
+	 *
+	 * @param file
+	 * @param threads
+	 * @return
+	 * @throws IOException
+	 */
+	public static InputStream open(File file, int threads) throws IOException {
+		if (threads > 1) {
+			GzipMemberIndex index = GzipMemberIndex.load(file);
+			if (index == null) {
+				logger.info("No gzip index for *" + file + "*; reading serially and indexing");
+				return new IndexingGzipInputStream(file);
+			}
+			if (index.size() > 1) {
+				logger.info("Inflating *" + file + "* (" + index.size() + " members) on " + threads + " threads");
+				return new ParallelGzipInputStream(file, index, threads);
+			}
+		}
+		return new GZIPInputStream(new FileInputStream(file));
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param file
+	 * @param index
+	 * @param threads
+	 * @throws IOException
+	 */
+	public ParallelGzipInputStream(File file, GzipMemberIndex index, int threads) throws IOException {
+		this.file = file;
+		long start = index.getOffset(0);
+		for (int i = 0; i < index.size(); i++) {
+			long end = index.getEnd(i);
+			if (end - start >= CHUNK_SIZE || i == index.size() - 1) {
+				this.chunks.add(new Chunk(start, end));
+				start = end;
+			}
+		}
+		this.raf = new RandomAccessFile(file, "r");
+		this.channel = this.raf.getChannel();
+		final String name = file.getName();
+		this.pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			int n = 0;
+
+			public synchronized Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "inflate-" + name + "-" + (n++));
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		this.maxAhead = threads * AHEAD_PER_THREAD;
+		submitAhead();
+	}
+
+	void submitAhead() {
+		while (this.ahead.size() < this.maxAhead && this.nextChunk < this.chunks.size()) {
+			this.ahead.add(this.pool.submit(new InflateTask(this.channel, this.chunks.get(this.nextChunk++))));
+		}
+	}
+
+	/**
+	 * Move to the next inflated chunk, waiting for it if need be
+	 *
+	 * @return false if no more
+	 * @throws IOException
+	 */
+	boolean nextChunk() throws IOException {
+		while (this.pos >= this.current.length) {
+			if (this.ahead.isEmpty()) {
+				return false;
+			}
+			Future<byte[]> future = this.ahead.removeFirst();
+			try {
+				this.current = future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted inflating *" + this.file + "*");
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException) {
+					throw (IOException) e.getCause();
+				}
+				throw new IOException("Error inflating *" + this.file + "*", e.getCause());
+			}
+			this.pos = 0;
+			submitAhead();
+		}
+		return true;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!nextChunk()) {
+			return -1;
+		}
+		return this.current[this.pos++] & 0xff;
+	}
+
+	@Override
+	public int read(byte b[], int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (!nextChunk()) {
+			return -1;
+		}
+		int n = Math.min(len, this.current.length - this.pos);
+		System.arraycopy(this.current, this.pos, b, off, n);
+		this.pos += n;
+		return n;
+	}
+
+	@Override
+	public int available() {
+		return this.current.length - this.pos;
+	}
+
+	/**
+	 * Stops the pool; chunks still inflating are dropped
+	 */
+	@Override
+	public void close() throws IOException {
+		if (this.pool == null) {
+			return;
+		}
+		this.pool.shutdownNow();
+		this.pool = null;
+		this.ahead.clear();
+		this.raf.close();
+	}
+}
@@ -35,7 +35,7 @@ public class PlotFileParser extends MultilineFileParser {
 
 		// if line starts with MV:, it's a new movie. Return it.
 		if (line.startsWith("MV:")) {
-			ImdbRecord ret = new ImdbRecord();
+			ImdbRecord ret = newRecord();
 			String movieID = line.substring(3).trim();
 			ret.append(this.keyFieldName, movieID);
 			ret.append(ETLConstants.FIELD_DOC_TYPE, sourceName);
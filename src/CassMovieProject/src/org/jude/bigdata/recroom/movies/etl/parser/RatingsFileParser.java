@@ -1,6 +1,5 @@
 package org.jude.bigdata.recroom.movies.etl.parser;
 
-import java.util.List;
 import java.util.regex.Pattern;
 
 import org.apache.log4j.Logger;
@@ -26,6 +25,7 @@ public class RatingsFileParser extends ImdbLineParser {
 
 	Logger logger = Logger.getLogger(RatingsFileParser.class);
 	static Pattern pattern = Pattern.compile(REGEX);
+	String toks[] = new String[4];
 
 	/**
 	 * Constructor. Takes file system directory path for file.
@@ -36,32 +36,96 @@ public class RatingsFileParser extends ImdbLineParser {
 		super(path, SOURCE_NAME, PRE_HEADER_LINE, HEADER_LINE, END_LINE);
 	}
 
+	/**
+	 * One record per line, so the file can be split at any line
+	 */
+	@Override
+	public boolean isSplittable() {
+		return true;
+	}
+
+	@Override
+	protected boolean isSplitPoint(CharSequence prevLine, CharSequence line) {
+		return !LineTokenizer.isBlank(line, 0, line.length());
+	}
+
 	@Override
 	public ImdbRecord parseLine(String line) throws ETLException {
-		List<String> toks = getPatternToks(pattern, line.trim());
-		if (toks == null || toks.size() < 2) {
+		return parseLineView(line);
+	}
+
+	/**
+	 * Parse straight from the view; only the matched fields become Strings
+	 */
+	@Override
+	protected ImdbRecord parseLineView(CharSequence line) throws ETLException {
+		CharSequence trimmed = trimView(line);
+		int numToks = regexOnly ? -1 : scanLine(trimmed);
+		if (numToks < 0) {
+			numToks = getPatternToks(pattern, trimmed, toks);
+		}
+		if (numToks < 2) {
 			throw new ETLException(ETLConstants.ERR_MALFORMED_LINE,
 					"Illegal line *" + line + "*");
 		}
 
 		// Return our record
-		ImdbRecord json = new ImdbRecord();
+		ImdbRecord json = newRecord();
 		Float rating = null;
 		Integer votes = null;
-		if (toks.get(2).length() > 0) {
-			rating = Float.parseFloat(toks.get(2));
+		if (toks[2].length() > 0) {
+			rating = Float.parseFloat(toks[2]);
 		}
-		if (toks.get(1).length() > 0) {
-			votes = Integer.parseInt(toks.get(1));
+		if (toks[1].length() > 0) {
+			votes = Integer.parseInt(toks[1]);
 		}
 
-		json.append(ETLConstants.FIELD_MOVIE_ID, toks.get(3));
+		json.append(ETLConstants.FIELD_MOVIE_ID, toks[3]);
 		json.appendSubdoc(
 				ETLConstants.SUBDOC_RATING,
-				new ImdbRecord()
-						.append(ETLConstants.FIELD_RATING_DIST, toks.get(0))
-						.append(ETLConstants.FIELD_RATING, rating)
-						.append(ETLConstants.FIELD_RATING_VOTES, votes));
+				new ImdbRecord(ETLConstants.SUBDOC_RATING)
+						.append(ETLConstants.FIELD_RATING_DIST, toks[0])
+						.appendFloat(ETLConstants.FIELD_RATING, rating)
+						.appendInt(ETLConstants.FIELD_RATING_VOTES, votes));
 		return json;
 	}
+
+	/**
+	 * Hand-written REGEX: distribution, votes, rating (d.d), title
+	 * 
+	 * @param line
+	 *            - trimmed
+	 * @return number of toks, or -1 to use the regex
+	 */
+	int scanLine(CharSequence line) {
+		int len = line.length();
+		int distEnd = 0;
+		while (distEnd < len && isDistChar(line.charAt(distEnd))) {
+			distEnd++;
+		}
+		int votesStart = LineTokenizer.skipSpace(line, distEnd);
+		int votesEnd = LineTokenizer.skipDigits(line, votesStart);
+		int ratingStart = LineTokenizer.skipSpace(line, votesEnd);
+		int ratingEnd = LineTokenizer.skipDigits(line, ratingStart);
+		if (distEnd == 0 || votesStart == distEnd || votesEnd == votesStart || ratingStart == votesEnd
+				|| ratingEnd == ratingStart || ratingEnd + 2 > len || line.charAt(ratingEnd) != '.'
+				|| !LineTokenizer.isDigit(line.charAt(ratingEnd + 1))) {
+			return -1;
+		}
+		ratingEnd += 2;
+		int titleStart = LineTokenizer.skipSpace(line, ratingEnd);
+		if (titleStart == ratingEnd || len - titleStart < 2 || LineTokenizer.isBlank(line, titleStart, len)
+				|| LineTokenizer.hasLineTerminator(line, titleStart, len)) {
+			return -1;
+		}
+		toks[0] = LineTokenizer.substring(line, 0, distEnd);
+		toks[1] = LineTokenizer.substring(line, votesStart, votesEnd);
+		toks[2] = LineTokenizer.substring(line, ratingStart, ratingEnd);
+		toks[3] = LineTokenizer.substring(line, titleStart, len);
+		return 4;
+	}
+
+	static boolean isDistChar(char c) {
+		return c == '*' || c == '.' || LineTokenizer.isDigit(c);
+	}
 }
@@ -29,6 +29,22 @@ public class RoleFileParser extends MultilineFileParser {
 				preHeaderLine, headerLine, endLine);
 	}
 
+	/**
+	 * A contributor's block starts with a line that isn't indented, after a
+	 * blank line.
+	 */
+	@Override
+	public boolean isSplittable() {
+		return true;
+	}
+
+	@Override
+	protected boolean isSplitPoint(CharSequence prevLine, CharSequence line) {
+		return line.length() > 0 && line.charAt(0) != '\t'
+				&& !LineTokenizer.isBlank(line, 0, line.length())
+				&& LineTokenizer.isBlank(prevLine, 0, prevLine.length());
+	}
+
 	@Override
 	protected ParseResult parseOneLine(String line, ImdbRecord currentJSON)
 			throws ETLException {
@@ -96,7 +112,7 @@ public class RoleFileParser extends MultilineFileParser {
 	// (2013) (TV) (voice) [Narrator]
 	ImdbRecord buildRole(String roleDesc, String contrib) throws ETLException {
 
-		ImdbRecord ret = new ImdbRecord();
+		ImdbRecord ret = newRecord();
 
 		// My theory is that two spaces splits fields
 		String toks[] = roleDesc.split("  ");
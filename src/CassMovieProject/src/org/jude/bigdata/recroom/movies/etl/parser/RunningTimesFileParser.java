@@ -1,6 +1,5 @@
 package org.jude.bigdata.recroom.movies.etl.parser;
 
-import java.util.List;
 import java.util.regex.Pattern;
 
 import org.apache.log4j.Logger;
@@ -28,6 +27,7 @@ public class RunningTimesFileParser extends ImdbLineParser {
 
 	Logger logger = Logger.getLogger(RunningTimesFileParser.class);
 	static Pattern pattern = Pattern.compile(REGEX);
+	String toks[] = new String[2];
 
 	/**
 	 * Constructor. Takes file system directory path for file.
@@ -38,20 +38,45 @@ public class RunningTimesFileParser extends ImdbLineParser {
 		super(path, SOURCE_NAME, PRE_HEADER_LINE, HEADER_LINE, END_LINE);
 	}
 
+	/**
+	 * One record per line, so the file can be split at any line
+	 */
+	@Override
+	public boolean isSplittable() {
+		return true;
+	}
+
+	@Override
+	protected boolean isSplitPoint(CharSequence prevLine, CharSequence line) {
+		return !LineTokenizer.isBlank(line, 0, line.length());
+	}
+
 	@Override
 	public ImdbRecord parseLine(String line) throws ETLException {
-		List<String> toks = getPatternToks(pattern, line.trim());
-		if (toks == null || toks.size() != 2) {
+		return parseLineView(line);
+	}
+
+	/**
+	 * Parse straight from the view; only the matched fields become Strings
+	 */
+	@Override
+	protected ImdbRecord parseLineView(CharSequence line) throws ETLException {
+		CharSequence trimmed = trimView(line);
+		int numToks = regexOnly ? -1 : LineTokenizer.titleValue(trimmed, false, toks);
+		if (numToks < 0) {
+			numToks = getPatternToks(pattern, trimmed, toks);
+		}
+		if (numToks != 2) {
 			throw new ETLException(ETLConstants.ERR_MALFORMED_LINE,
 					"Illegal line *" + line + "*");
 		}
 
-		String movieID = toks.get(0);
+		String movieID = toks[0];
 		String runningTime = "";
 
 		// Running is complicated. Split by space or : and look for a single one
 		// that is just an int
-		String rtoks[] = toks.get(1).split("\\s|:");
+		String rtoks[] = toks[1].split("\\s|:");
 		for (int i = 0; i < rtoks.length; i++) {
 			String candidate = this.validateInt(rtoks[i], false, false);
 			if (candidate.equals(rtoks[i])) {
@@ -71,9 +96,9 @@ public class RunningTimesFileParser extends ImdbLineParser {
 		if (runningTime.length() > 0) {
 			iRunningTime = Integer.parseInt(runningTime);
 		}
-		ImdbRecord json = new ImdbRecord();
+		ImdbRecord json = newRecord();
 		json.append(ETLConstants.FIELD_MOVIE_ID, movieID);
-		json.append(ETLConstants.FIELD_RUNNING_TIME, iRunningTime);
+		json.appendInt(ETLConstants.FIELD_RUNNING_TIME, iRunningTime);
 		return json;
 	}
 }
@@ -31,7 +31,7 @@ public class TestFileParser extends ImdbLineParser {
 		if (rowIdx >= rows.length) {
 			return null;
 		}
-		ImdbRecord rec = new ImdbRecord();
+		ImdbRecord rec = newRecord();
 		String toks[] = rows[rowIdx].split(",");
 		
 		// toks:(key,value,int|text|array)+
@@ -0,0 +1,145 @@
+package org.jude.bigdata.recroom.movies.etl.test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.jude.bigdata.recroom.movies.etl.ETLConstants;
+import org.jude.bigdata.recroom.movies.etl.ETLException;
+import org.jude.bigdata.recroom.movies.etl.ETLProperties;
+import org.jude.bigdata.recroom.movies.etl.ImdbRecord;
+import org.jude.bigdata.recroom.movies.etl.parser.ChunkSplitter;
+import org.jude.bigdata.recroom.movies.etl.parser.ImdbLineParser;
+
+/**
+ * Checks that a list parsed serially, pipelined (line batches read ahead, see
+ * LineBatchReader) and in chunks (see ChunkSplitter) gives the same records,
+ * failures and line numbers, in the same order. The chunks are parsed one
+ * after the other here, so their records come in file order.
+ *
+ * Usage: ChunkedParseCheck [imdbPath | lines] [chunks]. Without a path, checks
+ * ParserBenchmark's synthetic lists of the given number of lines (default
+ * 500000). Chunks default to 4; ChunkSplitter won't make chunks smaller than
+ * MIN_CHUNK_SIZE.
+ *
+ * @author mhavey
+ *
+ */
+public class ChunkedParseCheck {
+
+	static final String SOURCES[] = { "movies", "ratings", "running-times", "genres", "countries", "language",
+			"keywords", "locations", "actors", "actresses", "directors", "writers" };
+
+	/**
+	 * Parse with the given parsers, one after the other. Each record or failure
+	 * is one entry, with the line number the parser reported for it.
+	 *
+	 * @param parsers
+	 * @return
+	 * @throws ETLException
+	 */
+	static List<String> parse(ImdbLineParser parsers[]) throws ETLException {
+		List<String> results = new ArrayList<String>();
+		for (int i = 0; i < parsers.length; i++) {
+			try {
+				while (true) {
+					try {
+						ImdbRecord rec = parsers[i].next();
+						if (rec == null) {
+							break;
+						}
+						results.add(parsers[i].getLastLineNumber() + " " + rec);
+					} catch (ETLException e) {
+						results.add(parsers[i].getLastLineNumber() + " FAIL " + e.getMessage());
+					}
+				}
+			} finally {
+				parsers[i].closeReader();
+			}
+		}
+		return results;
+	}
+
+	static ImdbLineParser[] openWhole(String source, String path, boolean pipelined) throws ETLException {
+		ImdbLineParser parser = ImdbLineParser.getParser(source, path);
+		parser.setPipelined(pipelined);
+		parser.openReader();
+		return new ImdbLineParser[] { parser };
+	}
+
+	/**
+	 * Compare a run with the serial one; print the first difference
+	 *
+	 * @param mode
+	 * @param serial
+	 * @param other
+	 * @return
+	 */
+	static boolean compare(String mode, List<String> serial, List<String> other) {
+		int n = Math.min(serial.size(), other.size());
+		for (int i = 0; i < n; i++) {
+			if (!serial.get(i).equals(other.get(i))) {
+				System.out.println("  " + mode + " differs at entry " + i + ":\n    serial  " + serial.get(i)
+						+ "\n    " + mode + " " + other.get(i));
+				return false;
+			}
+		}
+		if (serial.size() != other.size()) {
+			System.out.println("  " + mode + " has " + other.size() + " entries, serial " + serial.size());
+			return false;
+		}
+		return true;
+	}
+
+	static boolean check(String source, String path, int chunks) throws ETLException {
+		List<String> serial = parse(openWhole(source, path, false));
+		List<String> pipelined = parse(openWhole(source, path, true));
+		ImdbLineParser chunkParsers[] = ChunkSplitter.openChunks(source, path, chunks);
+		List<String> chunked = null;
+		if (chunkParsers != null) {
+			chunked = parse(chunkParsers);
+		}
+		System.out.println(String.format("%-14s entries %9d  chunks %2d", source, serial.size(),
+				chunkParsers == null ? 1 : chunkParsers.length));
+		boolean same = compare("pipelined", serial, pipelined);
+		if (chunked != null) {
+			same &= compare("chunked", serial, chunked);
+		}
+		return same;
+	}
+
+	/**
+	 * @param args
+	 */
+	public static void main(String[] args) throws Exception {
+		BasicConfigurator.configure();
+		Logger.getRootLogger().setLevel(Level.WARN);
+
+		ETLProperties props = new ETLProperties();
+		props.setProperty(ETLConstants.PROP_LIST_SIDECAR, "true");
+
+		String path;
+		if (args.length > 0 && !args[0].matches("\\d+")) {
+			path = args[0];
+		} else {
+			int n = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+			path = ParserBenchmark.makeLists(n).getPath();
+			System.out.println("Synthetic lists of " + n + " lines in " + path);
+		}
+		int chunks = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+
+		boolean same = true;
+		for (int i = 0; i < SOURCES.length; i++) {
+			if (new File(path, SOURCES[i] + ".list.gz").exists()) {
+				same &= check(SOURCES[i], path, chunks);
+			}
+		}
+		System.out.println(same ? "All the same" : "DIFFERENT");
+		if (!same) {
+			System.exit(1);
+		}
+	}
+}
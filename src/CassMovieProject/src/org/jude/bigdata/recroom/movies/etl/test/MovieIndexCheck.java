@@ -0,0 +1,167 @@
+package org.jude.bigdata.recroom.movies.etl.test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.jude.bigdata.recroom.movies.etl.ETLConstants;
+import org.jude.bigdata.recroom.movies.etl.ImdbRecord;
+import org.jude.bigdata.recroom.movies.etl.MovieIndex;
+
+/**
+ * Checks MovieIndex against a HashMap of the same movies: put/get, movie ids
+ * with chars at and above 0xFF (which the index escapes), the NO_YEAR and
+ * NOT_FOUND results, addMovie() and remove(), growth well past the initial
+ * table and arena, and that an index saved and loaded back answers every
+ * lookup the same.
+ *
+ * Usage: MovieIndexCheck [movies]. movies defaults to 500000; under about 40000
+ * the table never grows (it starts at 65536 slots, loaded to 60%).
+ *
+ * @author mhavey
+ *
+ */
+public class MovieIndexCheck {
+
+	// ids that are the same but for escaped chars, or a prefix of each other
+	static final String ODD_IDS[] = { "", "A", "Am\u00e9lie (2001)", "Am\u00e9lie (2001) ", "Ame\u00fflie (2001)",
+			"Ame\u00felie (2001)", "\u00ff", "\u00ff\u00ff", "\u00fe", "\u0100", "\u00ff\u0100", "\u0100\u00ff",
+			"Shichinin no samurai \u4e03\u4eba\u306e\u4f8d (1954)", "\uffff", "\uffff\u00ff", "x\uffffy",
+			"Zo\u00eb (2010)", "Zo\u00eb (2010) {\u00ff}" };
+
+	static int numFailures = 0;
+
+	static void fail(String what) {
+		if (numFailures++ < 10) {
+			System.out.println("  FAIL " + what);
+		}
+	}
+
+	/**
+	 * Every movie in the map, and a few that aren't, give the same answer
+	 * from the index
+	 *
+	 * @param what
+	 * @param index
+	 * @param movies
+	 */
+	static void compare(String what, MovieIndex index, Map<String, Integer> movies) {
+		int before = numFailures;
+		if (index.size() != movies.size()) {
+			fail(what + ": size " + index.size() + ", expected " + movies.size());
+		}
+		for (Map.Entry<String, Integer> movie : movies.entrySet()) {
+			int year = index.getReleaseYear(movie.getKey());
+			if (year != movie.getValue()) {
+				fail(what + ": *" + movie.getKey() + "* year " + year + ", expected " + movie.getValue());
+			}
+			if (!index.contains(new StringBuilder(movie.getKey()))) {
+				fail(what + ": *" + movie.getKey() + "* not found as a StringBuilder");
+			}
+		}
+		for (String missing : new String[] { "Not a movie (1900)", "movie 12 (1901)x", "\u00ff\u00ff\u00ff",
+				"Am\u00e9lie" }) {
+			if (!movies.containsKey(missing) && index.getReleaseYear(missing) != MovieIndex.NOT_FOUND) {
+				fail(what + ": *" + missing + "* found");
+			}
+		}
+		System.out.println(String.format("%-36s movies %8d  %s", what, index.size(), numFailures == before ? "ok"
+				: "FAILED"));
+	}
+
+	static ImdbRecord movie(String movieID, Integer releaseYear) {
+		ImdbRecord record = new ImdbRecord();
+		record.append(ETLConstants.FIELD_MOVIE_ID, movieID);
+		if (releaseYear != null) {
+			record.appendInt(ETLConstants.FIELD_RELEASE_YEAR, releaseYear);
+		}
+		return record;
+	}
+
+	/**
+	 * @param args
+	 */
+	public static void main(String[] args) throws Exception {
+		BasicConfigurator.configure();
+		Logger.getRootLogger().setLevel(Level.WARN);
+		int numMovies = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+
+		MovieIndex index = new MovieIndex();
+		Map<String, Integer> movies = new HashMap<String, Integer>();
+
+		// odd ids, with and without a year
+		for (int i = 0; i < ODD_IDS.length; i++) {
+			int year = (i % 3 == 0) ? MovieIndex.NO_YEAR : 1900 + i;
+			index.put(ODD_IDS[i], year);
+			movies.put(ODD_IDS[i], year);
+		}
+		compare("odd ids", index, movies);
+
+		// the rest, enough to grow the table and arena several times
+		List<String> ids = new ArrayList<String>();
+		for (int i = 0; i < numMovies; i++) {
+			String id = "movie " + i + " (" + (1900 + i % 120) + ")" + (i % 7 == 0 ? " {\u00ff" + i + "\u0101}" : "");
+			int year = (i % 11 == 0) ? MovieIndex.NO_YEAR : 1900 + i % 120;
+			ids.add(id);
+			index.put(id, year);
+			movies.put(id, year);
+		}
+		compare("grown", index, movies);
+
+		// put replaces the year; addMovie keeps the first one
+		for (int i = 0; i < numMovies; i += 5) {
+			index.put(ids.get(i), 2016);
+			movies.put(ids.get(i), 2016);
+		}
+		for (int i = 1; i < numMovies; i += 5) {
+			if (index.addMovie(movie(ids.get(i), 1800))) {
+				fail("addMovie of *" + ids.get(i) + "* added it again");
+			}
+		}
+		if (!index.addMovie(movie("No year (????)", null)) || !index.addMovie(movie("A year (1999)", 1999))) {
+			fail("addMovie of a new movie didn't add it");
+		}
+		movies.put("No year (????)", MovieIndex.NO_YEAR);
+		movies.put("A year (1999)", 1999);
+		compare("replaced and added", index, movies);
+
+		// removed movies are NOT_FOUND, and can come back
+		for (int i = 2; i < numMovies; i += 3) {
+			if (!index.remove(ids.get(i))) {
+				fail("remove of *" + ids.get(i) + "* didn't find it");
+			}
+			movies.remove(ids.get(i));
+		}
+		if (index.remove(ids.get(2)) || index.remove("Not a movie (1900)")) {
+			fail("remove of a movie not there removed it");
+		}
+		for (int i = 2; i < numMovies; i += 9) {
+			index.put(ids.get(i), 1950);
+			movies.put(ids.get(i), 1950);
+		}
+		compare("removed and put back", index, movies);
+
+		// saved and loaded back
+		File file = File.createTempFile("movieindex", ".idx");
+		file.deleteOnExit();
+		index.save(file);
+		MovieIndex loaded = MovieIndex.load(file);
+		compare("saved and loaded", loaded, movies);
+		try {
+			loaded.put("Read only (2000)", 2000);
+			fail("put into a loaded index");
+		} catch (IllegalStateException e) {
+			// as it should
+		}
+
+		System.out.println(numFailures == 0 ? "All the same" : "DIFFERENT");
+		if (numFailures > 0) {
+			System.exit(1);
+		}
+	}
+}
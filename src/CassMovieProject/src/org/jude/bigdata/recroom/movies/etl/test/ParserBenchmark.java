@@ -0,0 +1,224 @@
+package org.jude.bigdata.recroom.movies.etl.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.jude.bigdata.recroom.movies.etl.ETLConstants;
+import org.jude.bigdata.recroom.movies.etl.ETLException;
+import org.jude.bigdata.recroom.movies.etl.ETLProperties;
+import org.jude.bigdata.recroom.movies.etl.ImdbRecord;
+import org.jude.bigdata.recroom.movies.etl.parser.CountriesFileParser;
+import org.jude.bigdata.recroom.movies.etl.parser.GenresFileParser;
+import org.jude.bigdata.recroom.movies.etl.parser.ImdbLineParser;
+import org.jude.bigdata.recroom.movies.etl.parser.KeywordsFileParser;
+import org.jude.bigdata.recroom.movies.etl.parser.LanguageFileParser;
+import org.jude.bigdata.recroom.movies.etl.parser.LocationsFileParser;
+import org.jude.bigdata.recroom.movies.etl.parser.MoviesFileParser;
+import org.jude.bigdata.recroom.movies.etl.parser.RatingsFileParser;
+import org.jude.bigdata.recroom.movies.etl.parser.RunningTimesFileParser;
+
+/**
+ * Per-line cost of the simple parsers, regex vs. hand-written scanner, and a
+ * check that both give the same records. Reads the lists through the
+ * uncompressed sidecars, so inflate isn't in the times.
+ *
+ * Usage: ParserBenchmark [imdbPath | lines]. Without a path, makes synthetic
+ * lists of the given number of lines (default 500000) in a temp dir.
+ *
+ * @author mhavey
+ *
+ */
+public class ParserBenchmark {
+
+	static final int PASSES = 3;
+
+	/**
+	 * Result of one parse of a file
+	 */
+	static class Run {
+		long lines;
+		long records;
+		long fails;
+		long hash = 17;
+		long nanos;
+	}
+
+	interface ParserFactory {
+		ImdbLineParser create(String path);
+	}
+
+	static Run runParser(ParserFactory factory, String path, boolean regexOnly) throws ETLException {
+		ImdbLineParser parser = factory.create(path);
+		parser.setRegexOnly(regexOnly);
+		Run run = new Run();
+		long start = System.nanoTime();
+		try {
+			parser.openReader();
+			while (true) {
+				try {
+					ImdbRecord rec = parser.next();
+					if (rec == null) {
+						break;
+					}
+					run.records++;
+					run.hash = run.hash * 31 + rec.toString().hashCode();
+				} catch (ETLException e) {
+					run.fails++;
+					run.hash = run.hash * 31 + e.getMessage().hashCode();
+				}
+			}
+		} finally {
+			parser.closeReader();
+		}
+		run.nanos = System.nanoTime() - start;
+		run.lines = parser.getLastLineNumber();
+		return run;
+	}
+
+	static void benchmark(String name, ParserFactory factory, String path) throws ETLException {
+		// first pass writes the sidecar and warms up
+		runParser(factory, path, true);
+		runParser(factory, path, false);
+		long best[] = { Long.MAX_VALUE, Long.MAX_VALUE };
+		Run runs[] = new Run[2];
+		for (int i = 0; i < PASSES; i++) {
+			for (int mode = 0; mode < 2; mode++) {
+				runs[mode] = runParser(factory, path, mode == 0);
+				best[mode] = Math.min(best[mode], runs[mode].nanos);
+			}
+		}
+		boolean same = runs[0].hash == runs[1].hash && runs[0].records == runs[1].records
+				&& runs[0].fails == runs[1].fails;
+		System.out.println(String.format("%-12s lines %9d records %9d fails %6d  regex %7.1f ns/line  scanner %7.1f ns/line  %s",
+				name, runs[1].lines, runs[1].records, runs[1].fails, (double) best[0] / runs[0].lines,
+				(double) best[1] / runs[1].lines, same ? "same" : "DIFFERENT"));
+	}
+
+	static void writeList(File dir, String source, String preHeader, String header, String endLine,
+			String lines[]) throws IOException {
+		PrintWriter out = new PrintWriter(new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(new File(
+				dir, source + ".list.gz"))), "ISO-8859-1"));
+		out.print("CRC: 0x00000000  File: " + source + ".list\n\n" + preHeader + "\n" + header + "\n\n");
+		for (int i = 0; i < lines.length; i++) {
+			out.print(lines[i]);
+			out.print('\n');
+		}
+		if (endLine != null) {
+			out.print("\n" + endLine + "\n\nCopyright 1990-2015 etc.\n");
+		}
+		out.close();
+	}
+
+	static String title(int i) {
+		switch (i % 4) {
+		case 0:
+			return "Movie Number " + (i / 4) + " (" + (1920 + i % 90) + ")";
+		case 1:
+			return "\"Series " + (i / 4) + "\" (" + (1950 + i % 60) + ")";
+		case 2:
+			return "\"Series " + (i / 4) + "\" (" + (1950 + i % 60) + ") {Episode " + i + " (#1." + (i % 20) + ")}";
+		default:
+			return "Le Film \u00e9tranger " + (i / 4) + " (" + (1930 + i % 80) + ") (TV)";
+		}
+	}
+
+	static File makeLists(int n) throws IOException {
+		File dir = File.createTempFile("parserbench", "");
+		dir.delete();
+		dir.mkdirs();
+		String dashes = "--------------------------------------------------------------------------------";
+		String words[] = { "Drama", "Comedy", "USA", "English", "murder", "France", "Short" };
+		String movies[] = new String[n];
+		String ratings[] = new String[n];
+		String times[] = new String[n];
+		String values[] = new String[n];
+		String phrases[] = new String[n];
+		for (int i = 0; i < n; i++) {
+			String t = title(i);
+			movies[i] = t + "\t\t\t" + (i % 50 == 0 ? "????" : String.valueOf(1920 + i % 90))
+					+ (i % 4 == 1 ? "-" + (1980 + i % 30) : "");
+			ratings[i] = "      0000001" + (i % 1000 / 100) + "*." + "  " + (i % 100000) + "   " + (i % 10) + "."
+					+ (i % 7) + "  " + t;
+			times[i] = t + "\t\t\t" + (i % 3 == 0 ? "USA:" : "") + (60 + i % 120) + (i % 5 == 0 ? "\t(DVD)" : "");
+			values[i] = t + "\t\t\t\t" + words[i % words.length];
+			phrases[i] = t + "\t\t\t" + "Main Street " + i + ", Springfield, USA" + (i % 6 == 0 ? "\t(exteriors)" : "");
+		}
+		writeList(dir, "movies", "MOVIES LIST", "===========", dashes, movies);
+		writeList(dir, "ratings", "MOVIE RATINGS REPORT", "New  Distribution  Votes  Rank  Title", dashes, ratings);
+		writeList(dir, "running-times", "RUNNING TIMES LIST", "==================", dashes, times);
+		writeList(dir, "genres", "8: THE GENRES LIST", "==================", null, values);
+		writeList(dir, "countries", "COUNTRIES LIST", "==============", dashes, values);
+		writeList(dir, "language", "LANGUAGE LIST", "=============", dashes, values);
+		writeList(dir, "keywords", "8: THE KEYWORDS LIST", "====================", dashes, values);
+		writeList(dir, "locations", "LOCATIONS LIST", "==============", dashes, phrases);
+		return dir;
+	}
+
+	/**
+	 * @param args
+	 */
+	public static void main(String[] args) throws Exception {
+		BasicConfigurator.configure();
+		Logger.getRootLogger().setLevel(Level.WARN);
+
+		ETLProperties props = new ETLProperties();
+		props.setProperty(ETLConstants.PROP_LIST_SIDECAR, "true");
+
+		String path;
+		if (args.length > 0 && !args[0].matches("\\d+")) {
+			path = args[0];
+		} else {
+			int n = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+			path = makeLists(n).getPath();
+			System.out.println("Synthetic lists of " + n + " lines in " + path);
+		}
+
+		benchmark("movies", new ParserFactory() {
+			public ImdbLineParser create(String path) {
+				return new MoviesFileParser(path);
+			}
+		}, path);
+		benchmark("ratings", new ParserFactory() {
+			public ImdbLineParser create(String path) {
+				return new RatingsFileParser(path);
+			}
+		}, path);
+		benchmark("runningtimes", new ParserFactory() {
+			public ImdbLineParser create(String path) {
+				return new RunningTimesFileParser(path);
+			}
+		}, path);
+		benchmark("genres", new ParserFactory() {
+			public ImdbLineParser create(String path) {
+				return new GenresFileParser(path);
+			}
+		}, path);
+		benchmark("countries", new ParserFactory() {
+			public ImdbLineParser create(String path) {
+				return new CountriesFileParser(path);
+			}
+		}, path);
+		benchmark("language", new ParserFactory() {
+			public ImdbLineParser create(String path) {
+				return new LanguageFileParser(path);
+			}
+		}, path);
+		benchmark("keywords", new ParserFactory() {
+			public ImdbLineParser create(String path) {
+				return new KeywordsFileParser(path);
+			}
+		}, path);
+		benchmark("locations", new ParserFactory() {
+			public ImdbLineParser create(String path) {
+				return new LocationsFileParser(path);
+			}
+		}, path);
+	}
+}
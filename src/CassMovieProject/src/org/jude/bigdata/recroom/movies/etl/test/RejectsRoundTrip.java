@@ -0,0 +1,452 @@
+package org.jude.bigdata.recroom.movies.etl.test;
+
+import java.io.File;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.jude.bigdata.recroom.movies.etl.CassDBConnection;
+import org.jude.bigdata.recroom.movies.etl.ETLConstants;
+import org.jude.bigdata.recroom.movies.etl.ETLException;
+import org.jude.bigdata.recroom.movies.etl.ETLProperties;
+import org.jude.bigdata.recroom.movies.etl.ImdbRecord;
+import org.jude.bigdata.recroom.movies.etl.RejectsFile;
+import org.jude.bigdata.recroom.movies.etl.parser.ImdbLineParser;
+
+import com.datastax.driver.core.BoundStatement;
+
+/**
+ * Checks that records written to a rejects file come back the same from it,
+ * as --replay reads them. The records are the first ones from each parser
+ * whose list is in the IMDB dir, plus one made here with every type of value
+ * a record can hold. Each record read back is compared with the one written,
+ * field by field: the same fields, with values of the same class and equal,
+ * subdocs compared the same way and with the same doc type, and the same line
+ * number. Each is also written a second time, and as a dupe; read() should
+ * give it back once, with the statement that failed.
+ *
+ * Given a Cassandra node with the moviedb schema, the records are also bound
+ * to the statements the loader sends them with, and the bound values
+ * compared.
+ *
+ * Usage: RejectsRoundTrip [imdbPath | lines] [maxRecords] [cassNode]. Without a
+ * path, uses ParserBenchmark's synthetic lists of the given number of lines
+ * (default 100000). maxRecords per source defaults to 20000.
+ *
+ * @author mhavey
+ *
+ */
+public class RejectsRoundTrip {
+
+	static final String TYPES_SOURCE = "roundtrip-types";
+	static final String STATEMENT = "roundTrip";
+
+	static final String MOVIE_UPDATES[][] = { { "aka-titles", ETLConstants.FIELD_ALT_TITLES },
+			{ "business", ETLConstants.SUBDOC_BUSINESS }, { "certificates", ETLConstants.SUBDOC_PARENTAL },
+			{ "color-info", ETLConstants.SUBDOC_TECHNICAL }, { "countries", ETLConstants.FIELD_COUNTRIES },
+			{ "genres", ETLConstants.FIELD_GENRES }, { "keywords", ETLConstants.FIELD_KEYWORDS },
+			{ "language", ETLConstants.FIELD_LANGUAGES }, { "locations", ETLConstants.FIELD_LOCATIONS },
+			{ "ratings", ETLConstants.SUBDOC_RATING }, { "running-times", ETLConstants.FIELD_RUNNING_TIME },
+			{ "mpaa-ratings-reasons", ETLConstants.SUBDOC_PARENTAL }, { "sound-mix", ETLConstants.SUBDOC_TECHNICAL } };
+
+	static final String ROLE_FILES[] = { "actors", "actresses", "cinematographers", "composers",
+			"costume-designers", "directors", "distributors", "editors", "miscellaneous-companies", "miscellaneous",
+			"producers", "production-companies", "production-designers", "special-effects-companies", "writers" };
+
+	static final String DOC_FILES[] = { "alternate-versions", "crazy-credits", "goofs", "literature", "plot",
+			"quotes", "soundtracks", "taglines", "trivia" };
+
+	/**
+	 * First records of the source; failures are skipped
+	 *
+	 * @param source
+	 * @param path
+	 * @param max
+	 * @return
+	 * @throws ETLException
+	 */
+	static List<ImdbRecord> parse(String source, String path, int max) throws ETLException {
+		List<ImdbRecord> records = new ArrayList<ImdbRecord>();
+		ImdbLineParser parser = ImdbLineParser.getParser(source, path);
+		try {
+			parser.openReader();
+			while (records.size() < max) {
+				try {
+					ImdbRecord rec = parser.next();
+					if (rec == null) {
+						break;
+					}
+					rec.setLineNumber(parser.getLastLineNumber());
+					records.add(rec);
+				} catch (ETLException e) {
+					// not what we're checking
+				}
+			}
+		} finally {
+			parser.closeReader();
+		}
+		return records;
+	}
+
+	/**
+	 * One record with every type of value: those the parsers make, and those
+	 * a select can bring in
+	 *
+	 * @return
+	 */
+	static ImdbRecord typesRecord() {
+		ImdbRecord rec = new ImdbRecord();
+		rec.append(ETLConstants.FIELD_MOVIE_ID, "Some Movie (1999)");
+		rec.appendInt(ETLConstants.FIELD_RELEASE_YEAR, 1999);
+		rec.append("boxed_int", Integer.valueOf(-7));
+		rec.appendFloat("float", 7.25f);
+		rec.append("boxed_float", Float.valueOf(0.1f));
+		rec.append("set", new HashSet<String>(Arrays.asList("a", "b", "123", "")));
+		rec.append("empty_set", new HashSet<String>());
+		rec.append("tree_set", new TreeSet<String>(Arrays.asList("x", "y")));
+		rec.append("null", (Object) null);
+		rec.append("bigint", Long.valueOf(1L << 40));
+		rec.append("double", Double.valueOf(0.1));
+		rec.append("boolean", Boolean.TRUE);
+		rec.append("list", new ArrayList<Object>(Arrays.asList("b", "a", "b", 3)));
+		rec.append("timestamp", new Date(1234567890123L));
+		rec.append("uuid", UUID.fromString("123e4567-e89b-12d3-a456-426655440000"));
+		rec.append("decimal", new BigDecimal("3.14159265358979323846"));
+		rec.append("number_string", "42");
+		rec.append("json_string", "{\"@type\":\"bigint\",\"value\":1}");
+		rec.appendSubdoc(ETLConstants.SUBDOC_RATING, new ImdbRecord(ETLConstants.SUBDOC_RATING).appendFloat(
+				ETLConstants.FIELD_RATING, 8.5f).appendInt(ETLConstants.FIELD_RATING_VOTES, 1000));
+		rec.append(ETLConstants.SUBDOC_PARENTAL, new ImdbRecord().append("certificates",
+				new HashSet<String>(Arrays.asList("USA:R"))));
+		rec.append("empty_subdoc", new ImdbRecord());
+		rec.setLineNumber(12345);
+		return rec;
+	}
+
+	/**
+	 * First difference between the records, or null if none
+	 *
+	 * @param written
+	 * @param read
+	 * @return
+	 */
+	static String compare(ImdbRecord written, ImdbRecord read) {
+		if (written.getDocType() == null ? read.getDocType() != null : !written.getDocType().equals(
+				read.getDocType())) {
+			return "doc type " + written.getDocType() + " read as " + read.getDocType();
+		}
+		if (!written.keys().equals(read.keys())) {
+			return "fields " + written.keys() + " read as " + read.keys();
+		}
+		for (String key : written.keys()) {
+			String diff = compareValue(written.get(key), read.get(key));
+			if (diff != null) {
+				return key + ": " + diff;
+			}
+		}
+		return null;
+	}
+
+	static String compareValue(Object written, Object read) {
+		if (written == null || read == null) {
+			return written == read ? null : written + " read as " + read;
+		}
+		if (written instanceof ImdbRecord && read instanceof ImdbRecord) {
+			return compare((ImdbRecord) written, (ImdbRecord) read);
+		}
+		if (written instanceof Set && read instanceof Set) {
+			// sets of any kind are the same set; their elements must match
+			if (!written.equals(read)) {
+				return written + " read as " + read;
+			}
+			Map<Object, Object> readElements = new HashMap<Object, Object>();
+			for (Object element : (Set<?>) read) {
+				readElements.put(element, element);
+			}
+			for (Object element : (Set<?>) written) {
+				String diff = compareValue(element, readElements.get(element));
+				if (diff != null) {
+					return "element " + diff;
+				}
+			}
+			return null;
+		}
+		if (written.getClass() != read.getClass()) {
+			return written + " (" + written.getClass().getSimpleName() + ") read as " + read + " ("
+					+ read.getClass().getSimpleName() + ")";
+		}
+		if (written instanceof List) {
+			Iterator<?> r = ((List<?>) read).iterator();
+			for (Object element : (List<?>) written) {
+				String diff = compareValue(element, r.hasNext() ? r.next() : null);
+				if (diff != null) {
+					return "element " + diff;
+				}
+			}
+			return r.hasNext() ? "extra elements read" : null;
+		}
+		return written.equals(read) ? null : written + " read as " + read;
+	}
+
+	/**
+	 * The statements the loader sends each source's records with
+	 *
+	 * @param conn
+	 * @return
+	 * @throws ETLException
+	 */
+	static Map<String, List<CassDBConnection.PreparedStatementDefinition>> prepare(CassDBConnection conn)
+			throws ETLException {
+		Map<String, List<CassDBConnection.PreparedStatementDefinition>> statements = new HashMap<String, List<CassDBConnection.PreparedStatementDefinition>>();
+		conn.createUDT(ETLConstants.SUBDOC_BUSINESS);
+		conn.createUDT(ETLConstants.SUBDOC_TECHNICAL);
+		conn.createUDT(ETLConstants.SUBDOC_PARENTAL);
+		conn.createUDT(ETLConstants.SUBDOC_RATING);
+
+		add(statements, "movies", conn.createStatement("rt_movie",
+				"insert into movie(movie_id, series_id, series_type, release_year, series_end_year, etl_status) values(?, ?, ?, ?, ?, 1)",
+				ETLConstants.FIELD_MOVIE_ID, ETLConstants.FIELD_SERIES_ID, ETLConstants.FIELD_SERIES_TYPE,
+				ETLConstants.FIELD_RELEASE_YEAR, ETLConstants.FIELD_SERIES_END_YEAR));
+		for (int i = 0; i < MOVIE_UPDATES.length; i++) {
+			add(statements, MOVIE_UPDATES[i][0], conn.createStatement("rt_" + MOVIE_UPDATES[i][0], "update movie set "
+					+ MOVIE_UPDATES[i][1] + "=? where movie_id=?", MOVIE_UPDATES[i][1], ETLConstants.FIELD_MOVIE_ID));
+		}
+		CassDBConnection.PreparedStatementDefinition cast = conn.createStatement("rt_cast",
+				"insert into movie_cast(movie_id, contrib_id, contrib_class, contrib_role, contrib_role_detail, release_year) values(?, ?, ?, ?, ?, ?)",
+				ETLConstants.FIELD_MOVIE_ID, ETLConstants.FIELD_CONTRIB_ID, ETLConstants.FIELD_CONTRIB_CLASS,
+				ETLConstants.FIELD_CONTRIB_ROLE, ETLConstants.FIELD_CONTRIB_ROLEDETAIL, ETLConstants.FIELD_RELEASE_YEAR);
+		CassDBConnection.PreparedStatementDefinition contrib = conn.createStatement("rt_contrib",
+				"insert into contributor(contrib_id, contrib_type) values(?, ?)", ETLConstants.FIELD_CONTRIB_ID,
+				ETLConstants.FIELD_CONTRIB_TYPE);
+		for (int i = 0; i < ROLE_FILES.length; i++) {
+			add(statements, ROLE_FILES[i], cast);
+			add(statements, ROLE_FILES[i], contrib);
+		}
+		CassDBConnection.PreparedStatementDefinition post = conn.createStatement("rt_post",
+				"insert into post_for_movie_or_contrib_by_type(author, subject_type, subject_id, post_id, post_content, post_type, post_subtype) values(?, 'M', ?, uuid(), ?, ?, ?)",
+				ETLConstants.FIELD_DOC_AUTHOR, ETLConstants.FIELD_MOVIE_ID, ETLConstants.FIELD_DOC_TEXT,
+				ETLConstants.FIELD_DOC_TYPE, ETLConstants.FIELD_DOC_SUBTYPE);
+		for (int i = 0; i < DOC_FILES.length; i++) {
+			add(statements, DOC_FILES[i], post);
+		}
+		add(statements, "aka-names", conn.createStatement("rt_aliases",
+				"insert into contributor(contrib_id, contrib_type, aliases) values(?, ?, ?)",
+				ETLConstants.FIELD_CONTRIB_ID, ETLConstants.FIELD_CONTRIB_TYPE, ETLConstants.FIELD_CONTRIB_ALIASES));
+		add(statements, "biographies", conn.createStatement("rt_bio",
+				"insert into contributor(contrib_id, contrib_type, nicknames, birth_year, birth_info, death_year, death_info, death_cause, spouses, biography) values(?, ?, ?, ?, ?, ?, ?, ?, ?, ?)",
+				ETLConstants.FIELD_CONTRIB_ID, ETLConstants.FIELD_CONTRIB_TYPE, ETLConstants.FIELD_CONTRIB_NICKNAMES,
+				ETLConstants.FIELD_CONTRIB_BIRTH_YEAR, ETLConstants.FIELD_CONTRIB_BIRTH,
+				ETLConstants.FIELD_CONTRIB_DEATH_YEAR, ETLConstants.FIELD_CONTRIB_DEATH,
+				ETLConstants.FIELD_CONTRIB_DEATH_CAUSE, ETLConstants.FIELD_CONTRIB_SPOUSES,
+				ETLConstants.FIELD_CONTRIB_BIO));
+		add(statements, TYPES_SOURCE, conn.createStatement("rt_types",
+				"update movie set release_year=?, rating_data=?, parental_data=? where movie_id=?",
+				ETLConstants.FIELD_RELEASE_YEAR, ETLConstants.SUBDOC_RATING, ETLConstants.SUBDOC_PARENTAL,
+				ETLConstants.FIELD_MOVIE_ID));
+		return statements;
+	}
+
+	static void add(Map<String, List<CassDBConnection.PreparedStatementDefinition>> statements, String source,
+			CassDBConnection.PreparedStatementDefinition stmt) {
+		List<CassDBConnection.PreparedStatementDefinition> list = statements.get(source);
+		if (list == null) {
+			list = new ArrayList<CassDBConnection.PreparedStatementDefinition>();
+			statements.put(source, list);
+		}
+		list.add(stmt);
+	}
+
+	/**
+	 * Bind both records to the statement; the first difference in what's
+	 * bound, or null if none
+	 *
+	 * @param stmt
+	 * @param written
+	 * @param read
+	 * @return
+	 */
+	static String compareBound(CassDBConnection.PreparedStatementDefinition stmt, ImdbRecord written,
+			ImdbRecord read) {
+		BoundStatement w;
+		BoundStatement r;
+		try {
+			w = stmt.getBinder().bind(written, stmt.isLeaveNullsUnset());
+		} catch (ETLException e) {
+			try {
+				stmt.getBinder().bind(read, stmt.isLeaveNullsUnset());
+				return "written fails to bind (" + e.getMessage() + "), read binds";
+			} catch (ETLException x) {
+				return e.getMessage().equals(x.getMessage()) ? null : "bind errors differ: " + e.getMessage()
+						+ " / " + x.getMessage();
+			}
+		}
+		try {
+			r = stmt.getBinder().bind(read, stmt.isLeaveNullsUnset());
+		} catch (ETLException e) {
+			return "read fails to bind: " + e.getMessage();
+		}
+		int size = stmt.getStatement().getVariables().size();
+		for (int i = 0; i < size; i++) {
+			if (w.isSet(i) != r.isSet(i)) {
+				return "variable " + i + " set " + w.isSet(i) + " read " + r.isSet(i);
+			}
+			if (w.isSet(i) && (w.getBytesUnsafe(i) == null ? r.getBytesUnsafe(i) != null : !w.getBytesUnsafe(i)
+					.equals(r.getBytesUnsafe(i)))) {
+				return "variable " + i + " (" + stmt.getColumns()[i] + ") binds differently";
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Write the records of the source, read them back and compare
+	 *
+	 * @param source
+	 * @param records
+	 * @param dir
+	 * @param statements
+	 *            - or null
+	 * @return
+	 * @throws ETLException
+	 */
+	static boolean check(String source, List<ImdbRecord> records, File dir,
+			List<CassDBConnection.PreparedStatementDefinition> statements) throws ETLException {
+		RejectsFile rejects = new RejectsFile(new File(dir, source + RejectsFile.SUFFIX));
+		rejects.openForWrite();
+		try {
+			for (ImdbRecord rec : records) {
+				rejects.write(source, STATEMENT, new ETLException(ETLConstants.ERR_SEND, "round trip"), rec);
+			}
+			// read() should skip these: the same failures again, and dupes
+			for (ImdbRecord rec : records) {
+				rejects.write(source, STATEMENT, new ETLException(ETLConstants.ERR_SEND, "again"), rec);
+				rejects.write(source, STATEMENT + "Dupe", new ETLException(ETLConstants.ERR_DUPE, "dupe"), rec);
+			}
+		} finally {
+			rejects.close();
+		}
+
+		int numRead = 0;
+		int numDiffs = 0;
+		int numBindDiffs = 0;
+		rejects.openForRead(source);
+		try {
+			ImdbRecord read;
+			while ((read = rejects.read()) != null) {
+				if (numRead >= records.size()) {
+					numRead++;
+					continue;
+				}
+				ImdbRecord written = records.get(numRead++);
+				String diff = compare(written, read);
+				if (diff == null && written.getLineNumber() != read.getLineNumber()) {
+					diff = "line " + written.getLineNumber() + " read as " + read.getLineNumber();
+				}
+				if (diff == null && !STATEMENT.equals(read.getReplayStatement())) {
+					diff = "statement read as " + read.getReplayStatement();
+				}
+				if (diff != null && numDiffs++ < 3) {
+					System.out.println("  " + source + " record " + numRead + " " + diff + "\n    written " + written
+							+ "\n    read    " + read);
+				}
+				if (statements == null) {
+					continue;
+				}
+				for (CassDBConnection.PreparedStatementDefinition stmt : statements) {
+					diff = compareBound(stmt, written, read);
+					if (diff != null && numBindDiffs++ < 3) {
+						System.out.println("  " + source + " record " + numRead + " on " + stmt.getStatementName()
+								+ ": " + diff);
+					}
+				}
+			}
+		} finally {
+			rejects.close();
+		}
+		System.out.println(String.format("%-26s records %7d  read %7d  differ %5d%s", source, records.size(),
+				numRead, numDiffs, statements == null ? "" : "  bind differ " + numBindDiffs));
+		return numRead == records.size() && numDiffs == 0 && numBindDiffs == 0;
+	}
+
+	/**
+	 * @param args
+	 */
+	public static void main(String[] args) throws Exception {
+		BasicConfigurator.configure();
+		Logger.getRootLogger().setLevel(Level.WARN);
+
+		ETLProperties props = new ETLProperties();
+		props.setProperty(ETLConstants.PROP_LIST_SIDECAR, "true");
+
+		String path;
+		if (args.length > 0 && !args[0].matches("\\d+")) {
+			path = args[0];
+		} else {
+			int n = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+			path = ParserBenchmark.makeLists(n).getPath();
+			System.out.println("Synthetic lists of " + n + " lines in " + path);
+		}
+		int max = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+
+		CassDBConnection conn = null;
+		Map<String, List<CassDBConnection.PreparedStatementDefinition>> statements = null;
+		if (args.length > 2) {
+			props.setProperty("CassNodes", args[2]);
+			props.setProperty("CassKeyspace", "moviedb");
+			conn = new CassDBConnection();
+			conn.configure(props);
+			conn.connect();
+			statements = prepare(conn);
+		}
+
+		File dir = File.createTempFile("rejectsroundtrip", "");
+		dir.delete();
+		dir.mkdirs();
+		boolean same = true;
+		try {
+			same &= check(TYPES_SOURCE, Arrays.asList(typesRecord()), dir,
+					statements == null ? null : statements.get(TYPES_SOURCE));
+
+			String lists[] = new File(path).list();
+			Arrays.sort(lists);
+			for (int i = 0; i < lists.length; i++) {
+				if (!lists[i].endsWith(".list.gz")) {
+					continue;
+				}
+				String source = lists[i].substring(0, lists[i].length() - ".list.gz".length());
+				List<ImdbRecord> records;
+				try {
+					records = parse(source, path, max);
+				} catch (ETLException e) {
+					System.out.println(source + ": " + e.getMessage());
+					continue;
+				}
+				same &= check(source, records, dir, statements == null ? null : statements.get(source));
+			}
+		} finally {
+			if (conn != null) {
+				conn.disconnect();
+			}
+			for (File f : dir.listFiles()) {
+				f.delete();
+			}
+			dir.delete();
+		}
+		System.out.println(same ? "All the same" : "DIFFERENT");
+		if (!same) {
+			System.exit(1);
+		}
+	}
+}